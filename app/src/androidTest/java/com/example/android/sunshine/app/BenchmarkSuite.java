@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.test.suitebuilder.TestMethod;
+import android.test.suitebuilder.TestSuiteBuilder;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.internal.util.Predicate;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * The benchmarks: tests marked @LargeTest, which fill the database with months or years of
+ * forecast and log how long things take rather than checking them.  They take minutes, and
+ * their numbers only mean something compared with another run on the same device, so they're
+ * kept out of {@link FullTestSuite} and run on their own.
+ */
+public class BenchmarkSuite extends TestSuite {
+    public static Test suite() {
+        return new TestSuiteBuilder(BenchmarkSuite.class)
+                .includeAllPackagesUnderHere()
+                .addRequirements(new Predicate<TestMethod>() {
+                    @Override
+                    public boolean apply(TestMethod method) {
+                        return method.getAnnotation(LargeTest.class) != null;
+                    }
+                })
+                .build();
+    }
+
+    public BenchmarkSuite() {
+        super();
+    }
+}
@@ -15,15 +15,29 @@
  */
 package com.example.android.sunshine.app;
 
+import android.test.suitebuilder.TestMethod;
 import android.test.suitebuilder.TestSuiteBuilder;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.internal.util.Predicate;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
+/**
+ * Every test but the benchmarks, which are @LargeTest and run by {@link BenchmarkSuite}.
+ */
 public class FullTestSuite extends TestSuite {
     public static Test suite() {
         return new TestSuiteBuilder(FullTestSuite.class)
-                .includeAllPackagesUnderHere().build();
+                .includeAllPackagesUnderHere()
+                .addRequirements(new Predicate<TestMethod>() {
+                    @Override
+                    public boolean apply(TestMethod method) {
+                        return method.getAnnotation(LargeTest.class) == null;
+                    }
+                })
+                .build();
     }
 
     public FullTestSuite() {
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.ForecastPageLoader.PagedCursor;
+
+/*
+    Who closes which page, and when a page is loaded.  The loader here never starts a background
+    load; the cursors are handed to it directly, as that load would, so nothing is read from the
+    provider.
+ */
+public class TestForecastPageLoader extends AndroidTestCase {
+
+    private static final String[] PROJECTION = {"date"};
+    private static final int PAGE_SIZE = ForecastPageLoader.PAGE_SIZE;
+
+    private TestLoader mLoader;
+    private long mNextDate;
+
+    static class TestLoader extends ForecastPageLoader {
+        int mLoadsStarted;
+
+        TestLoader(Context context) {
+            super(context, "99705", 0, PROJECTION, 0);
+        }
+
+        @Override
+        protected void onForceLoad() {
+            mLoadsStarted++;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLoader = new TestLoader(mContext);
+        mLoader.startLoading();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLoader.reset();
+        super.tearDown();
+    }
+
+    private Cursor createPage(int rows) {
+        MatrixCursor page = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < rows; i++) {
+            page.addRow(new Object[]{mNextDate++});
+        }
+        return page;
+    }
+
+    private PagedCursor loadFirstPage() {
+        return new PagedCursor(null, createPage(PAGE_SIZE), PAGE_SIZE, 0);
+    }
+
+    // What loadInBackground() returns for loadNextPage().
+    private PagedCursor loadNextPage(PagedCursor base, int rows) {
+        PagedCursor result = new PagedCursor(base, createPage(rows), PAGE_SIZE, 0);
+        result.mPageAdded = true;
+        return result;
+    }
+
+    private static void assertPagesOpen(PagedCursor cursor) {
+        for (Cursor page : cursor.mPages) {
+            assertFalse("Error: a page still in use was closed", page.isClosed());
+        }
+    }
+
+    private static void assertPagesClosed(PagedCursor cursor) {
+        for (Cursor page : cursor.mPages) {
+            assertTrue("Error: a page no longer in use was left open", page.isClosed());
+        }
+    }
+
+    public void testNextPageTakesOverThePages() {
+        PagedCursor first = loadFirstPage();
+        mLoader.deliverResult(first);
+
+        PagedCursor second = loadNextPage(first, PAGE_SIZE);
+        mLoader.deliverResult(second);
+        assertTrue("Error: the cursor the page was added to should be closed", first.isClosed());
+        assertPagesOpen(second);
+        assertEquals(2 * PAGE_SIZE, second.getCount());
+        assertTrue(second.moveToPosition(PAGE_SIZE));
+        assertEquals(PAGE_SIZE, second.getLong(0));
+        assertFalse(second.mComplete);
+
+        PagedCursor third = loadNextPage(second, PAGE_SIZE / 2);
+        mLoader.deliverResult(third);
+        assertTrue(second.isClosed());
+        assertPagesOpen(third);
+        assertTrue("Error: a short page should be the last", third.mComplete);
+    }
+
+    public void testReloadClosesThePagesItReplaces() {
+        PagedCursor first = loadFirstPage();
+        mLoader.deliverResult(first);
+        PagedCursor second = loadNextPage(first, PAGE_SIZE);
+        mLoader.deliverResult(second);
+
+        PagedCursor reloaded = new PagedCursor(null, createPage(2 * PAGE_SIZE), 2 * PAGE_SIZE,
+                0);
+        mLoader.deliverResult(reloaded);
+        assertTrue(second.isClosed());
+        assertPagesClosed(second);
+        assertPagesOpen(reloaded);
+    }
+
+    public void testRedeliveryIsNotANextPage() {
+        PagedCursor first = loadFirstPage();
+        mLoader.deliverResult(first);
+        PagedCursor second = loadNextPage(first, PAGE_SIZE);
+        assertTrue(ForecastPageLoader.isNextPage(second));
+        mLoader.deliverResult(second);
+        assertFalse("Error: a delivered page should only count as added once",
+                ForecastPageLoader.isNextPage(second));
+
+        // Starting again, as after a configuration change, delivers the same cursor.
+        mLoader.startLoading();
+        mLoader.stopLoading();
+        mLoader.startLoading();
+        assertFalse(second.isClosed());
+        assertPagesOpen(second);
+        assertFalse(ForecastPageLoader.isNextPage(second));
+    }
+
+    public void testCanceledPageClosesOnlyItsOwnPage() {
+        PagedCursor first = loadFirstPage();
+        mLoader.deliverResult(first);
+
+        PagedCursor second = loadNextPage(first, PAGE_SIZE);
+        mLoader.onCanceled(second);
+        assertTrue(second.isClosed());
+        assertTrue("Error: the canceled page should be closed",
+                second.mPages[second.mPages.length - 1].isClosed());
+        assertFalse("Error: the delivered cursor should be left alone", first.isClosed());
+        assertPagesOpen(first);
+
+        // And a page loaded after it still adds to the first.
+        PagedCursor third = loadNextPage(first, PAGE_SIZE);
+        mLoader.deliverResult(third);
+        assertPagesOpen(third);
+        assertEquals(2 * PAGE_SIZE, third.getCount());
+    }
+
+    public void testNoNextPageDuringAReload() {
+        mLoader.deliverResult(loadFirstPage());
+        int loads = mLoader.mLoadsStarted;
+
+        mLoader.onContentChanged();
+        assertEquals(loads + 1, mLoader.mLoadsStarted);
+        mLoader.loadNextPage();
+        assertEquals("Error: adding a page would cancel the reload", loads + 1,
+                mLoader.mLoadsStarted);
+
+        mLoader.deliverResult(loadFirstPage());
+        mLoader.loadNextPage();
+        assertEquals(loads + 2, mLoader.mLoadsStarted);
+        mLoader.loadNextPage();
+        assertEquals("Error: the page is already loading", loads + 2, mLoader.mLoadsStarted);
+    }
+
+    public void testResetClosesEveryPage() {
+        PagedCursor first = loadFirstPage();
+        mLoader.deliverResult(first);
+        PagedCursor second = loadNextPage(first, PAGE_SIZE);
+        mLoader.deliverResult(second);
+
+        mLoader.reset();
+        assertTrue(second.isClosed());
+        assertPagesClosed(second);
+
+        // Anything still on its way when the loader was reset is closed as it arrives.
+        PagedCursor late = loadFirstPage();
+        mLoader.deliverResult(late);
+        assertTrue(late.isClosed());
+        assertPagesClosed(late);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+
+public class TestAggregates extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestAggregates.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int DAYS = 365;
+    private static final int QUERY_RUNS = 20;
+
+    // OpenWeatherMap's rain group.
+    private static final int RAIN_FROM = 500;
+    private static final int RAIN_TO = 531;
+
+    private static final String[] DAY_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP
+    };
+
+    // These indices must match DAY_COLUMNS.
+    private static final int COL_DATE = 0;
+    private static final int COL_WEATHER_ID = 1;
+    private static final int COL_MIN_TEMP = 2;
+    private static final int COL_MAX_TEMP = 3;
+
+    private String mLocationSetting;
+    private long[] mDates;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mLocationSetting = TestUtilities.TEST_LOCATION;
+
+        WeatherBatch batch = new WeatherBatch(DAYS);
+        for (int i = 0; i < DAYS; i++) {
+            batch.add(locationRowId, TestUtilities.TEST_DATE_MILLIS + i * DAY_IN_MILLIS, "Sky",
+                    TestUtilities.weatherIdOf(i), -5.37 + (i % 17) * 0.83, 3.21 + (i % 13) * 1.17,
+                    40 + i % 50, 1003.42, 1.6, (i * 37) % 360);
+        }
+        assertEquals(DAYS, batch.insert(mContext.getContentResolver()));
+        mDates = new long[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            mDates[i] = WeatherContract.normalizeDate(
+                    TestUtilities.TEST_DATE_MILLIS + i * DAY_IN_MILLIS);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testSummaryMatchesRows() {
+        long start = mDates[30];
+        long end = mDates[89];
+        double[] expected = summarizeInJava(start, end);
+
+        Cursor summary = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherSummary(mLocationSetting, start, end),
+                null, null, null, null);
+        assertNotNull(summary);
+        assertEquals("Error: the summary should be one row", 1, summary.getCount());
+        assertTrue(summary.moveToFirst());
+        assertEquals(60, summary.getInt(summary.getColumnIndex(WeatherEntry.COLUMN_DAYS)));
+        assertEquals(expected[0],
+                summary.getDouble(summary.getColumnIndex(WeatherEntry.COLUMN_LOWEST)), 1e-9);
+        assertEquals(expected[1],
+                summary.getDouble(summary.getColumnIndex(WeatherEntry.COLUMN_HIGHEST)), 1e-9);
+        assertEquals(expected[2],
+                summary.getDouble(summary.getColumnIndex(WeatherEntry.COLUMN_MEAN_TEMP)), 1e-9);
+        summary.close();
+
+        Cursor unknown = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherSummary("nowhere", start, end), null, null, null, null);
+        assertNotNull(unknown);
+        assertTrue(unknown.moveToFirst());
+        assertEquals(0, unknown.getInt(unknown.getColumnIndex(WeatherEntry.COLUMN_DAYS)));
+        unknown.close();
+    }
+
+    public void testConditionsMatchRows() {
+        long start = mDates[0];
+        long end = mDates[DAYS - 1];
+        HashMap<Integer, Integer> expected = countConditionsInJava(start, end);
+
+        Cursor conditions = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherConditions(mLocationSetting, start, end),
+                null, null, null, null);
+        assertNotNull(conditions);
+        assertEquals(expected.size(), conditions.getCount());
+        int previous = Integer.MAX_VALUE;
+        while (conditions.moveToNext()) {
+            int weatherId = conditions.getInt(
+                    conditions.getColumnIndex(WeatherEntry.COLUMN_WEATHER_ID));
+            int days = conditions.getInt(conditions.getColumnIndex(WeatherEntry.COLUMN_DAYS));
+            assertEquals("Error: days of " + weatherId, expected.get(weatherId).intValue(), days);
+            assertTrue("Error: conditions should come most frequent first", days <= previous);
+            previous = days;
+        }
+        conditions.close();
+    }
+
+    public void testFirstMatch() {
+        Cursor first = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherFirstMatch(mLocationSetting, mDates[0],
+                        mDates[DAYS - 1], RAIN_FROM, RAIN_TO),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_WEATHER_ID},
+                null, null, null);
+        assertNotNull(first);
+        assertEquals(1, first.getCount());
+        assertTrue(first.moveToFirst());
+        assertEquals("Error: the first rainy day is day 42", mDates[42], first.getLong(0));
+        assertEquals(501, first.getInt(1));
+        first.close();
+
+        Cursor none = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherFirstMatch(mLocationSetting, mDates[0], mDates[39],
+                        RAIN_FROM, RAIN_TO), null, null, null, null);
+        assertNotNull(none);
+        assertEquals(0, none.getCount());
+        none.close();
+    }
+
+    /*
+        Each aggregate computed in SQLite, timed against reading the location's rows out of the
+        provider and computing it in Java.
+     */
+    @LargeTest
+    public void testAggregateBenchmark() {
+        long start = mDates[0];
+        long end = mDates[DAYS - 1];
+        long sqlMillis = 0;
+        long javaMillis = 0;
+        for (int i = 0; i < QUERY_RUNS; i++) {
+            long t = SystemClock.elapsedRealtime();
+            readAll(WeatherEntry.buildWeatherSummary(mLocationSetting, start, end));
+            sqlMillis += SystemClock.elapsedRealtime() - t;
+            t = SystemClock.elapsedRealtime();
+            summarizeInJava(start, end);
+            javaMillis += SystemClock.elapsedRealtime() - t;
+        }
+        logBenchmark("summary", sqlMillis, javaMillis);
+
+        sqlMillis = 0;
+        javaMillis = 0;
+        for (int i = 0; i < QUERY_RUNS; i++) {
+            long t = SystemClock.elapsedRealtime();
+            readAll(WeatherEntry.buildWeatherConditions(mLocationSetting, start, end));
+            sqlMillis += SystemClock.elapsedRealtime() - t;
+            t = SystemClock.elapsedRealtime();
+            countConditionsInJava(start, end);
+            javaMillis += SystemClock.elapsedRealtime() - t;
+        }
+        logBenchmark("conditions", sqlMillis, javaMillis);
+
+        sqlMillis = 0;
+        javaMillis = 0;
+        for (int i = 0; i < QUERY_RUNS; i++) {
+            long t = SystemClock.elapsedRealtime();
+            readAll(WeatherEntry.buildWeatherFirstMatch(mLocationSetting, start, end,
+                    RAIN_FROM, RAIN_TO));
+            sqlMillis += SystemClock.elapsedRealtime() - t;
+            t = SystemClock.elapsedRealtime();
+            findFirstInJava(start, end, RAIN_FROM, RAIN_TO);
+            javaMillis += SystemClock.elapsedRealtime() - t;
+        }
+        logBenchmark("first", sqlMillis, javaMillis);
+    }
+
+    private void logBenchmark(String aggregate, long sqlMillis, long javaMillis) {
+        Log.i(LOG_TAG, aggregate + " over " + DAYS + " days: SQLite "
+                + ((double) sqlMillis / QUERY_RUNS) + "ms, rows into Java "
+                + ((double) javaMillis / QUERY_RUNS) + "ms, mean of " + QUERY_RUNS + " runs");
+    }
+
+    private void readAll(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        while (cursor.moveToNext()) {
+            cursor.getDouble(0);
+        }
+        cursor.close();
+    }
+
+    // The pattern the aggregates replace: every row of the range, read into Java.
+    private Cursor queryDays(long start, long end) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(mLocationSetting, start),
+                DAY_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        return cursor;
+    }
+
+    // {lowest, highest, mean temperature}
+    private double[] summarizeInJava(long start, long end) {
+        Cursor cursor = queryDays(start, end);
+        double lowest = Double.MAX_VALUE;
+        double highest = -Double.MAX_VALUE;
+        double sum = 0;
+        int days = 0;
+        while (cursor.moveToNext() && cursor.getLong(COL_DATE) <= end) {
+            double min = cursor.getDouble(COL_MIN_TEMP);
+            double max = cursor.getDouble(COL_MAX_TEMP);
+            lowest = Math.min(lowest, min);
+            highest = Math.max(highest, max);
+            sum += (min + max) / 2.0;
+            days++;
+        }
+        cursor.close();
+        return new double[]{lowest, highest, sum / days};
+    }
+
+    private HashMap<Integer, Integer> countConditionsInJava(long start, long end) {
+        Cursor cursor = queryDays(start, end);
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        while (cursor.moveToNext() && cursor.getLong(COL_DATE) <= end) {
+            int weatherId = cursor.getInt(COL_WEATHER_ID);
+            Integer count = counts.get(weatherId);
+            counts.put(weatherId, count == null ? 1 : count + 1);
+        }
+        cursor.close();
+        return counts;
+    }
+
+    private long findFirstInJava(long start, long end, int weatherIdFrom, int weatherIdTo) {
+        Cursor cursor = queryDays(start, end);
+        try {
+            while (cursor.moveToNext() && cursor.getLong(COL_DATE) <= end) {
+                int weatherId = cursor.getInt(COL_WEATHER_ID);
+                if (weatherId >= weatherIdFrom && weatherId <= weatherIdTo) {
+                    return cursor.getLong(COL_DATE);
+                }
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
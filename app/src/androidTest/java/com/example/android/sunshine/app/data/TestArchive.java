@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+public class TestArchive extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestArchive.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int DAYS = 30;
+
+    private static final int STORAGE_LOCATIONS = 20;
+    private static final int STORAGE_DAYS = 365;
+    // Ten years for a handful of locations should cost a low-end device next to nothing.
+    private static final long MAX_BYTES_PER_LOCATION_YEAR = 16 * 1024;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testArchivingDeleteKeepsHistory() {
+        long locationRowId = TestUtilities.insertLocation(mContext, TestUtilities.TEST_LOCATION);
+        ContentValues[] days = createDays(locationRowId, DAYS);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+
+        // Archive all but the last ten days.
+        long cutoff = WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE_MILLIS + (DAYS - 11) * DAY_IN_MILLIS);
+        int deleted = mContext.getContentResolver().delete(WeatherEntry.ARCHIVING_URI,
+                WeatherEntry.COLUMN_DATE + " <= ?", new String[]{Long.toString(cutoff)});
+        assertEquals(DAYS - 10, deleted);
+
+        Cursor weather = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        assertNotNull(weather);
+        assertEquals(10, weather.getCount());
+        weather.close();
+
+        Cursor archive = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveLocation(TestUtilities.TEST_LOCATION), null, null, null,
+                null);
+        assertNotNull(archive);
+        assertEquals(DAYS - 10, archive.getCount());
+        archive.moveToFirst();
+        for (int i = 0; i < DAYS - 10; i++, archive.moveToNext()) {
+            ContentValues expected = days[i];
+            assertEquals("Error: archived date " + i,
+                    (long) expected.getAsLong(WeatherEntry.COLUMN_DATE),
+                    archive.getLong(archive.getColumnIndex(WeatherEntry.COLUMN_DATE)));
+            assertEquals((int) expected.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                    archive.getInt(archive.getColumnIndex(WeatherEntry.COLUMN_WEATHER_ID)));
+            assertEquals(expected.getAsString(WeatherEntry.COLUMN_SHORT_DESC),
+                    archive.getString(archive.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC)));
+            assertDecoded(expected, archive, WeatherEntry.COLUMN_MIN_TEMP, 0.05);
+            assertDecoded(expected, archive, WeatherEntry.COLUMN_MAX_TEMP, 0.05);
+            assertDecoded(expected, archive, WeatherEntry.COLUMN_HUMIDITY, 0.5);
+            assertDecoded(expected, archive, WeatherEntry.COLUMN_PRESSURE, 0.05);
+            assertDecoded(expected, archive, WeatherEntry.COLUMN_WIND_SPEED, 0.05);
+            assertDecoded(expected, archive, WeatherEntry.COLUMN_DEGREES, 0.5);
+        }
+        archive.close();
+    }
+
+    public void testArchiveRangeAndSummary() {
+        long locationRowId = TestUtilities.insertLocation(mContext, TestUtilities.TEST_LOCATION);
+        ContentValues[] days = createDays(locationRowId, DAYS);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        mContext.getContentResolver().delete(WeatherEntry.ARCHIVING_URI, null, null);
+
+        long start = days[5].getAsLong(WeatherEntry.COLUMN_DATE);
+        long end = days[11].getAsLong(WeatherEntry.COLUMN_DATE);
+        Cursor range = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveLocationWithRange(TestUtilities.TEST_LOCATION, start, end),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP}, null, null,
+                null);
+        assertNotNull(range);
+        assertEquals("Error: the range should include both ends", 7, range.getCount());
+        assertTrue(range.moveToFirst());
+        assertEquals(start, range.getLong(0));
+        range.close();
+
+        Cursor summary = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveSummaryWithRange(TestUtilities.TEST_LOCATION, start, end),
+                null, null, null, null);
+        assertNotNull(summary);
+        assertTrue(summary.moveToFirst());
+        assertEquals(7, summary.getInt(summary.getColumnIndex(ArchiveEntry.COLUMN_DAYS)));
+        double lowest = Double.MAX_VALUE;
+        double highest = -Double.MAX_VALUE;
+        for (int i = 5; i <= 11; i++) {
+            lowest = Math.min(lowest, days[i].getAsDouble(WeatherEntry.COLUMN_MIN_TEMP));
+            highest = Math.max(highest, days[i].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP));
+        }
+        assertEquals(lowest,
+                summary.getDouble(summary.getColumnIndex(ArchiveEntry.COLUMN_LOWEST)), 0.05);
+        assertEquals(highest,
+                summary.getDouble(summary.getColumnIndex(ArchiveEntry.COLUMN_HIGHEST)), 0.05);
+        summary.close();
+
+        Cursor unknown = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveLocation("nowhere"), null, null, null, null);
+        assertNotNull(unknown);
+        assertEquals(0, unknown.getCount());
+        unknown.close();
+    }
+
+    /*
+        Logs what a location-year costs in the weather table and in the archive, and fails if
+        the archive's cost grows past MAX_BYTES_PER_LOCATION_YEAR.
+     */
+    public void testStoragePerLocationYear() {
+        long[] locationRowIds = new long[STORAGE_LOCATIONS];
+        for (int l = 0; l < STORAGE_LOCATIONS; l++) {
+            locationRowIds[l] = TestUtilities.insertLocation(mContext, "location" + l);
+        }
+        long empty = compactedSize();
+
+        for (long locationRowId : locationRowIds) {
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    createDays(locationRowId, STORAGE_DAYS));
+        }
+        long withWeather = compactedSize();
+
+        mContext.getContentResolver().delete(WeatherEntry.ARCHIVING_URI, null, null);
+        long withArchive = compactedSize();
+
+        long weatherPerYear = (withWeather - empty) / STORAGE_LOCATIONS;
+        long archivePerYear = (withArchive - empty) / STORAGE_LOCATIONS;
+        Log.i(LOG_TAG, "Per location-year: weather table " + weatherPerYear + " bytes, archive "
+                + archivePerYear + " bytes");
+        assertTrue("Error: a location-year of archive takes " + archivePerYear + " bytes",
+                archivePerYear <= MAX_BYTES_PER_LOCATION_YEAR);
+    }
+
+    // The database's size once free pages are given back.
+    private long compactedSize() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.execSQL("VACUUM");
+            return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                    * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static void assertDecoded(ContentValues expected, Cursor archive, String column,
+                                      double delta) {
+        assertEquals("Error: archived " + column, expected.getAsDouble(column),
+                archive.getDouble(archive.getColumnIndex(column)), delta);
+    }
+
+    // A run of days with values that vary the way real ones do, at normalized dates.
+    private static ContentValues[] createDays(long locationRowId, int count) {
+        ContentValues[] days = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues day = new ContentValues();
+            day.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            day.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                    TestUtilities.TEST_DATE_MILLIS + i * DAY_IN_MILLIS));
+            day.put(WeatherEntry.COLUMN_WEATHER_ID, i % 2 == 0 ? 800 : 500);
+            day.put(WeatherEntry.COLUMN_SHORT_DESC, i % 2 == 0 ? "Clear" : "Rain");
+            day.put(WeatherEntry.COLUMN_MIN_TEMP, -5.37 + (i % 17) * 0.83);
+            day.put(WeatherEntry.COLUMN_MAX_TEMP, 3.21 + (i % 13) * 1.17);
+            day.put(WeatherEntry.COLUMN_HUMIDITY, 40 + i % 50);
+            day.put(WeatherEntry.COLUMN_PRESSURE, 1003.42 + (i % 23) * 0.91);
+            day.put(WeatherEntry.COLUMN_WIND_SPEED, 1.6 + (i % 7) * 0.73);
+            day.put(WeatherEntry.COLUMN_DEGREES, (i * 37) % 360);
+            days[i] = day;
+        }
+        return days;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+public class TestBulkInsert extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int DAYS_PER_LOCATION = 1000;
+
+    private static final int[] BENCHMARK_SIZES = {14, 1000, 100000};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private void deleteAllWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        The fast normalization has to land on exactly the same value as the contract's, or rows
+        written by the bulk paths won't be found by the date URIs.
+     */
+    public void testDateNormalizerMatchesContract() {
+        DateNormalizer normalizer = new DateNormalizer();
+        // Two years, in steps that aren't a divisor of a day, so every hour gets hit.
+        long end = TestUtilities.TEST_DATE_MILLIS + 2 * 365 * DAY_IN_MILLIS;
+        for (long date = TestUtilities.TEST_DATE_MILLIS; date < end;
+             date += 5 * 60 * 60 * 1000L + 7) {
+            assertEquals("Error: normalizing " + date,
+                    WeatherContract.normalizeDate(date), normalizer.normalize(date));
+        }
+    }
+
+    public void testWeatherBatchInsert() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        WeatherBatch batch = createBatch(locationRowId, 14);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                weatherObserver);
+        int insertCount = batch.insert(mContext.getContentResolver());
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(14, insertCount);
+
+        ContentValues[] expected = batch.toContentValues();
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        assertEquals(14, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < expected.length; i++, cursor.moveToNext()) {
+            expected[i].put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(expected[i].getAsLong(WeatherEntry.COLUMN_DATE)));
+            TestUtilities.validateCurrentRecord("Error validating batch row " + i, cursor,
+                    expected[i]);
+        }
+        cursor.close();
+    }
+
+    public void testBulkInsertReplacesSameDay() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] values = createBatch(locationRowId, 3).toContentValues();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBatch(locationRowId, 3).toContentValues());
+        assertEquals(3, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        assertNotNull(cursor);
+        assertEquals("Error: bulk insert should replace rows for the same day", 3,
+                cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Times each way of writing a batch at a few sizes.  "insert loop" is what bulkInsert used
+        to do, one SQLiteDatabase.insert() per row.
+     */
+    @LargeTest
+    public void testBulkInsertBenchmark() {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            for (int size : BENCHMARK_SIZES) {
+                WeatherBatch batch = createBatch(1, size);
+
+                ContentValues[] loopValues = batch.toContentValues();
+                long start = SystemClock.elapsedRealtime();
+                insertLoop(db, loopValues);
+                long loopMillis = SystemClock.elapsedRealtime() - start;
+                deleteAllWeather();
+
+                ContentValues[] bulkValues = batch.toContentValues();
+                start = SystemClock.elapsedRealtime();
+                int bulkCount = mContext.getContentResolver().bulkInsert(
+                        WeatherEntry.CONTENT_URI, bulkValues);
+                long bulkMillis = SystemClock.elapsedRealtime() - start;
+                deleteAllWeather();
+
+                start = SystemClock.elapsedRealtime();
+                int batchCount = batch.insert(mContext.getContentResolver());
+                long batchMillis = SystemClock.elapsedRealtime() - start;
+                deleteAllWeather();
+
+                assertEquals(size, bulkCount);
+                assertEquals(size, batchCount);
+                Log.i(LOG_TAG, size + " rows: insert loop " + loopMillis + "ms, bulkInsert "
+                        + bulkMillis + "ms, WeatherBatch " + batchMillis + "ms");
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static void insertLoop(SQLiteDatabase db, ContentValues[] values) {
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                value.put(WeatherEntry.COLUMN_DATE,
+                        WeatherContract.normalizeDate(value.getAsLong(WeatherEntry.COLUMN_DATE)));
+                WeatherStorage.insert(db, value);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Rows a day apart, moving on to the next location key every DAYS_PER_LOCATION rows so
+    // large batches don't replace themselves.
+    private static WeatherBatch createBatch(long firstLocationId, int size) {
+        WeatherBatch batch = new WeatherBatch(size);
+        for (int i = 0; i < size; i++) {
+            batch.add(firstLocationId + i / DAYS_PER_LOCATION,
+                    TestUtilities.TEST_DATE_MILLIS + (i % DAYS_PER_LOCATION) * DAY_IN_MILLIS
+                            + 3600 * 1000L,
+                    "Asteroids", 321, 65 - i % 10, 75 + i % 10, 1.2, 1.3, 5.5, 1.1);
+        }
+        return batch;
+    }
+}
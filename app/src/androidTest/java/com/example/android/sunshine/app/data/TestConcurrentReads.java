@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Runs the kind of read the forecast list does while a large sync write is in progress, once
+    with the rollback journal and once with write-ahead logging, and logs the read latencies.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final int LOCATIONS = 200;
+    private static final int DAYS = 365;
+    private static final long WRITER_START_SECONDS = 10;
+
+    private WeatherDbHelper mDbHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLoggingEnabled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        assertTrue("Error: the weather database is not in WAL mode",
+                isWriteAheadLoggingEnabled(mDbHelper.getWritableDatabase()));
+    }
+
+    public void testCheckpoint() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long locationId = db.insert(LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+        WeatherStorage.insert(db, TestUtilities.createWeatherValues(locationId));
+        // Must not throw, whichever journal mode the database is in.
+        mDbHelper.checkpoint();
+    }
+
+    @LargeTest
+    public void testReadLatencyDuringWrite() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long locationId = insertLocation(db);
+
+        disableWriteAheadLogging(db);
+        measureReadsDuringWrite(db, locationId, "rollback journal");
+        db.delete(WeatherStorage.TABLE_NAME, null, null);
+
+        db.enableWriteAheadLogging();
+        measureReadsDuringWrite(db, locationId, "write-ahead log");
+    }
+
+    private void measureReadsDuringWrite(final SQLiteDatabase db, long readLocationId,
+                                         String mode) throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                bulkWrite(db, writing);
+            }
+        });
+
+        String[] args = new String[]{Long.toString(readLocationId)};
+        String sql = "SELECT * FROM " + WeatherEntry.TABLE_NAME + " WHERE "
+                + WeatherEntry.COLUMN_LOC_KEY + " = ? ORDER BY " + WeatherEntry.COLUMN_DATE;
+        int reads = 0;
+        long total = 0;
+        long worst = 0;
+
+        writer.start();
+        // Otherwise the first reads can get in before the writer's transaction, and with the
+        // rollback journal not wait for it at all.
+        assertTrue("Error: the writer never started",
+                writing.await(WRITER_START_SECONDS, TimeUnit.SECONDS));
+        do {
+            long start = SystemClock.elapsedRealtime();
+            Cursor c = db.rawQuery(sql, args);
+            try {
+                c.getCount();
+            } finally {
+                c.close();
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            reads++;
+            total += elapsed;
+            worst = Math.max(worst, elapsed);
+        } while (writer.isAlive());
+        writer.join();
+
+        assertTrue("Error: no reads completed", reads > 0);
+        Log.i(LOG_TAG, mode + ": " + reads + " reads during the write, mean "
+                + (total / reads) + "ms, worst " + worst + "ms");
+    }
+
+    private static long insertLocation(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + LocationEntry.TABLE_NAME
+                + " (" + LocationEntry.COLUMN_LOCATION_SETTING + ", "
+                + LocationEntry.COLUMN_CITY_NAME + ", " + LocationEntry.COLUMN_COORD_LAT + ", "
+                + LocationEntry.COLUMN_COORD_LONG + ") VALUES (?, ?, 0, 0)");
+        try {
+            insert.bindString(1, TestUtilities.TEST_LOCATION);
+            insert.bindString(2, "North Pole");
+            return insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    // One sync-sized transaction: a year of forecast for each of LOCATIONS locations, stored
+    // as WeatherStorage has it.  The description isn't read, so isn't written.  The latch
+    // is counted down once the transaction has begun.
+    private static void bulkWrite(SQLiteDatabase db, CountDownLatch writing) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                + WeatherStorage.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", " + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", " + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", " + WeatherEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, 321, 6500, 7500, 120, 130, 550, 110)");
+        db.beginTransaction();
+        writing.countDown();
+        try {
+            for (int l = 0; l < LOCATIONS; l++) {
+                for (int d = 0; d < DAYS; d++) {
+                    // The location key isn't checked here, only used to spread the rows out.
+                    insert.bindLong(1, 1000 + l);
+                    insert.bindLong(2, TestUtilities.TEST_DATE_MILLIS + d * 86400000L);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isWriteAheadLoggingEnabled(SQLiteDatabase db) {
+        return db.isWriteAheadLoggingEnabled();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void disableWriteAheadLogging(SQLiteDatabase db) {
+        db.disableWriteAheadLogging();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+public class TestHourly extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHourly.class.getSimpleName();
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000L;
+    private static final long STEP = 3 * HOUR_IN_MILLIS;
+    // What OWM's 5 day / 3 hour forecast sends for one location.
+    private static final int HOURS = 40;
+
+    private static final int BENCHMARK_LOCATIONS = 50;
+    private static final int BENCHMARK_SYNCS = 10;
+    private static final int QUERY_RUNS = 20;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testReplaceAndQueryRange() {
+        long first = TestUtilities.insertLocation(mContext, "first");
+        long second = TestUtilities.insertLocation(mContext, "second");
+        HourlyBatch batch = new HourlyBatch(2 * HOURS);
+        addHours(batch, first, TestUtilities.TEST_DATE_MILLIS, 0);
+        addHours(batch, second, TestUtilities.TEST_DATE_MILLIS, 100);
+        assertEquals(2 * HOURS, batch.replace(mContext.getContentResolver()));
+
+        Cursor hours = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation("first"), null, null, null, null);
+        assertNotNull(hours);
+        assertEquals(HOURS, hours.getCount());
+        for (int i = 0; hours.moveToNext(); i++) {
+            String error = "Error: hour " + i + " read back differently";
+            assertEquals(error, first, hours.getLong(hours.getColumnIndex(
+                    HourlyEntry.COLUMN_LOC_KEY)));
+            assertEquals(error, TestUtilities.TEST_DATE_MILLIS + i * STEP,
+                    hours.getLong(hours.getColumnIndex(HourlyEntry.COLUMN_TIME)));
+            assertEquals(error, temperatureOf(i, 0), hours.getDouble(hours.getColumnIndex(
+                    HourlyEntry.COLUMN_TEMP)), 1e-9);
+            assertEquals(error, TestUtilities.weatherIdOf(i), hours.getInt(hours.getColumnIndex(
+                    HourlyEntry.COLUMN_WEATHER_ID)));
+            assertEquals(error, "Sky", hours.getString(hours.getColumnIndex(
+                    HourlyEntry.COLUMN_SHORT_DESC)));
+        }
+        hours.close();
+
+        // Both ends inclusive; a start between two forecast times begins at the next one.
+        Cursor range = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithRange("second",
+                        TestUtilities.TEST_DATE_MILLIS + 5 * STEP - 1,
+                        TestUtilities.TEST_DATE_MILLIS + 9 * STEP),
+                new String[]{HourlyEntry.COLUMN_TIME, HourlyEntry.COLUMN_TEMP}, null, null, null);
+        assertNotNull(range);
+        assertEquals(5, range.getCount());
+        assertTrue(range.moveToFirst());
+        assertEquals(TestUtilities.TEST_DATE_MILLIS + 5 * STEP, range.getLong(0));
+        assertEquals(temperatureOf(5, 100), range.getDouble(1), 1e-9);
+        range.close();
+
+        Cursor unknown = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation("nowhere"), null, null, null, null);
+        assertNotNull(unknown);
+        assertEquals(0, unknown.getCount());
+        unknown.close();
+    }
+
+    public void testReplaceDropsOldHours() {
+        long first = TestUtilities.insertLocation(mContext, "first");
+        long second = TestUtilities.insertLocation(mContext, "second");
+        HourlyBatch batch = new HourlyBatch(2 * HOURS);
+        addHours(batch, first, TestUtilities.TEST_DATE_MILLIS, 0);
+        addHours(batch, second, TestUtilities.TEST_DATE_MILLIS, 0);
+        batch.replace(mContext.getContentResolver());
+
+        Cursor observed = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation("first"), null, null, null, null);
+        assertNotNull(observed);
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        observed.registerContentObserver(observer);
+
+        // The next sync, a day on, for the first location only.
+        batch = new HourlyBatch(HOURS);
+        addHours(batch, first, TestUtilities.TEST_DATE_MILLIS + 24 * HOUR_IN_MILLIS, 0);
+        assertEquals(HOURS, batch.replace(mContext.getContentResolver()));
+        observer.waitForNotificationOrFail();
+        observed.unregisterContentObserver(observer);
+        observed.close();
+
+        Cursor hours = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation("first"), new String[]{HourlyEntry.COLUMN_TIME},
+                null, null, null);
+        assertNotNull(hours);
+        assertEquals("Error: the hours before the new ones should be gone", HOURS,
+                hours.getCount());
+        assertTrue(hours.moveToFirst());
+        assertEquals(TestUtilities.TEST_DATE_MILLIS + 24 * HOUR_IN_MILLIS, hours.getLong(0));
+        hours.close();
+
+        Cursor all = mContext.getContentResolver().query(HourlyEntry.CONTENT_URI,
+                new String[]{HourlyEntry.COLUMN_LOC_KEY}, HourlyEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(second)}, null);
+        assertNotNull(all);
+        assertEquals("Error: a location not in the batch should keep its hours", HOURS,
+                all.getCount());
+        all.close();
+    }
+
+    public void testRowByRowFallbackMatchesCall() throws Exception {
+        long first = TestUtilities.insertLocation(mContext, "first");
+        HourlyBatch batch = new HourlyBatch(HOURS);
+        addHours(batch, first, TestUtilities.TEST_DATE_MILLIS, 0);
+        // What replace() does before Honeycomb.
+        mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                batch.toOperations());
+        Cursor byOperations = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation("first"), null, null, null, null);
+        assertNotNull(byOperations);
+        // Fills the cursor's window now, before the rows are replaced again.
+        assertEquals(HOURS, byOperations.getCount());
+
+        batch.replace(mContext.getContentResolver());
+        Cursor byCall = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocation("first"), null, null, null, null);
+        assertNotNull(byCall);
+
+        assertEquals(HOURS, byCall.getCount());
+        while (byCall.moveToNext()) {
+            assertTrue(byOperations.moveToNext());
+            ContentValues expected = new ContentValues();
+            DatabaseUtils.cursorRowToContentValues(byCall, expected);
+            TestUtilities.validateCurrentRecord("Error: the two paths stored different rows",
+                    byOperations, expected);
+        }
+        byOperations.close();
+        byCall.close();
+    }
+
+    /*
+        Replacing the hours of 50 locations, as each sync does: one call, against the same rows
+        as a batch of operations applied a row at a time.
+     */
+    @LargeTest
+    public void testIngestBenchmark() throws Exception {
+        long[] locationIds = insertLocations(BENCHMARK_LOCATIONS);
+        long callMillis = 0;
+        long operationsMillis = 0;
+        for (int sync = 0; sync < BENCHMARK_SYNCS; sync++) {
+            HourlyBatch batch = new HourlyBatch(BENCHMARK_LOCATIONS * HOURS);
+            for (long locationId : locationIds) {
+                // Each sync moves the forecast on by one step, as the real ones do.
+                addHours(batch, locationId, TestUtilities.TEST_DATE_MILLIS + sync * STEP, sync);
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(BENCHMARK_LOCATIONS * HOURS,
+                    batch.replace(mContext.getContentResolver()));
+            callMillis += SystemClock.elapsedRealtime() - start;
+
+            start = SystemClock.elapsedRealtime();
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    batch.toOperations());
+            operationsMillis += SystemClock.elapsedRealtime() - start;
+        }
+        int rows = BENCHMARK_LOCATIONS * HOURS;
+        Log.i(LOG_TAG, "Replacing " + rows + " hours for " + BENCHMARK_LOCATIONS
+                + " locations: one call " + ((double) callMillis / BENCHMARK_SYNCS)
+                + "ms, operations " + ((double) operationsMillis / BENCHMARK_SYNCS)
+                + "ms, mean of " + BENCHMARK_SYNCS + " syncs");
+    }
+
+    /*
+        Reading the next day, and then the whole forecast, for one location among 50.
+     */
+    @LargeTest
+    public void testRangeQueryBenchmark() {
+        long[] locationIds = insertLocations(BENCHMARK_LOCATIONS);
+        HourlyBatch batch = new HourlyBatch(BENCHMARK_LOCATIONS * HOURS);
+        for (long locationId : locationIds) {
+            addHours(batch, locationId, TestUtilities.TEST_DATE_MILLIS, 0);
+        }
+        batch.replace(mContext.getContentResolver());
+
+        long dayMillis = 0;
+        long allMillis = 0;
+        int queries = 0;
+        for (int run = 0; run < QUERY_RUNS; run++) {
+            for (int l = 0; l < BENCHMARK_LOCATIONS; l++) {
+                String locationSetting = "location" + l;
+                long start = SystemClock.elapsedRealtime();
+                assertEquals(8, readAll(HourlyEntry.buildHourlyLocationWithRange(locationSetting,
+                        TestUtilities.TEST_DATE_MILLIS,
+                        TestUtilities.TEST_DATE_MILLIS + 24 * HOUR_IN_MILLIS - 1)));
+                dayMillis += SystemClock.elapsedRealtime() - start;
+
+                start = SystemClock.elapsedRealtime();
+                assertEquals(HOURS, readAll(HourlyEntry.buildHourlyLocation(locationSetting)));
+                allMillis += SystemClock.elapsedRealtime() - start;
+                queries++;
+            }
+        }
+        Log.i(LOG_TAG, "Hourly range queries over " + BENCHMARK_LOCATIONS + " locations: next "
+                + "day " + ((double) dayMillis / queries) + "ms, all " + HOURS + " hours "
+                + ((double) allMillis / queries) + "ms, mean of " + queries + " queries");
+    }
+
+    private int readAll(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        int count = 0;
+        while (cursor.moveToNext()) {
+            cursor.getDouble(cursor.getColumnIndex(HourlyEntry.COLUMN_TEMP));
+            count++;
+        }
+        cursor.close();
+        return count;
+    }
+
+    private long[] insertLocations(int count) {
+        LocationBatch locations = new LocationBatch(count);
+        for (int l = 0; l < count; l++) {
+            locations.add("location" + l, "City " + l, 0, 0);
+        }
+        return locations.insertOrGet(mContext.getContentResolver());
+    }
+
+    private static void addHours(HourlyBatch batch, long locationId, long startTime,
+                                 int offset) {
+        for (int i = 0; i < HOURS; i++) {
+            batch.add(locationId, startTime + i * STEP, TestUtilities.weatherIdOf(i), "Sky",
+                    temperatureOf(i, offset), 40 + i % 50, 1003.42, 1.6, (i * 37) % 360);
+        }
+    }
+
+    private static double temperatureOf(int i, int offset) {
+        return -5.37 + ((i + offset) % 17) * 0.83;
+    }
+}
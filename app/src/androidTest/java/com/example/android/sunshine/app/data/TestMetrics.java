@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
+
+public class TestMetrics extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(MetricsEntry.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(MetricsEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    private static ContentValues createRun(long dbTime) {
+        ContentValues values = new ContentValues();
+        values.put(MetricsEntry.COLUMN_START_TIME, System.currentTimeMillis());
+        values.put(MetricsEntry.COLUMN_LOCATION_SETTING, "99705");
+        values.put(MetricsEntry.COLUMN_DB_TIME, dbTime);
+        values.put(MetricsEntry.COLUMN_RESULT, 0);
+        return values;
+    }
+
+    public void testPercentile() {
+        assertNull(WeatherProvider.percentile(new long[0], 50));
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        assertEquals(50L, (long) WeatherProvider.percentile(sorted, 50));
+        assertEquals(95L, (long) WeatherProvider.percentile(sorted, 95));
+        assertEquals(99L, (long) WeatherProvider.percentile(sorted, 99));
+        assertEquals(7L, (long) WeatherProvider.percentile(new long[]{7}, 99));
+    }
+
+    public void testSummary() {
+        for (int i = 1; i <= 100; i++) {
+            mContext.getContentResolver().insert(MetricsEntry.CONTENT_URI, createRun(i));
+        }
+
+        Cursor summary = mContext.getContentResolver().query(
+                MetricsEntry.SUMMARY_URI, null, null, null, null);
+        assertNotNull(summary);
+        assertEquals("Error: the summary should have a row per stage",
+                MetricsEntry.STAGE_COLUMNS.length, summary.getCount());
+        int stageIndex = summary.getColumnIndex(MetricsEntry.COLUMN_STAGE);
+        int countIndex = summary.getColumnIndex(MetricsEntry.COLUMN_COUNT);
+        boolean sawDb = false;
+        while (summary.moveToNext()) {
+            String stage = summary.getString(stageIndex);
+            if (MetricsEntry.COLUMN_DB_TIME.equals(stage)) {
+                sawDb = true;
+                assertEquals(100, summary.getInt(countIndex));
+                assertEquals(50, summary.getLong(summary.getColumnIndex(MetricsEntry.COLUMN_P50)));
+                assertEquals(95, summary.getLong(summary.getColumnIndex(MetricsEntry.COLUMN_P95)));
+                assertEquals(99, summary.getLong(summary.getColumnIndex(MetricsEntry.COLUMN_P99)));
+            } else {
+                // Stages no run reached are left out of the percentiles, not counted as zero.
+                assertEquals(0, summary.getInt(countIndex));
+                assertTrue(summary.isNull(summary.getColumnIndex(MetricsEntry.COLUMN_P50)));
+            }
+        }
+        summary.close();
+        assertTrue(sawDb);
+    }
+
+    public void testTableIsRolling() {
+        for (int i = 0; i < MetricsEntry.MAX_ROWS + 10; i++) {
+            mContext.getContentResolver().insert(MetricsEntry.CONTENT_URI, createRun(i));
+        }
+        Cursor cursor = mContext.getContentResolver().query(
+                MetricsEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(MetricsEntry.MAX_ROWS, cursor.getCount());
+        cursor.close();
+    }
+}
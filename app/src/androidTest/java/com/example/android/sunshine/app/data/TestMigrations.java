@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Builds the database as each past version of the app left it, upgrades it with the current
+    WeatherDbHelper, and checks that the rows survived and the schema came out the same as a
+    fresh install's.
+ */
+public class TestMigrations extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMigrations.class.getSimpleName();
+
+    private static final int LARGE_LOCATIONS = 500;
+    private static final int LARGE_DAYS = 365;
+
+    // The location table's columns as each version created them.  The weather table was the
+    // same from version 2 to 9.
+    private static final String LOCATION_COLUMNS_V2 =
+            LocationEntry._ID + " INTEGER PRIMARY KEY," +
+            LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+            LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+            LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL";
+    private static final String LOCATION_COLUMNS_V3 = LOCATION_COLUMNS_V2 + ", " +
+            LocationEntry.COLUMN_ETAG + " TEXT, " +
+            LocationEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+            LocationEntry.COLUMN_EXPIRES + " INTEGER NOT NULL DEFAULT 0, " +
+            LocationEntry.COLUMN_CONTENT_LENGTH + " INTEGER NOT NULL DEFAULT 0";
+    private static final String LOCATION_COLUMNS_V4 = LOCATION_COLUMNS_V3 + ", " +
+            LocationEntry.COLUMN_SYNC_STATUS + " INTEGER NOT NULL DEFAULT 3";
+    private static final String LOCATION_COLUMNS_V5 = LOCATION_COLUMNS_V4 + ", " +
+            LocationEntry.COLUMN_CHANGE_HISTORY + " TEXT";
+
+    static final String WEATHER_TABLE_V2 = "CREATE TABLE " + WeatherEntry.TABLE_NAME +
+            " (" + WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+            WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+            WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+            WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+            " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+            " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+            WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        for (int version = WeatherMigrations.OLDEST_MIGRATABLE_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+            SQLiteDatabase old = createDatabase(version);
+            long locationId = old.insert(LocationEntry.TABLE_NAME, null,
+                    TestUtilities.createNorthPoleLocationValues());
+            ContentValues weatherValues = TestUtilities.createWeatherValues(locationId);
+            old.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+            old.close();
+
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            try {
+                assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+                assertSchemaMatchesFreshInstall("from version " + version, db);
+
+                Cursor cursor = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null,
+                        null);
+                TestUtilities.validateCursor("Error: location lost upgrading from version "
+                        + version, cursor, TestUtilities.createNorthPoleLocationValues());
+                cursor.close();
+
+                cursor = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null, null);
+                TestUtilities.validateCursor("Error: weather lost upgrading from version "
+                        + version, cursor, weatherValues);
+                cursor.close();
+            } finally {
+                dbHelper.close();
+            }
+        }
+    }
+
+    public void testUpgradeFromUnmigratableVersionStartsOver() {
+        SQLiteDatabase old = createDatabase(WeatherMigrations.OLDEST_MIGRATABLE_VERSION);
+        old.insert(LocationEntry.TABLE_NAME, null, TestUtilities.createNorthPoleLocationValues());
+        old.setVersion(WeatherMigrations.OLDEST_MIGRATABLE_VERSION - 1);
+        old.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            assertSchemaMatchesFreshInstall("from version 1", db);
+            Cursor cursor = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null,
+                    null);
+            assertEquals("Error: a database too old to migrate should be recreated", 0,
+                    cursor.getCount());
+            cursor.close();
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+        How long the upgrade from the oldest version takes with a year of forecast for 500
+        locations stored.  Only logged: what's too slow depends on the device.
+     */
+    @LargeTest
+    public void testUpgradeLatencyOnLargeDatabase() {
+        SQLiteDatabase old = createDatabase(WeatherMigrations.OLDEST_MIGRATABLE_VERSION);
+        fill(old);
+        old.close();
+        long size = new File(mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME).getPath())
+                .length();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.i(LOG_TAG, "Upgraded " + size / 1024 + "KB from version "
+                    + WeatherMigrations.OLDEST_MIGRATABLE_VERSION + " to "
+                    + WeatherDbHelper.DATABASE_VERSION + " in " + elapsed + "ms");
+
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + WeatherEntry.TABLE_NAME, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(LARGE_LOCATIONS * LARGE_DAYS, cursor.getInt(0));
+            cursor.close();
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    // The database as the app at that version would have created it.
+    private SQLiteDatabase createDatabase(int version) {
+        String locationColumns;
+        switch (version) {
+            case 2: locationColumns = LOCATION_COLUMNS_V2; break;
+            case 3: locationColumns = LOCATION_COLUMNS_V3; break;
+            case 4: locationColumns = LOCATION_COLUMNS_V4; break;
+            default: locationColumns = LOCATION_COLUMNS_V5; break;
+        }
+        File path = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        db.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " (" + locationColumns + " );");
+        db.execSQL(WEATHER_TABLE_V2);
+        // Most of what versions 6 to 9 added is still current; build it the same way.
+        if (version >= 6) {
+            copyFromFreshInstall(db, WeatherContract.MetricsEntry.TABLE_NAME);
+        }
+        if (version >= 7) {
+            // Until version 10 it was on the weather table itself.
+            db.execSQL("CREATE INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX + " ON "
+                    + WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", "
+                    + WeatherEntry.COLUMN_DATE + ")");
+        }
+        if (version >= 8) {
+            copyFromFreshInstall(db, WeatherContract.ArchiveEntry.TABLE_NAME);
+            copyFromFreshInstall(db, WeatherContract.ArchiveEntry.DESCRIPTION_TABLE_NAME);
+        }
+        if (version >= 9) {
+            copyFromFreshInstall(db, WeatherContract.HourlyEntry.TABLE_NAME);
+        }
+        db.setVersion(version);
+        return db;
+    }
+
+    private void copyFromFreshInstall(SQLiteDatabase db, String name) {
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(fresh);
+            Cursor cursor = fresh.rawQuery("SELECT sql FROM sqlite_master WHERE name=?",
+                    new String[]{name});
+            assertTrue(cursor.moveToFirst());
+            db.execSQL(cursor.getString(0));
+            cursor.close();
+        } finally {
+            fresh.close();
+        }
+    }
+
+    private static void fill(SQLiteDatabase db) {
+        SQLiteStatement insertWeather = db.compileStatement("INSERT INTO "
+                + WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_SHORT_DESC + ", "
+                + WeatherEntry.COLUMN_WEATHER_ID + ", " + WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherEntry.COLUMN_MAX_TEMP + ", " + WeatherEntry.COLUMN_HUMIDITY + ", "
+                + WeatherEntry.COLUMN_PRESSURE + ", " + WeatherEntry.COLUMN_WIND_SPEED + ", "
+                + WeatherEntry.COLUMN_DEGREES + ") VALUES (?, ?, 'Asteroids', 321, 65, 75, 1.2, "
+                + "1.3, 5.5, 1.1)");
+        db.beginTransaction();
+        try {
+            for (int l = 0; l < LARGE_LOCATIONS; l++) {
+                ContentValues location = new ContentValues();
+                location.put(LocationEntry.COLUMN_LOCATION_SETTING, "location" + l);
+                location.put(LocationEntry.COLUMN_CITY_NAME, "City " + l);
+                location.put(LocationEntry.COLUMN_COORD_LAT, 0);
+                location.put(LocationEntry.COLUMN_COORD_LONG, 0);
+                long locationId = db.insert(LocationEntry.TABLE_NAME, null, location);
+                for (int d = 0; d < LARGE_DAYS; d++) {
+                    insertWeather.bindLong(1, locationId);
+                    insertWeather.bindLong(2, TestUtilities.TEST_DATE + d * 86400000L);
+                    insertWeather.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertWeather.close();
+        }
+    }
+
+    private void assertSchemaMatchesFreshInstall(String context, SQLiteDatabase upgraded) {
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(fresh);
+            assertEquals("Error: indexes differ upgrading " + context,
+                    describeIndexes(fresh), describeIndexes(upgraded));
+            for (String table : new String[]{LocationEntry.TABLE_NAME, WeatherEntry.TABLE_NAME,
+                    WeatherStorage.TABLE_NAME, WeatherContract.MetricsEntry.TABLE_NAME,
+                    WeatherContract.ArchiveEntry.TABLE_NAME,
+                    WeatherContract.ArchiveEntry.DESCRIPTION_TABLE_NAME,
+                    WeatherContract.HourlyEntry.TABLE_NAME}) {
+                assertEquals("Error: " + table + " differs upgrading " + context,
+                        describeTable(fresh, table), describeTable(upgraded, table));
+            }
+        } finally {
+            fresh.close();
+        }
+    }
+
+    // Each column's name, type, NOT NULL, default and primary key position, in table order.
+    private static List<String> describeTable(SQLiteDatabase db, String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndex("name")) + " "
+                        + cursor.getString(cursor.getColumnIndex("type")) + " "
+                        + cursor.getInt(cursor.getColumnIndex("notnull")) + " "
+                        + cursor.getString(cursor.getColumnIndex("dflt_value")) + " "
+                        + cursor.getInt(cursor.getColumnIndex("pk")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    private static List<String> describeIndexes(SQLiteDatabase db) {
+        List<String> indexes = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name, tbl_name FROM sqlite_master "
+                + "WHERE type='index' ORDER BY name", null);
+        try {
+            while (cursor.moveToNext()) {
+                indexes.add(cursor.getString(0) + " ON " + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return indexes;
+    }
+}
@@ -30,6 +30,12 @@ import android.util.Log;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -179,7 +185,7 @@ public class TestProvider extends AndroidTestCase {
         // Fantastic.  Now that we have a location, add some weather!
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
 
-        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        long weatherRowId = WeatherStorage.insert(db, weatherValues);
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
 
         db.close();
@@ -286,6 +292,173 @@ public class TestProvider extends AndroidTestCase {
         cursor.close();
     }
 
+    /*
+        Inserting through the upsert URI twice should leave one row, updated by the second.
+     */
+    public void testUpsertLocation() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.UPSERT_URI, values));
+        assertTrue(locationRowId != -1);
+
+        ContentValues updatedValues = new ContentValues(values);
+        updatedValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        long upsertedRowId = ContentUris.parseId(mContext.getContentResolver()
+                .insert(LocationEntry.UPSERT_URI, updatedValues));
+        assertEquals("Error: upserting an existing location should return its row",
+                locationRowId, upsertedRowId);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        TestUtilities.validateCursor("testUpsertLocation.  Error validating upserted location.",
+                cursor, updatedValues);
+    }
+
+    /*
+        One call should insert the new locations, return the stored ones' ids, and refresh the
+        name and coordinates of those that moved, without touching the ones that didn't.
+     */
+    public void testInsertOrGetLocations() {
+        ContentValues stored = TestUtilities.createNorthPoleLocationValues();
+        long storedRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, stored));
+        String storedSetting = stored.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+
+        LocationBatch batch = new LocationBatch(1);
+        batch.add(storedSetting, "Santa's Village", 64.75, -147.35);
+        batch.add("94043", "Mountain View", 37.39, -122.08);
+        batch.add("94043", "Mountain View", 37.39, -122.08);
+
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                observer);
+        long[] ids = batch.insertOrGet(mContext.getContentResolver());
+        observer.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        assertEquals(3, ids.length);
+        assertEquals("Error: a stored location should keep its row", storedRowId, ids[0]);
+        assertTrue(ids[1] != -1 && ids[1] != storedRowId);
+        assertEquals("Error: a location repeated in the batch should be stored once",
+                ids[1], ids[2]);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                null, null, null);
+        assertNotNull(cursor);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(storedRowId)}, null);
+        TestUtilities.validateCursor("testInsertOrGetLocations.  Error refreshing location.",
+                cursor, batch.toContentValues(0));
+
+        long[] again = batch.insertOrGet(mContext.getContentResolver());
+        assertTrue("Error: the same locations again should get the same ids",
+                Arrays.equals(ids, again));
+    }
+
+    /*
+        Reading a location's days a page at a time, each page keyed by the last date of the one
+        before, should return every day once and in order.
+     */
+    public void testWeatherPaging() {
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+        String locationSetting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        ContentValues[] days = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+
+        String[] projection = {WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_COORD_LAT};
+        int pageSize = 3;
+        long afterDate = Long.MIN_VALUE;
+        List<Long> dates = new ArrayList<Long>();
+        int pages = 0;
+        while (true) {
+            Cursor page = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocationPage(locationSetting, 0, afterDate,
+                            pageSize), projection, null, null, null);
+            assertNotNull(page);
+            assertTrue("Error: a page should hold at most the limit", page.getCount() <= pageSize);
+            pages++;
+            while (page.moveToNext()) {
+                dates.add(page.getLong(0));
+            }
+            int count = page.getCount();
+            page.close();
+            if (count < pageSize) {
+                break;
+            }
+            afterDate = dates.get(dates.size() - 1);
+        }
+
+        assertEquals((BULK_INSERT_RECORDS_TO_INSERT + pageSize - 1) / pageSize, pages);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, dates.size());
+        for (int i = 0; i < days.length; i++) {
+            assertEquals("Error: paged day " + i,
+                    days[i].getAsLong(WeatherEntry.COLUMN_DATE), dates.get(i));
+        }
+    }
+
+    /*
+        A projection without location columns is read from the weather table alone; it should
+        return what the join does, and follow a location whose setting changes.
+     */
+    public void testWeatherOnlyProjectionMatchesJoin() {
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+        String locationSetting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        String[] weatherOnly = {
+                WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_LOCATION_SETTING
+        };
+        String[] joined = {
+                WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_LOCATION_SETTING,
+                LocationEntry.COLUMN_CITY_NAME
+        };
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+        Uri uri = WeatherEntry.buildWeatherLocation(locationSetting);
+        Cursor direct = mContext.getContentResolver().query(uri, weatherOnly, null, null,
+                sortOrder);
+        Cursor join = mContext.getContentResolver().query(uri, joined, null, null, sortOrder);
+        assertNotNull(direct);
+        assertNotNull(join);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, direct.getCount());
+        assertEquals(join.getCount(), direct.getCount());
+        while (direct.moveToNext() && join.moveToNext()) {
+            for (int i = 0; i < weatherOnly.length; i++) {
+                assertEquals("Error: " + direct.getColumnName(i) + " differs from the join",
+                        join.getString(i), direct.getString(i));
+            }
+        }
+        direct.close();
+        join.close();
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_LOCATION_SETTING, "renamed");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, renamed,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)});
+        Cursor old = mContext.getContentResolver().query(uri, weatherOnly, null, null, sortOrder);
+        assertNotNull(old);
+        assertEquals("Error: the old setting should no longer find the weather",
+                0, old.getCount());
+        old.close();
+        Cursor current = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("renamed"), weatherOnly, null, null, sortOrder);
+        assertNotNull(current);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, current.getCount());
+        current.close();
+    }
 
     // Make sure we can still delete after adding/updating stuff
     //
@@ -512,4 +685,51 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Writes should notify only the days they touched, so a screen showing one day isn't
+        requeried because another changed.  Only checkable where onChange is passed the URI.
+     */
+    public void testWeatherNotificationsByDay() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+        String locationSetting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        ContentValues[] days = createBulkInsertWeatherValues(locationRowId);
+
+        TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, observer);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+        List<Uri> uris = new ArrayList<Uri>(
+                observer.waitForUrisOrFail(BULK_INSERT_RECORDS_TO_INSERT));
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        // The provider wrote the normalized dates back into the values.
+        HashSet<Uri> expected = new HashSet<Uri>();
+        for (ContentValues day : days) {
+            expected.add(WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                    day.getAsLong(WeatherEntry.COLUMN_DATE)));
+        }
+        assertEquals("Error: a bulk insert should notify each day it wrote, once",
+                BULK_INSERT_RECORDS_TO_INSERT, uris.size());
+        assertEquals(expected, new HashSet<Uri>(uris));
+
+        ContentValues humidity = new ContentValues();
+        humidity.put(WeatherEntry.COLUMN_HUMIDITY, 99);
+        observer = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, observer);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, humidity,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{days[3].getAsString(WeatherEntry.COLUMN_DATE)});
+        uris = new ArrayList<Uri>(observer.waitForUrisOrFail(1));
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        assertEquals("Error: updating one day should notify only that day",
+                Collections.singletonList(WeatherEntry.buildWeatherLocationWithDate(
+                        locationSetting, days[3].getAsLong(WeatherEntry.COLUMN_DATE))),
+                uris);
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+public class TestQueryCache extends AndroidTestCase {
+
+    private String mLocationSetting;
+    private ContentValues[] mDays;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        mLocationSetting = location.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+        // bulkInsert writes the normalized dates back into the values.
+        mDays = TestProvider.createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, mDays);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    public void testRepeatedQueryIsServedFromCache() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        Uri today = dayUri(0);
+        int[] before = getStats();
+        Cursor first = mContext.getContentResolver().query(today, null, null, null, null);
+        Cursor second = mContext.getContentResolver().query(today, null, null, null, null);
+        int[] after = getStats();
+
+        assertEquals("Error: the first query should miss", 1, after[1] - before[1]);
+        assertEquals("Error: the repeated query should hit", 1, after[0] - before[0]);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(1, second.getCount());
+        assertTrue(first.moveToFirst());
+        assertTrue(second.moveToFirst());
+        for (int i = 0; i < first.getColumnCount(); i++) {
+            assertEquals("Error: the cached " + first.getColumnName(i) + " differs",
+                    first.getString(i), second.getString(i));
+        }
+        first.close();
+        second.close();
+    }
+
+    public void testWritesInvalidateOnlyTheirDays() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        query(dayUri(0));
+        query(dayUri(5));
+
+        ContentValues humidity = new ContentValues();
+        humidity.put(WeatherEntry.COLUMN_HUMIDITY, 99);
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, humidity,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{mDays[5].getAsString(WeatherEntry.COLUMN_DATE)});
+
+        int[] before = getStats();
+        query(dayUri(0));
+        Cursor changed = mContext.getContentResolver().query(dayUri(5),
+                new String[]{WeatherEntry.COLUMN_HUMIDITY}, null, null, null);
+        int[] after = getStats();
+
+        assertEquals("Error: an untouched day should still be cached", 1, after[0] - before[0]);
+        assertEquals("Error: the updated day should be read again", 1, after[1] - before[1]);
+        assertNotNull(changed);
+        assertTrue(changed.moveToFirst());
+        assertEquals(99, changed.getInt(0));
+        changed.close();
+    }
+
+    /*
+        A sync that found the forecast unchanged only writes the location's sync state, and the
+        widget, Muzei, the notification and the detail screen that read today after it should
+        still find it cached.
+     */
+    public void testUnchangedSyncBatchKeepsTodayCached() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        query(dayUri(0));
+
+        ContentValues syncState = new ContentValues();
+        syncState.put(LocationEntry.COLUMN_ETAG, "\"v2\"");
+        syncState.put(LocationEntry.COLUMN_EXPIRES, System.currentTimeMillis() + 60000);
+        syncState.put(LocationEntry.COLUMN_CHANGE_HISTORY, "0,0");
+        syncState.put(LocationEntry.COLUMN_SYNC_STATUS, 0);
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withSelection(LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{mLocationSetting})
+                .withValues(syncState)
+                .build());
+        assertEquals(1, mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations)[0].count.intValue());
+        // Storing another location doesn't change this one's weather either.
+        TestUtilities.insertLocation(mContext, "elsewhere");
+
+        int[] before = getStats();
+        query(dayUri(0));
+        int[] after = getStats();
+        assertEquals("Error: today should still be cached after an unchanged sync", 1,
+                after[0] - before[0]);
+        assertEquals(0, after[1] - before[1]);
+    }
+
+    /*
+        A query that was running while a write came in mustn't cache what it read.
+     */
+    public void testStaleResultIsNotCached() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        QueryCache cache = new QueryCache();
+        long generation = cache.getGeneration();
+        cache.invalidate(dayUri(0));
+        Cursor returned = cache.put("key", generation, mLocationSetting, 0, Long.MAX_VALUE,
+                singleRow());
+        assertEquals(1, returned.getCount());
+        returned.close();
+        assertNull(cache.get("key"));
+
+        cache.put("key", cache.getGeneration(), mLocationSetting, 0, Long.MAX_VALUE,
+                singleRow()).close();
+        cache.invalidate(WeatherContract.ArchiveEntry.CONTENT_URI);
+        cache.invalidate(WeatherEntry.buildWeatherLocation("elsewhere"));
+        cache.invalidate(LocationEntry.buildLocationSettingUri("elsewhere"));
+        cache.invalidate(LocationEntry.SYNC_STATE_URI);
+        Cursor cached = cache.get("key");
+        assertNotNull("Error: unrelated changes shouldn't drop the entry", cached);
+        cached.close();
+        cache.invalidate(LocationEntry.buildLocationSettingUri(mLocationSetting));
+        assertNull("Error: a change to the location should drop its entries",
+                cache.get("key"));
+
+        cache.put("key", cache.getGeneration(), mLocationSetting, 0, Long.MAX_VALUE,
+                singleRow()).close();
+        cache.invalidate(LocationEntry.CONTENT_URI);
+        assertNull("Error: a location change should drop everything", cache.get("key"));
+    }
+
+    private Uri dayUri(int day) {
+        return WeatherEntry.buildWeatherLocationWithDate(mLocationSetting,
+                mDays[day].getAsLong(WeatherEntry.COLUMN_DATE));
+    }
+
+    private void query(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        cursor.close();
+    }
+
+    // {hits, misses}
+    private int[] getStats() {
+        Bundle stats = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_QUERY_CACHE_STATS, null, null);
+        assertNotNull(stats);
+        return new int[]{stats.getInt(WeatherContract.KEY_QUERY_CACHE_HITS),
+                stats.getInt(WeatherContract.KEY_QUERY_CACHE_MISSES)};
+    }
+
+    private static Cursor singleRow() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{WeatherEntry.COLUMN_HUMIDITY});
+        cursor.addRow(new Object[]{1.2});
+        return cursor;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that SQLite answers each weather URI from an index.  If a schema change or a new
+    selection makes any of them fall back to scanning the weather table, these fail.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final int LOCATIONS = 500;
+    private static final int DAYS = 365;
+    private static final int QUERY_RUNS = 20;
+    private static final int PAGE_SIZE = 30;
+
+    // The sort ForecastFragment asks for.
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testIndexCreated() {
+        Cursor c = mDb.rawQuery("SELECT name FROM sqlite_master WHERE type='index' AND name=?",
+                new String[]{WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX});
+        try {
+            assertTrue("Error: the location/date index was not created", c.moveToFirst());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testWeatherWithLocationPlan() {
+        assertNoFullScan("weather/*", buildQuery(WeatherProvider.sLocationSettingSelection),
+                new String[]{TestUtilities.TEST_LOCATION});
+    }
+
+    public void testWeatherWithLocationAndStartDatePlan() {
+        assertNoFullScan("weather/*?date=",
+                buildQuery(WeatherProvider.sLocationSettingWithStartDateSelection),
+                new String[]{TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE)});
+    }
+
+    public void testWeatherWithLocationAndDatePlan() {
+        assertNoFullScan("weather/*/#", buildQuery(WeatherProvider.sLocationSettingAndDaySelection),
+                new String[]{TestUtilities.TEST_LOCATION, Long.toString(TestUtilities.TEST_DATE)});
+    }
+
+    // The same URIs once the location setting has been resolved to its id.
+
+    public void testWeatherByLocationIdPlan() {
+        assertNoFullScan("weather/* by id",
+                buildWeatherOnlyQuery(WeatherProvider.sLocationIdSelection), new String[]{"1"});
+    }
+
+    public void testWeatherByLocationIdAndStartDatePlan() {
+        assertNoFullScan("weather/*?date= by id",
+                buildWeatherOnlyQuery(WeatherProvider.sLocationIdWithStartDateSelection),
+                new String[]{"1", Long.toString(TestUtilities.TEST_DATE)});
+    }
+
+    public void testWeatherByLocationIdAndDatePlan() {
+        assertNoFullScan("weather/*/# by id",
+                buildWeatherOnlyQuery(WeatherProvider.sLocationIdAndDaySelection),
+                new String[]{"1", Long.toString(TestUtilities.TEST_DATE)});
+    }
+
+    /*
+        Loads a year of forecast for 500 locations and logs how long each URI takes, to compare
+        against the same run before a schema change.
+     */
+    @LargeTest
+    public void testQueryLatency() {
+        long start = SystemClock.elapsedRealtime();
+        loadTestData();
+        Log.i(LOG_TAG, "Loaded " + LOCATIONS + " locations x " + DAYS + " days in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        String location = "location" + (LOCATIONS / 2);
+        String date = Long.toString(TestUtilities.TEST_DATE + (DAYS / 2) * 86400000L);
+
+        logLatency("weather/*", buildQuery(WeatherProvider.sLocationSettingSelection),
+                new String[]{location});
+        logLatency("weather/*?date=",
+                buildQuery(WeatherProvider.sLocationSettingWithStartDateSelection),
+                new String[]{location, date});
+        logLatency("weather/*/#", buildQuery(WeatherProvider.sLocationSettingAndDaySelection),
+                new String[]{location, date});
+
+        // A page of a long range, at its start and deep into it: keyset paging should cost the
+        // same at both.
+        String page = Integer.toString(PAGE_SIZE);
+        logLatency("weather/*?date=&limit= first page",
+                buildQuery(WeatherProvider.sLocationSettingWithStartDateSelection, page),
+                new String[]{location, Long.toString(TestUtilities.TEST_DATE)});
+        logLatency("weather/*?date=&limit= deep page",
+                buildQuery(WeatherProvider.sLocationSettingWithStartDateSelection, page),
+                new String[]{location, Long.toString(
+                        TestUtilities.TEST_DATE + (DAYS - PAGE_SIZE) * 86400000L)});
+
+        // And without the join, as the provider reads them once it knows the location's id.
+        String locationId = Long.toString(DatabaseUtils.longForQuery(mDb, "SELECT "
+                + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME + " WHERE "
+                + LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{location}));
+        logLatency("weather/* by id", buildWeatherOnlyQuery(WeatherProvider.sLocationIdSelection),
+                new String[]{locationId});
+        logLatency("weather/*?date= by id",
+                buildWeatherOnlyQuery(WeatherProvider.sLocationIdWithStartDateSelection),
+                new String[]{locationId, date});
+        logLatency("weather/*/# by id",
+                buildWeatherOnlyQuery(WeatherProvider.sLocationIdAndDaySelection),
+                new String[]{locationId, date});
+    }
+
+    private String buildQuery(String selection) {
+        return buildQuery(selection, null);
+    }
+
+    private String buildQuery(String selection, String limit) {
+        return WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                null, selection, null, null, SORT_ORDER, limit);
+    }
+
+    private String buildWeatherOnlyQuery(String selection) {
+        return SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME, null,
+                selection, null, null, SORT_ORDER, null);
+    }
+
+    private void assertNoFullScan(String uriPattern, String sql, String[] selectionArgs) {
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            assertTrue("Error: no query plan for " + uriPattern, c.moveToFirst());
+            int detailColumn = c.getColumnIndex("detail");
+            do {
+                String detail = c.getString(detailColumn);
+                Log.d(LOG_TAG, uriPattern + ": " + detail);
+                // "SCAN TABLE weather" on older SQLite, "SCAN weather" on newer; an indexed
+                // step reads "SEARCH ... USING INDEX".
+                assertFalse("Error: " + uriPattern + " scans the whole table: " + detail,
+                        detail.startsWith("SCAN") && !detail.contains("USING"));
+                assertFalse("Error: " + uriPattern + " sorts in a temporary b-tree: " + detail,
+                        detail.contains("TEMP B-TREE"));
+            } while (c.moveToNext());
+        } finally {
+            c.close();
+        }
+    }
+
+    private void logLatency(String uriPattern, String sql, String[] selectionArgs) {
+        long total = 0;
+        long worst = 0;
+        for (int i = 0; i < QUERY_RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor c = mDb.rawQuery(sql, selectionArgs);
+            try {
+                // Walk every row, the way a list would.
+                while (c.moveToNext()) {
+                    c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            total += elapsed;
+            worst = Math.max(worst, elapsed);
+        }
+        Log.i(LOG_TAG, uriPattern + ": mean " + (total / QUERY_RUNS) + "ms, worst " + worst
+                + "ms over " + QUERY_RUNS + " runs");
+    }
+
+    private void loadTestData() {
+        SQLiteStatement insertLocation = mDb.compileStatement("INSERT INTO "
+                + LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_LOCATION_SETTING + ", "
+                + LocationEntry.COLUMN_CITY_NAME + ", " + LocationEntry.COLUMN_COORD_LAT + ", "
+                + LocationEntry.COLUMN_COORD_LONG + ") VALUES (?, ?, 0, 0)");
+        SQLiteStatement insertWeather = mDb.compileStatement("INSERT INTO "
+                + WeatherStorage.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", " + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", " + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", " + WeatherEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, 321, 6500, 7500, 120, 130, 550, 110)");
+        // Stored as WeatherStorage has it; the plans are for the weather view over it.
+        mDb.beginTransaction();
+        try {
+            for (int l = 0; l < LOCATIONS; l++) {
+                insertLocation.bindString(1, "location" + l);
+                insertLocation.bindString(2, "City " + l);
+                long locationId = insertLocation.executeInsert();
+                for (int d = 0; d < DAYS; d++) {
+                    insertWeather.bindLong(1, locationId);
+                    insertWeather.bindLong(2, TestUtilities.TEST_DATE + d * 86400000L);
+                    insertWeather.executeInsert();
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insertLocation.close();
+            insertWeather.close();
+        }
+        mDb.execSQL("ANALYZE");
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+
+public class TestStorageFormat extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestStorageFormat.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final int RETENTION_DAYS = 2000;
+
+    private static final String LEGACY_DATABASE = "legacy_format.db";
+    private static final String COMPACT_DATABASE = "compact_format.db";
+    private static final int BENCHMARK_LOCATIONS = 50;
+    private static final int BENCHMARK_DAYS = 365;
+    private static final int QUERY_RUNS = 20;
+
+    private static final int[] WEATHER_IDS = {800, 801, 500, 600};
+    private static final String[] DESCRIPTIONS = {"Clear", "Clouds", "Rain", "Snow"};
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        mContext.deleteDatabase(LEGACY_DATABASE);
+        mContext.deleteDatabase(COMPACT_DATABASE);
+        super.tearDown();
+    }
+
+    public void testRowsStoredInHundredths() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+        ContentValues tomorrow = new ContentValues(weatherValues);
+        tomorrow.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + DAY_IN_MILLIS);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, tomorrow);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            SQLiteDatabase db = dbHelper.getReadableDatabase();
+            Cursor stored = db.rawQuery("SELECT typeof(" + WeatherEntry.COLUMN_MIN_TEMP + "), "
+                    + WeatherEntry.COLUMN_MIN_TEMP + ", " + WeatherEntry.COLUMN_HUMIDITY + " FROM "
+                    + WeatherStorage.TABLE_NAME + " ORDER BY " + WeatherEntry.COLUMN_DATE, null);
+            assertTrue(stored.moveToFirst());
+            assertEquals("Error: measurements should be stored as integers", "integer",
+                    stored.getString(0));
+            assertEquals(6500, stored.getLong(1));
+            assertEquals(120, stored.getLong(2));
+            stored.close();
+
+            assertEquals("Error: a description should be stored once for its weather id", 1,
+                    DatabaseUtils.queryNumEntries(db, WeatherStorage.DESCRIPTION_TABLE_NAME));
+        } finally {
+            dbHelper.close();
+        }
+
+        // And read back as they went in.
+        Cursor weather = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE), null, null, null, null);
+        TestUtilities.validateCursor("Error: weather should decode as it was inserted", weather,
+                weatherValues);
+        weather.close();
+    }
+
+    public void testIncrementalAutoVacuumEnabled() {
+        // What the sync does after its checkpoint; it's a no-op once the database is rebuilt.
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_ENABLE_INCREMENTAL_VACUUM, null, null);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            assertTrue("Error: enabling it again should succeed without a rebuild",
+                    dbHelper.enableIncrementalVacuum());
+            assertEquals("Error: auto_vacuum should be INCREMENTAL", 2,
+                    DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                            "PRAGMA auto_vacuum", null));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    public void testRetentionDeleteReclaimsPages() {
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_ENABLE_INCREMENTAL_VACUUM, null, null);
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        WeatherBatch batch = new WeatherBatch(RETENTION_DAYS);
+        for (int i = 0; i < RETENTION_DAYS; i++) {
+            addDay(batch, locationRowId, i);
+        }
+        assertEquals(RETENTION_DAYS, batch.insert(mContext.getContentResolver()));
+
+        long cutoff = WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE_MILLIS + (RETENTION_DAYS - 10) * DAY_IN_MILLIS);
+        int deleted = mContext.getContentResolver().delete(WeatherEntry.ARCHIVING_URI,
+                WeatherEntry.COLUMN_DATE + " < ?", new String[]{Long.toString(cutoff)});
+        assertEquals(RETENTION_DAYS - 10, deleted);
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            assertEquals("Error: the retention delete should leave no free pages", 0,
+                    DatabaseUtils.longForQuery(dbHelper.getReadableDatabase(),
+                            "PRAGMA freelist_count", null));
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+        Version 9's storage against today's, for the same year of forecast for 50 locations:
+        the file size, the bytes a row takes, the pages a weather/* query reads and how long it
+        takes.  Android doesn't expose SQLite's page counters, so the pages read are estimated
+        from the rows read and the rows each page holds.
+     */
+    @LargeTest
+    public void testStorageBenchmark() {
+        SQLiteDatabase legacy = createScratchDatabase(LEGACY_DATABASE);
+        SQLiteDatabase compact = createScratchDatabase(COMPACT_DATABASE);
+        try {
+            legacy.execSQL(TestMigrations.WEATHER_TABLE_V2);
+            legacy.execSQL("CREATE INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX
+                    + " ON " + WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY
+                    + ", " + WeatherEntry.COLUMN_DATE + ")");
+            fillLegacy(legacy);
+
+            compact.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            new WeatherDbHelper(mContext).onCreate(compact);
+            fillCompact(compact);
+
+            logStorage("version 9 format", legacy, LEGACY_DATABASE);
+            logStorage("compact format", compact, COMPACT_DATABASE);
+        } finally {
+            legacy.close();
+            compact.close();
+        }
+    }
+
+    private SQLiteDatabase createScratchDatabase(String name) {
+        mContext.deleteDatabase(name);
+        File path = mContext.getDatabasePath(name);
+        path.getParentFile().mkdirs();
+        return SQLiteDatabase.openOrCreateDatabase(path, null);
+    }
+
+    private static void addDay(WeatherBatch batch, long locationRowId, int day) {
+        int condition = day % WEATHER_IDS.length;
+        batch.add(locationRowId, TestUtilities.TEST_DATE_MILLIS + day * DAY_IN_MILLIS,
+                DESCRIPTIONS[condition], WEATHER_IDS[condition], -5.37 + (day % 17) * 0.83,
+                3.21 + (day % 13) * 1.17, 40 + day % 50, 996.4 + (day % 29) * 0.91,
+                1.6 + (day % 7) * 0.45, (day * 37) % 360);
+    }
+
+    private static void fillLegacy(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + WeatherEntry.TABLE_NAME
+                + " (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_SHORT_DESC + ", " + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", " + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", " + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", " + WeatherEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int l = 1; l <= BENCHMARK_LOCATIONS; l++) {
+                WeatherBatch batch = new WeatherBatch(BENCHMARK_DAYS);
+                for (int d = 0; d < BENCHMARK_DAYS; d++) {
+                    addDay(batch, l, d + l);
+                }
+                for (ContentValues day : batch.toContentValues()) {
+                    insert.bindLong(1, l);
+                    insert.bindLong(2, day.getAsLong(WeatherEntry.COLUMN_DATE));
+                    insert.bindString(3, day.getAsString(WeatherEntry.COLUMN_SHORT_DESC));
+                    insert.bindLong(4, day.getAsLong(WeatherEntry.COLUMN_WEATHER_ID));
+                    int index = 5;
+                    for (String column : WeatherStorage.SCALED_COLUMNS) {
+                        insert.bindDouble(index++, day.getAsDouble(column));
+                    }
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    private static void fillCompact(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            for (int l = 1; l <= BENCHMARK_LOCATIONS; l++) {
+                WeatherBatch batch = new WeatherBatch(BENCHMARK_DAYS);
+                for (int d = 0; d < BENCHMARK_DAYS; d++) {
+                    addDay(batch, l, d + l);
+                }
+                for (ContentValues day : batch.toContentValues()) {
+                    assertTrue(WeatherStorage.insert(db, day) != -1);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void logStorage(String format, SQLiteDatabase db, String name) {
+        db.execSQL("VACUUM");
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long rows = (long) BENCHMARK_LOCATIONS * BENCHMARK_DAYS;
+        long bytes = pageSize * pageCount;
+        double bytesPerRow = (double) bytes / rows;
+        // A location's rows are read in index order, but were inserted location by location so
+        // sit together in the table; the index pages they take are a small part of the total.
+        double pagesPerQuery = Math.ceil(BENCHMARK_DAYS * bytesPerRow / pageSize);
+
+        long total = 0;
+        for (int i = 0; i < QUERY_RUNS; i++) {
+            String location = Integer.toString(1 + i % BENCHMARK_LOCATIONS);
+            long start = SystemClock.elapsedRealtime();
+            Cursor c = db.query(WeatherEntry.TABLE_NAME, null,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{location}, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            try {
+                // Walk every row, the way a list would.
+                while (c.moveToNext()) {
+                    c.getString(c.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC));
+                    c.getDouble(c.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP));
+                }
+            } finally {
+                c.close();
+            }
+            total += SystemClock.elapsedRealtime() - start;
+        }
+
+        Log.i(LOG_TAG, format + ": " + bytes / 1024 + "KB in " + pageCount + " pages of "
+                + pageSize + " (" + new File(mContext.getDatabasePath(name).getPath()).length()
+                / 1024 + "KB on disk), " + String.format("%.1f", bytesPerRow) + " bytes per row, ~"
+                + (long) pagesPerQuery + " pages per weather/* query, "
+                + ((double) total / QUERY_RUNS) + "ms mean of " + QUERY_RUNS + " runs");
+    }
+}
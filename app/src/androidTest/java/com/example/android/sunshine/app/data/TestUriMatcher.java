@@ -34,8 +34,20 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    private static final Uri TEST_WEATHER_SUMMARY_DIR = WeatherContract.WeatherEntry.buildWeatherSummary(LOCATION_QUERY, TEST_DATE, TEST_DATE);
+    private static final Uri TEST_WEATHER_CONDITIONS_DIR = WeatherContract.WeatherEntry.buildWeatherConditions(LOCATION_QUERY, TEST_DATE, TEST_DATE);
+    private static final Uri TEST_WEATHER_FIRST_MATCH_DIR = WeatherContract.WeatherEntry.buildWeatherFirstMatch(LOCATION_QUERY, TEST_DATE, TEST_DATE, 500, 531);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/metrics"
+    private static final Uri TEST_METRICS_DIR = WeatherContract.MetricsEntry.CONTENT_URI;
+    private static final Uri TEST_METRICS_SUMMARY_DIR = WeatherContract.MetricsEntry.SUMMARY_URI;
+    // content://com.example.android.sunshine.app/archive/London, UK"
+    private static final Uri TEST_ARCHIVE_WITH_LOCATION_DIR = WeatherContract.ArchiveEntry.buildArchiveLocation(LOCATION_QUERY);
+    private static final Uri TEST_ARCHIVE_SUMMARY_DIR = WeatherContract.ArchiveEntry.buildArchiveSummaryWithRange(LOCATION_QUERY, TEST_DATE, TEST_DATE);
+    // content://com.example.android.sunshine.app/hourly"
+    private static final Uri TEST_HOURLY_DIR = WeatherContract.HourlyEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_WITH_LOCATION_DIR = WeatherContract.HourlyEntry.buildHourlyLocationWithRange(LOCATION_QUERY, TEST_DATE, TEST_DATE);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -51,7 +63,25 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_SUMMARY_DIR), WeatherProvider.WEATHER_SUMMARY);
+        assertEquals("Error: The WEATHER CONDITIONS URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_CONDITIONS_DIR), WeatherProvider.WEATHER_CONDITIONS);
+        assertEquals("Error: The WEATHER FIRST MATCH URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_FIRST_MATCH_DIR), WeatherProvider.WEATHER_FIRST_MATCH);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The METRICS URI was matched incorrectly.",
+                testMatcher.match(TEST_METRICS_DIR), WeatherProvider.METRICS);
+        assertEquals("Error: The METRICS SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_METRICS_SUMMARY_DIR), WeatherProvider.METRICS_SUMMARY);
+        assertEquals("Error: The ARCHIVE WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_WITH_LOCATION_DIR), WeatherProvider.ARCHIVE_WITH_LOCATION);
+        assertEquals("Error: The ARCHIVE SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_SUMMARY_DIR), WeatherProvider.ARCHIVE_SUMMARY);
+        assertEquals("Error: The HOURLY URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_DIR), WeatherProvider.HOURLY);
+        assertEquals("Error: The HOURLY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WITH_LOCATION_DIR), WeatherProvider.HOURLY_WITH_LOCATION);
     }
 }
@@ -15,6 +15,8 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
@@ -27,6 +29,9 @@ import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -38,6 +43,7 @@ import java.util.Set;
 public class TestUtilities extends AndroidTestCase {
     static final String TEST_LOCATION = "99705";
     static final long TEST_DATE = 1419033600L;  // December 20th, 2014
+    public static final long TEST_DATE_MILLIS = TEST_DATE * 1000;
 
     static void validateCursor(String error, Cursor valueCursor, ContentValues expectedValues) {
         assertTrue("Empty cursor returned. " + error, valueCursor.moveToFirst());
@@ -111,6 +117,48 @@ public class TestUtilities extends AndroidTestCase {
         return locationRowId;
     }
 
+    /*
+        Inserts the North Pole location through the provider under another location setting, so
+        a test can have as many locations as it needs.
+     */
+    public static long insertLocation(Context context, String locationSetting) {
+        ContentValues location = createNorthPoleLocationValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return ContentUris.parseId(context.getContentResolver()
+                .insert(WeatherContract.LocationEntry.CONTENT_URI, location));
+    }
+
+    /*
+        Empties every table the tests write to: the days, the hours and the locations through
+        the provider, and the archive and its description dictionary, which it doesn't expose
+        for deletes, directly.
+     */
+    public static void deleteAllRecords(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        resolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        resolver.delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(context);
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.delete(WeatherContract.ArchiveEntry.TABLE_NAME, null, null);
+            db.delete(WeatherContract.ArchiveEntry.DESCRIPTION_TABLE_NAME, null, null);
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /*
+        A weather id for day or hour i of generated test data: clear mostly, snow every
+        eleventh, and from the fortieth on rain every seventh.
+     */
+    public static int weatherIdOf(int i) {
+        if (i >= 40 && i % 7 == 0) {
+            return 501;
+        }
+        return i % 11 == 0 ? 600 : 800;
+    }
+
     /*
         Students: The functions we provide inside of TestProvider use this utility class to test
         the ContentObserver callbacks using the PollingCheck class that we grabbed from the Android
@@ -122,6 +170,8 @@ public class TestUtilities extends AndroidTestCase {
     static class TestContentObserver extends ContentObserver {
         final HandlerThread mHT;
         boolean mContentChanged;
+        // The URIs notified, on versions that pass them to onChange (API 16 and up).
+        final List<Uri> mUris = Collections.synchronizedList(new ArrayList<Uri>());
 
         static TestContentObserver getTestContentObserver() {
             HandlerThread ht = new HandlerThread("ContentObserverThread");
@@ -142,6 +192,9 @@ public class TestUtilities extends AndroidTestCase {
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
+            if (uri != null) {
+                mUris.add(uri);
+            }
             mContentChanged = true;
         }
 
@@ -158,6 +211,17 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        public List<Uri> waitForUrisOrFail(final int count) {
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mUris.size() >= count;
+                }
+            }.run();
+            mHT.quit();
+            return mUris;
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestForecastCache extends AndroidTestCase {
+
+    public void testParseMaxAge() {
+        assertEquals(0, ForecastCache.parseMaxAge(null));
+        assertEquals(0, ForecastCache.parseMaxAge(""));
+        assertEquals(600, ForecastCache.parseMaxAge("max-age=600"));
+        assertEquals(600, ForecastCache.parseMaxAge("public, MAX-AGE=600"));
+        assertEquals(600, ForecastCache.parseMaxAge("max-age=\"600\", must-revalidate"));
+
+        // Anything that forbids reuse without revalidation wins over max-age.
+        assertEquals(0, ForecastCache.parseMaxAge("max-age=600, no-cache"));
+        assertEquals(0, ForecastCache.parseMaxAge("no-store"));
+
+        // Garbage is treated as "revalidate every time" rather than as an error.
+        assertEquals(0, ForecastCache.parseMaxAge("max-age=soon"));
+        assertEquals(0, ForecastCache.parseMaxAge("max-age=-5"));
+    }
+
+    public void testFreshness() {
+        ForecastCache cache = new ForecastCache();
+        assertFalse("Error: a cache with no expiry should never be fresh", cache.isFresh(0));
+
+        cache.expires = 1000;
+        assertTrue(cache.isFresh(999));
+        assertFalse(cache.isFresh(1000));
+    }
+}
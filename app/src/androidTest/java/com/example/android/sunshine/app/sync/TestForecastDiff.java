@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+
+public class TestForecastDiff extends AndroidTestCase {
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestUtilities.deleteAllRecords(mContext);
+
+        mLocationId = TestUtilities.insertLocation(mContext, "99705");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private static SunshineSyncAdapter.ParsedForecast createForecast(int numDays) {
+        SunshineSyncAdapter.ParsedForecast forecast = new SunshineSyncAdapter.ParsedForecast();
+        forecast.onCity("North Pole", 64.7488, -147.353);
+        for (int i = 0; i < numDays; i++) {
+            ForecastJsonParser.ForecastDay day = new ForecastJsonParser.ForecastDay();
+            day.pressure = 1010.5 + i;
+            day.humidity = 60 + i;
+            day.windSpeed = 3.25;
+            day.windDirection = 270;
+            day.high = 12.75 + i;
+            day.low = 1.5 - i;
+            day.description = "Clouds";
+            day.weatherId = 803;
+            forecast.onDay(day);
+        }
+        return forecast;
+    }
+
+    private ForecastDiff diffAndApply(SunshineSyncAdapter.ParsedForecast forecast)
+            throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        ForecastDiff diff = ForecastDiff.compute(resolver, mLocationId,
+                SunshineSyncAdapter.buildWeatherValues(mLocationId, forecast));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        diff.addOperations(operations);
+        if (!operations.isEmpty()) {
+            resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        }
+        return diff;
+    }
+
+    public void testFirstSyncInsertsEverything() throws Exception {
+        ForecastDiff diff = diffAndApply(createForecast(14));
+        assertEquals(14, diff.getInsertedCount());
+        assertEquals(0, diff.getUpdatedCount());
+        assertEquals(0, diff.getUnchangedCount());
+    }
+
+    public void testIdenticalSyncWritesNothing() throws Exception {
+        diffAndApply(createForecast(14));
+
+        ForecastDiff diff = diffAndApply(createForecast(14));
+        assertTrue("Error: an identical forecast should produce no writes", diff.isEmpty());
+        assertEquals(14, diff.getUnchangedCount());
+    }
+
+    public void testChangedDaysAreUpdatedInPlace() throws Exception {
+        diffAndApply(createForecast(14));
+
+        SunshineSyncAdapter.ParsedForecast forecast = createForecast(16);
+        forecast.days.get(3).high += 2;
+        forecast.days.get(5).description = "Rain";
+        ForecastDiff diff = diffAndApply(forecast);
+        assertEquals(2, diff.getInsertedCount());
+        assertEquals(2, diff.getUpdatedCount());
+        assertEquals(12, diff.getUnchangedCount());
+
+        // Only the changed columns are written.
+        for (ContentValues values : diff.updates.values()) {
+            assertEquals(1, values.size());
+        }
+
+        // And applying it leaves the table matching the new forecast.
+        assertTrue(ForecastDiff.compute(mContext.getContentResolver(), mLocationId,
+                SunshineSyncAdapter.buildWeatherValues(mLocationId, forecast)).isEmpty());
+    }
+
+    /*
+        OWM sends temperatures, pressures and wind speeds with three or more decimal places,
+        which are stored in hundredths.  The same forecast again must still diff as unchanged,
+        and a change smaller than a hundredth isn't one.
+     */
+    public void testManyDecimalPlacesCompareAsStored() throws Exception {
+        SunshineSyncAdapter.ParsedForecast forecast = createForecast(14);
+        for (ForecastJsonParser.ForecastDay day : forecast.days) {
+            day.high += 0.1234;
+            day.low -= 0.5678;
+            day.pressure += 0.987;
+            day.windSpeed = 4.3219;
+        }
+        diffAndApply(forecast);
+
+        ForecastDiff diff = diffAndApply(forecast);
+        assertTrue("Error: an identical forecast should produce no writes", diff.isEmpty());
+        assertEquals(14, diff.getUnchangedCount());
+
+        forecast.days.get(2).high += 0.001;
+        forecast.days.get(4).high += 0.5;
+        diff = diffAndApply(forecast);
+        assertEquals(1, diff.getUpdatedCount());
+        assertEquals(13, diff.getUnchangedCount());
+    }
+
+    /*
+        A first sync for a location stores it and its days in one batch, the days keyed to it by
+        back reference; the next sync finds the same row, and only updates it.
+     */
+    public void testSyncBatchStoresNewLocationWithItsDays() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        SunshineSyncAdapter.ParsedForecast forecast = createForecast(14);
+        ForecastCache cache = ForecastCache.load(mContext, "12345");
+        assertEquals(-1, cache.locationId);
+        ForecastDiff diff = ForecastDiff.compute(resolver, cache.locationId,
+                SunshineSyncAdapter.buildWeatherValues(cache.locationId, forecast));
+
+        ContentProviderResult[] results = resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                SunshineSyncAdapter.buildSyncOperations("12345", forecast, cache, diff));
+        long locationId = ContentUris.parseId(results[0].uri);
+        assertEquals(locationId, ForecastCache.load(mContext, "12345").locationId);
+        assertTrue("Error: the days should be keyed to the new location",
+                ForecastDiff.compute(resolver, locationId,
+                        SunshineSyncAdapter.buildWeatherValues(locationId, createForecast(14)))
+                        .isEmpty());
+
+        cache = ForecastCache.load(mContext, "12345");
+        diff = ForecastDiff.compute(resolver, cache.locationId,
+                SunshineSyncAdapter.buildWeatherValues(cache.locationId, forecast));
+        results = resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                SunshineSyncAdapter.buildSyncOperations("12345", forecast, cache, diff));
+        assertEquals("Error: an unchanged forecast should only touch the location", 1,
+                results.length);
+        assertEquals("Error: a stored location should only have its sync state updated", 1,
+                results[0].count.intValue());
+        assertEquals(locationId, ForecastCache.load(mContext, "12345").locationId);
+    }
+}
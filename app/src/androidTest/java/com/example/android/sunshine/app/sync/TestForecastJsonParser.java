@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/*
+    Checks that the streaming decoder produces the same rows as the JSONObject decoder, and
+    benchmarks the two against each other.  The "tree" numbers include reading the stream into
+    a String the way the sync adapter used to, since that's part of the cost we're removing.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    /*
+        Builds a payload shaped like the OWM daily forecast response with the given number of
+        days.  Values vary per day so that a decoder mixing up rows gets caught.
+     */
+    static String createForecastJson(int numDays) {
+        StringBuilder sb = new StringBuilder(numDays * 300 + 300);
+        sb.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0135,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"dt\":").append(1419033600L + i * 86400L)
+                    .append(",\"temp\":{\"day\":20.5,\"min\":").append(10 + i % 7)
+                    .append(".25,\"max\":").append(20 + i % 9)
+                    .append(".75,\"night\":11.2,\"eve\":18.4,\"morn\":12.1},")
+                    .append("\"pressure\":").append(1000 + i % 30).append(".5,")
+                    .append("\"humidity\":").append(40 + i % 50).append(',')
+                    .append("\"weather\":[{\"id\":").append(800 + i % 5)
+                    .append(",\"main\":\"Clouds\",\"description\":\"few clouds\",\"icon\":\"02d\"}],")
+                    .append("\"speed\":").append(1 + i % 11).append(".2,")
+                    .append("\"deg\":").append(i * 13 % 360).append(',')
+                    .append("\"clouds\":").append(i % 100).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /*
+        The same for the 5 day / 3 hour forecast, with the given number of forecast times.
+     */
+    static String createHourlyJson(int numHours) {
+        StringBuilder sb = new StringBuilder(numHours * 400 + 300);
+        sb.append("{\"cod\":\"200\",\"message\":0.0032,\"cnt\":").append(numHours)
+                .append(",\"list\":[");
+        for (int i = 0; i < numHours; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"dt\":").append(1419033600L + i * 10800L)
+                    .append(",\"main\":{\"temp\":").append(10 + i % 7)
+                    .append(".25,\"temp_min\":9.5,\"temp_max\":21.5,\"pressure\":")
+                    .append(1000 + i % 30).append(".5,\"sea_level\":1020.1,")
+                    .append("\"grnd_level\":1001.3,\"humidity\":").append(40 + i % 50)
+                    .append(",\"temp_kf\":0},")
+                    .append("\"weather\":[{\"id\":").append(800 + i % 5)
+                    .append(",\"main\":\"Clouds\",\"description\":\"few clouds\",\"icon\":\"02d\"}],")
+                    .append("\"clouds\":{\"all\":").append(i % 100).append("},")
+                    .append("\"wind\":{\"speed\":").append(1 + i % 11).append(".2,")
+                    .append("\"deg\":").append(i * 13 % 360).append("},")
+                    .append("\"sys\":{\"pod\":\"d\"},\"dt_txt\":\"2014-12-20 00:00:00\"}");
+        }
+        sb.append("],\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lat\":37.386051,\"lon\":-122.083847},")
+                .append("\"country\":\"US\"}}");
+        return sb.toString();
+    }
+
+    private static byte[] toBytes(String json) throws IOException {
+        return json.getBytes("UTF-8");
+    }
+
+    private static String readAsString(InputStream in) throws IOException {
+        // This is what SunshineSyncAdapter did before the streaming decoder.
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        reader.close();
+        return buffer.toString();
+    }
+
+    public void testStreamingMatchesTree() throws Exception {
+        byte[] payload = toBytes(createForecastJson(16));
+
+        SunshineSyncAdapter.ParsedForecast streamed = new SunshineSyncAdapter.ParsedForecast();
+        int streamedCode = ForecastJsonParser.parse(new ByteArrayInputStream(payload), streamed);
+
+        SunshineSyncAdapter.ParsedForecast tree = new SunshineSyncAdapter.ParsedForecast();
+        int treeCode = ForecastJsonParser.parseTree(
+                readAsString(new ByteArrayInputStream(payload)), tree);
+
+        assertEquals(HttpURLConnection.HTTP_OK, streamedCode);
+        assertEquals(HttpURLConnection.HTTP_OK, treeCode);
+        assertEquals("Mountain View", streamed.cityName);
+        assertEquals(tree.cityName, streamed.cityName);
+        assertEquals(tree.cityLatitude, streamed.cityLatitude);
+        assertEquals(tree.cityLongitude, streamed.cityLongitude);
+        assertEquals(16, streamed.days.size());
+        assertEquals(tree.days.size(), streamed.days.size());
+
+        for (int i = 0; i < streamed.days.size(); i++) {
+            ForecastJsonParser.ForecastDay s = streamed.days.get(i);
+            ForecastJsonParser.ForecastDay t = tree.days.get(i);
+            String error = "Error: day " + i + " decoded differently";
+            assertEquals(error, t.pressure, s.pressure);
+            assertEquals(error, t.humidity, s.humidity);
+            assertEquals(error, t.windSpeed, s.windSpeed);
+            assertEquals(error, t.windDirection, s.windDirection);
+            assertEquals(error, t.high, s.high);
+            assertEquals(error, t.low, s.low);
+            assertEquals(error, t.description, s.description);
+            assertEquals(error, t.weatherId, s.weatherId);
+        }
+    }
+
+    public void testHourlyStreamingMatchesTree() throws Exception {
+        byte[] payload = toBytes(createHourlyJson(40));
+
+        SunshineSyncAdapter.ParsedHourly streamed = new SunshineSyncAdapter.ParsedHourly();
+        int streamedCode = ForecastJsonParser.parseHourly(new ByteArrayInputStream(payload),
+                streamed);
+
+        SunshineSyncAdapter.ParsedHourly tree = new SunshineSyncAdapter.ParsedHourly();
+        int treeCode = ForecastJsonParser.parseHourlyTree(
+                readAsString(new ByteArrayInputStream(payload)), tree);
+
+        assertEquals(HttpURLConnection.HTTP_OK, streamedCode);
+        assertEquals(HttpURLConnection.HTTP_OK, treeCode);
+        assertEquals(40, streamed.hours.size());
+        assertEquals(tree.hours.size(), streamed.hours.size());
+        assertEquals("Error: times should come back in milliseconds", 1419033600L * 1000,
+                streamed.hours.get(0).time);
+        assertEquals(10.25, streamed.hours.get(0).temperature);
+
+        for (int i = 0; i < streamed.hours.size(); i++) {
+            ForecastJsonParser.ForecastHour s = streamed.hours.get(i);
+            ForecastJsonParser.ForecastHour t = tree.hours.get(i);
+            String error = "Error: hour " + i + " decoded differently";
+            assertEquals(error, t.time, s.time);
+            assertEquals(error, t.temperature, s.temperature);
+            assertEquals(error, t.pressure, s.pressure);
+            assertEquals(error, t.humidity, s.humidity);
+            assertEquals(error, t.windSpeed, s.windSpeed);
+            assertEquals(error, t.windDirection, s.windDirection);
+            assertEquals(error, t.description, s.description);
+            assertEquals(error, t.weatherId, s.weatherId);
+        }
+    }
+
+    public void testErrorCode() throws Exception {
+        byte[] payload = toBytes("{\"cod\":\"404\",\"message\":\"Error: Not found city\"}");
+        SunshineSyncAdapter.ParsedForecast forecast = new SunshineSyncAdapter.ParsedForecast();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                ForecastJsonParser.parse(new ByteArrayInputStream(payload), forecast));
+        assertTrue(forecast.days.isEmpty());
+    }
+
+    public void testMissingListIsInvalid() throws Exception {
+        byte[] payload = toBytes("{\"cod\":200,\"city\":{\"name\":\"X\",\"coord\":{\"lat\":1,\"lon\":2}}}");
+        try {
+            ForecastJsonParser.parse(new ByteArrayInputStream(payload),
+                    new SunshineSyncAdapter.ParsedForecast());
+            fail("Error: a payload without a list should be rejected");
+        } catch (JSONException expected) {
+        }
+    }
+
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        benchmark(14);
+        benchmark(16);
+        benchmark(365);
+    }
+
+    private void benchmark(int numDays) throws Exception {
+        byte[] payload = toBytes(createForecastJson(numDays));
+
+        // Warm up both paths so the first measured run isn't paying for class loading.
+        ForecastJsonParser.parse(new ByteArrayInputStream(payload),
+                new SunshineSyncAdapter.ParsedForecast());
+        ForecastJsonParser.parseTree(readAsString(new ByteArrayInputStream(payload)),
+                new SunshineSyncAdapter.ParsedForecast());
+
+        long[] tree = measure(payload, false);
+        long[] streaming = measure(payload, true);
+
+        Log.i(LOG_TAG, String.format(
+                "%d days (%d bytes): tree %.3f ms, %d bytes/%d objects allocated; " +
+                        "streaming %.3f ms, %d bytes/%d objects allocated",
+                numDays, payload.length,
+                tree[0] / 1e6, tree[1], tree[2],
+                streaming[0] / 1e6, streaming[1], streaming[2]));
+    }
+
+    /*
+        Returns {mean nanoseconds per parse, mean bytes allocated, mean objects allocated}.
+     */
+    @SuppressWarnings("deprecation")
+    private long[] measure(byte[] payload, boolean streaming) throws IOException, JSONException {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            SunshineSyncAdapter.ParsedForecast forecast = new SunshineSyncAdapter.ParsedForecast();
+            InputStream in = new ByteArrayInputStream(payload);
+            if (streaming) {
+                ForecastJsonParser.parse(in, forecast);
+            } else {
+                ForecastJsonParser.parseTree(readAsString(in), forecast);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[]{
+                elapsed / BENCHMARK_ITERATIONS,
+                Debug.getThreadAllocSize() / BENCHMARK_ITERATIONS,
+                Debug.getThreadAllocCount() / BENCHMARK_ITERATIONS
+        };
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+public class TestResponseDecoder extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestResponseDecoder.class.getSimpleName();
+
+    private static byte[] compress(byte[] body, boolean gzip) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream compressor = gzip ? new GZIPOutputStream(out) : new DeflaterOutputStream(out);
+        compressor.write(body);
+        compressor.close();
+        return out.toByteArray();
+    }
+
+    private void checkRoundTrip(String encoding, byte[] wire, String expected) throws Exception {
+        ResponseDecoder decoder = new ResponseDecoder();
+        CountingInputStream wireStream = new CountingInputStream(new ByteArrayInputStream(wire));
+        String body = decoder.readFully(decoder.decode(wireStream, encoding));
+        assertEquals("Error: " + encoding + " body didn't survive decoding", expected, body);
+        assertEquals("Error: wire byte count is wrong for " + encoding,
+                wire.length, wireStream.getCount());
+    }
+
+    public void testDecode() throws Exception {
+        String json = TestForecastJsonParser.createForecastJson(14);
+        byte[] body = json.getBytes("UTF-8");
+        byte[] gzipped = compress(body, true);
+        byte[] deflated = compress(body, false);
+
+        checkRoundTrip(null, body, json);
+        checkRoundTrip("identity", body, json);
+        checkRoundTrip("gzip", gzipped, json);
+        checkRoundTrip("deflate", deflated, json);
+
+        Log.i(LOG_TAG, String.format("14 day payload: %d bytes plain, %d gzip, %d deflate",
+                body.length, gzipped.length, deflated.length));
+    }
+
+    public void testDecoderIsReusable() throws Exception {
+        // The sync adapter keeps one decoder for its lifetime, so the shared Inflaters, checksum
+        // and buffers must come back clean between responses, whichever encoding came before.
+        ResponseDecoder decoder = new ResponseDecoder();
+        for (int days : new int[]{14, 3, 16, 7}) {
+            String json = TestForecastJsonParser.createForecastJson(days);
+            for (boolean gzip : new boolean[]{true, false}) {
+                String encoding = gzip ? "gzip" : "deflate";
+                byte[] wire = compress(json.getBytes("UTF-8"), gzip);
+                CountingInputStream wireStream =
+                        new CountingInputStream(new ByteArrayInputStream(wire));
+                InputStream in = decoder.decode(wireStream, encoding);
+                assertEquals(json, decoder.readFully(in));
+                in.close();
+                assertEquals("Error: " + encoding + " should read to the end of the body",
+                        wire.length, wireStream.getCount());
+            }
+        }
+    }
+
+    public void testCorruptGzipTrailer() throws Exception {
+        ResponseDecoder decoder = new ResponseDecoder();
+        String json = TestForecastJsonParser.createForecastJson(14);
+        byte[] wire = compress(json.getBytes("UTF-8"), true);
+        // The low byte of the CRC.
+        wire[wire.length - 8] ^= 1;
+        try {
+            decoder.readFully(decoder.decode(new ByteArrayInputStream(wire), "gzip"));
+            fail("Error: a body that doesn't match its checksum should be rejected");
+        } catch (ZipException expected) {
+        }
+
+        // And the decoder is still good for the next one.
+        wire[wire.length - 8] ^= 1;
+        assertEquals(json, decoder.readFully(
+                decoder.decode(new ByteArrayInputStream(wire), "gzip")));
+    }
+}
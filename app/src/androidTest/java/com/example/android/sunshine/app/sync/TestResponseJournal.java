@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.TestUtilities;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class TestResponseJournal extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestResponseJournal.class.getSimpleName();
+
+    private static final String LOCATION = "99705";
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000L;
+
+    private static final int LOAD_LOCATIONS = 10;
+    private static final int LOAD_SYNCS = 20;
+
+    private File mDirectory;
+    private ResponseJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(mContext.getCacheDir(), "test_response_journal");
+        mJournal = new ResponseJournal(mDirectory, ResponseJournal.MAX_SEGMENT_BYTES,
+                ResponseJournal.MAX_SEGMENTS);
+        mJournal.clear();
+        TestUtilities.deleteAllRecords(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJournal.clear();
+        mDirectory.delete();
+        TestUtilities.deleteAllRecords(mContext);
+        super.tearDown();
+    }
+
+    private static byte[] gzip(String body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(body.getBytes("UTF-8"));
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private String readBody(ResponseJournal journal, ResponseJournal.Entry entry)
+            throws Exception {
+        ResponseDecoder decoder = new ResponseDecoder();
+        return decoder.readFully(decoder.decode(
+                new ByteArrayInputStream(journal.read(entry)), entry.contentEncoding));
+    }
+
+    public void testAppendAndFind() throws Exception {
+        String daily = TestForecastJsonParser.createForecastJson(14);
+        String hourly = TestForecastJsonParser.createHourlyJson(40);
+        // Sent uncompressed, so the journal compresses it; and sent gzipped, so it's kept so.
+        mJournal.append(ResponseJournal.KIND_DAILY, LOCATION, 1000, null,
+                daily.getBytes("UTF-8"));
+        mJournal.append(ResponseJournal.KIND_HOURLY, LOCATION, 2000, "gzip", gzip(hourly));
+        mJournal.append(ResponseJournal.KIND_DAILY, "94043", 3000, null,
+                daily.getBytes("UTF-8"));
+
+        List<ResponseJournal.Entry> entries = mJournal.find(LOCATION, 0, Long.MAX_VALUE);
+        assertEquals(2, entries.size());
+        assertEquals(ResponseJournal.KIND_DAILY, entries.get(0).kind);
+        assertEquals(1000, entries.get(0).fetchTime);
+        assertEquals("gzip", entries.get(0).contentEncoding);
+        assertTrue("Error: the journal should store the body compressed",
+                entries.get(0).length < daily.length() / 2);
+        assertEquals(daily, readBody(mJournal, entries.get(0)));
+        assertEquals(ResponseJournal.KIND_HOURLY, entries.get(1).kind);
+        assertEquals(hourly, readBody(mJournal, entries.get(1)));
+
+        assertEquals(2, mJournal.find(null, 1500, 3000).size());
+        assertEquals(0, mJournal.find("nowhere", 0, Long.MAX_VALUE).size());
+
+        // A fresh instance finds the same entries from the files alone.
+        ResponseJournal reopened = new ResponseJournal(mDirectory,
+                ResponseJournal.MAX_SEGMENT_BYTES, ResponseJournal.MAX_SEGMENTS);
+        assertEquals(3, reopened.find(null, 0, Long.MAX_VALUE).size());
+        assertEquals(daily, readBody(reopened, reopened.find("94043", 0, 3000).get(0)));
+    }
+
+    public void testRotation() throws Exception {
+        byte[] body = gzip(TestForecastJsonParser.createForecastJson(14));
+        long maxSegmentBytes = body.length * 3;
+        ResponseJournal journal = new ResponseJournal(mDirectory, maxSegmentBytes, 2);
+        for (int i = 0; i < 20; i++) {
+            journal.append(ResponseJournal.KIND_DAILY, LOCATION, i, "gzip", body);
+        }
+
+        List<ResponseJournal.Entry> entries = journal.find(null, 0, Long.MAX_VALUE);
+        assertTrue("Error: rotation should have dropped the oldest responses",
+                entries.size() < 20);
+        assertEquals("Error: rotation should keep the newest response", 19,
+                entries.get(entries.size() - 1).fetchTime);
+        assertTrue("Error: the journal should stay within its segments",
+                journal.size() <= 2 * (maxSegmentBytes + 1024));
+        for (ResponseJournal.Entry entry : entries) {
+            assertEquals(body.length, journal.read(entry).length);
+        }
+    }
+
+    public void testReplayStoresForecast() throws Exception {
+        long now = System.currentTimeMillis();
+        mJournal.append(ResponseJournal.KIND_DAILY, LOCATION, now, null,
+                TestForecastJsonParser.createForecastJson(14).getBytes("UTF-8"));
+        mJournal.append(ResponseJournal.KIND_HOURLY, LOCATION, now, "gzip",
+                gzip(TestForecastJsonParser.createHourlyJson(40)));
+
+        JournalReplay.Result result = new JournalReplay(mContext, mJournal)
+                .replay(LOCATION, 0, Long.MAX_VALUE);
+        assertEquals(2, result.responses);
+        assertEquals(0, result.failed);
+        assertEquals(14, result.daysChanged);
+        assertEquals(40, result.hoursStored);
+
+        Cursor weather = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION), null, null, null,
+                null);
+        assertNotNull(weather);
+        assertEquals("Error: the replayed days should be stored", 14, weather.getCount());
+        weather.close();
+
+        // Stored already, so a second replay changes nothing.
+        result = new JournalReplay(mContext, mJournal).replay(LOCATION, 0, Long.MAX_VALUE);
+        assertEquals(0, result.failed);
+        assertEquals(0, result.daysChanged);
+    }
+
+    public void testReplayLeavesSyncStateAlone() throws Exception {
+        long locationId = TestUtilities.insertLocation(mContext, LOCATION);
+        ForecastCache cache = ForecastCache.load(mContext, LOCATION);
+        cache.etag = "\"v1\"";
+        cache.changeHistory = "500,250";
+        cache.save(mContext, locationId, SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+
+        mJournal.append(ResponseJournal.KIND_DAILY, LOCATION, System.currentTimeMillis(), null,
+                TestForecastJsonParser.createForecastJson(14).getBytes("UTF-8"));
+        JournalReplay.Result result = new JournalReplay(mContext, mJournal)
+                .replay(LOCATION, 0, Long.MAX_VALUE);
+        assertEquals(0, result.failed);
+        assertEquals(14, result.daysChanged);
+
+        Cursor location = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_ETAG,
+                        WeatherContract.LocationEntry.COLUMN_CHANGE_HISTORY,
+                        WeatherContract.LocationEntry.COLUMN_SYNC_STATUS},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{LOCATION}, null);
+        assertNotNull(location);
+        assertTrue(location.moveToFirst());
+        assertEquals(locationId, location.getLong(0));
+        assertEquals("Error: a replay shouldn't touch the cache validators", "\"v1\"",
+                location.getString(1));
+        assertEquals("500,250", location.getString(2));
+        assertEquals("Error: a replay isn't a sync, and shouldn't report one",
+                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, location.getInt(3));
+        location.close();
+    }
+
+    /*
+        Journals a few days of three-hourly syncs for ten locations, then replays them: the
+        decode and persist stages under load, with no network in the way.
+     */
+    @LargeTest
+    public void testReplayLoad() throws Exception {
+        byte[] daily = gzip(TestForecastJsonParser.createForecastJson(14));
+        byte[] hourly = gzip(TestForecastJsonParser.createHourlyJson(40));
+        // Big enough that nothing rotates out from under the replay.
+        ResponseJournal journal = new ResponseJournal(mDirectory, 16 * 1024 * 1024, 1);
+        long start = System.currentTimeMillis() - LOAD_SYNCS * 3 * HOUR_IN_MILLIS;
+        for (int s = 0; s < LOAD_SYNCS; s++) {
+            for (int l = 0; l < LOAD_LOCATIONS; l++) {
+                long fetchTime = start + s * 3 * HOUR_IN_MILLIS + l;
+                journal.append(ResponseJournal.KIND_DAILY, "location" + l, fetchTime, "gzip",
+                        daily);
+                journal.append(ResponseJournal.KIND_HOURLY, "location" + l, fetchTime, "gzip",
+                        hourly);
+            }
+        }
+
+        long replayStart = SystemClock.elapsedRealtime();
+        JournalReplay.Result result = new JournalReplay(mContext, journal)
+                .replay(null, 0, Long.MAX_VALUE);
+        long elapsed = SystemClock.elapsedRealtime() - replayStart;
+        assertEquals(0, result.failed);
+        Log.i(LOG_TAG, "Replayed " + result + " in " + elapsed + "ms, "
+                + (result.responses * 1000L / Math.max(1, elapsed)) + " responses/s, from "
+                + journal.size() / 1024 + "KB of journal");
+    }
+}
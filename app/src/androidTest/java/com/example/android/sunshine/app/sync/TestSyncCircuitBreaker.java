@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestSyncCircuitBreaker extends AndroidTestCase {
+
+    public void testOpensAfterRepeatedFailures() {
+        SyncCircuitBreaker breaker = new SyncCircuitBreaker();
+        long now = 1000000;
+        for (int i = 1; i < SyncCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onFailure(now, 0.5);
+            assertEquals(SyncCircuitBreaker.STATE_CLOSED, breaker.state);
+            assertTrue(breaker.allowRequest(now));
+        }
+        breaker.onFailure(now, 0.5);
+        assertEquals(SyncCircuitBreaker.STATE_OPEN, breaker.state);
+        assertFalse("Error: an open breaker should short-circuit requests",
+                breaker.allowRequest(now + 1));
+    }
+
+    public void testHalfOpenTrial() {
+        SyncCircuitBreaker breaker = new SyncCircuitBreaker();
+        long now = 1000000;
+        for (int i = 0; i < SyncCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onFailure(now, 0.5);
+        }
+
+        // Once the backoff has passed one request goes through, and failing it reopens the
+        // breaker for longer.
+        long firstBackoff = breaker.retryAt - now;
+        now = breaker.retryAt;
+        assertTrue(breaker.allowRequest(now));
+        assertEquals(SyncCircuitBreaker.STATE_HALF_OPEN, breaker.state);
+        breaker.onFailure(now, 0.5);
+        assertEquals(SyncCircuitBreaker.STATE_OPEN, breaker.state);
+        assertTrue(breaker.retryAt - now > firstBackoff);
+
+        // A successful trial closes it.
+        now = breaker.retryAt;
+        assertTrue(breaker.allowRequest(now));
+        breaker.onResult(SunshineSyncAdapter.LOCATION_STATUS_OK, now);
+        assertEquals(SyncCircuitBreaker.STATE_CLOSED, breaker.state);
+        assertEquals(0, breaker.consecutiveFailures);
+    }
+
+    public void testBackoff() {
+        int threshold = SyncCircuitBreaker.FAILURE_THRESHOLD;
+        long base = SyncCircuitBreaker.BASE_BACKOFF_MILLIS;
+        assertEquals(base / 2, SyncCircuitBreaker.computeBackoff(threshold, 0));
+        assertEquals(base, SyncCircuitBreaker.computeBackoff(threshold + 1, 0));
+        assertEquals(base * 2, SyncCircuitBreaker.computeBackoff(threshold + 2, 0));
+        assertTrue(SyncCircuitBreaker.computeBackoff(threshold, 0.99) < base);
+        assertEquals(SyncCircuitBreaker.MAX_BACKOFF_MILLIS / 2,
+                SyncCircuitBreaker.computeBackoff(threshold + 100, 0));
+    }
+
+    public void testInvalidLocationIsNotAServerFailure() {
+        assertFalse(SyncCircuitBreaker.isUpstreamFailure(SunshineSyncAdapter.LOCATION_STATUS_INVALID));
+        assertTrue(SyncCircuitBreaker.isUpstreamFailure(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN));
+        assertTrue(SyncCircuitBreaker.isUpstreamFailure(SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSyncFanOut extends AndroidTestCase {
+
+    private static final long TIMEOUT_MILLIS = 300;
+    // Long enough for anything a consumer or the watchdog still had pending to have run.
+    private static final long SETTLE_MILLIS = 3 * TIMEOUT_MILLIS;
+    private static final long WAIT_SECONDS = 5;
+
+    private final AtomicInteger mCompletions = new AtomicInteger();
+    private final CountDownLatch mCompleted = new CountDownLatch(1);
+
+    private SyncFanOut.Batch start() {
+        return SyncFanOut.start(new Runnable() {
+            @Override
+            public void run() {
+                mCompletions.incrementAndGet();
+                mCompleted.countDown();
+            }
+        });
+    }
+
+    private void assertCompletedOnce() throws InterruptedException {
+        assertTrue("Error: the fan-out never completed",
+                mCompleted.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        // The watchdogs for consumers that already finished still fire; they mustn't complete
+        // it again.
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals("Error: onComplete should run exactly once", 1, mCompletions.get());
+    }
+
+    public void testCompletesWhenEveryConsumerFinishes() throws InterruptedException {
+        final AtomicInteger ran = new AtomicInteger();
+        SyncFanOut.Batch batch = start();
+        for (int i = 0; i < 4; i++) {
+            batch.submit("consumer" + i, new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            }, TIMEOUT_MILLIS);
+        }
+        batch.close();
+
+        assertCompletedOnce();
+        assertEquals("Error: every consumer should have run", 4, ran.get());
+    }
+
+    public void testCompletesWhenAConsumerHangs() throws InterruptedException {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        SyncFanOut.Batch batch = start();
+        batch.submit("quick", new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, TIMEOUT_MILLIS);
+        batch.submit("hung", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(60));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        }, TIMEOUT_MILLIS);
+        batch.close();
+
+        assertTrue("Error: the hung consumer should be interrupted at its timeout",
+                interrupted.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertCompletedOnce();
+    }
+
+    /*
+        The sync waits on the batch, so that nothing is still running when it's over; a hung
+        consumer holds it up no longer than its timeout.
+     */
+    public void testAwaitCompletionIsBoundedByTheTimeouts() throws InterruptedException {
+        final AtomicInteger ran = new AtomicInteger();
+        SyncFanOut.Batch batch = start();
+        batch.submit("slow", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(TIMEOUT_MILLIS / 3);
+                    ran.incrementAndGet();
+                } catch (InterruptedException e) {
+                    // Timed out; the assertion below fails.
+                }
+            }
+        }, TIMEOUT_MILLIS);
+        batch.submit("hung", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(60));
+                } catch (InterruptedException e) {
+                    // Interrupted at its timeout.
+                }
+            }
+        }, TIMEOUT_MILLIS);
+        batch.close();
+
+        assertTrue("Error: the batch should be done once its timeouts have passed",
+                batch.awaitCompletion(SETTLE_MILLIS));
+        assertEquals("Error: onComplete should have run before awaitCompletion returns", 1,
+                mCompletions.get());
+        assertEquals(1, ran.get());
+    }
+
+    public void testConsumerFinishingBeforeCloseDoesNotComplete() throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        SyncFanOut.Batch batch = start();
+        batch.submit("early", new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        }, TIMEOUT_MILLIS);
+
+        assertTrue(finished.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        // Past its timeout too, so neither the consumer nor its watchdog is still to come.
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals("Error: the batch shouldn't complete before it's closed", 0,
+                mCompletions.get());
+
+        batch.close();
+        assertCompletedOnce();
+    }
+}
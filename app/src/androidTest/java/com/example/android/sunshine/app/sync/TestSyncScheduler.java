@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestSyncScheduler extends AndroidTestCase {
+
+    public void testChangeHistory() {
+        assertEquals("500", SyncScheduler.appendChangeRate(null, 0.5));
+        assertEquals("500,0", SyncScheduler.appendChangeRate("500", 0));
+        assertEquals(0.25, SyncScheduler.getVolatility("500,0"), 1e-9);
+        assertEquals(-1.0, SyncScheduler.getVolatility(null));
+
+        // Only the most recent HISTORY_SIZE entries are kept.
+        String history = null;
+        for (int i = 0; i < SyncScheduler.HISTORY_SIZE * 2; i++) {
+            history = SyncScheduler.appendChangeRate(history, i < SyncScheduler.HISTORY_SIZE ? 1 : 0);
+        }
+        assertEquals(SyncScheduler.HISTORY_SIZE, history.split(",").length);
+        assertEquals(0.0, SyncScheduler.getVolatility(history));
+    }
+
+    public void testIntervalFollowsVolatility() {
+        SyncScheduler.DeviceState daytime = new SyncScheduler.DeviceState();
+        daytime.hourOfDay = 12;
+
+        int unknown = SyncScheduler.computeInterval(-1, daytime);
+        int stable = SyncScheduler.computeInterval(0.05, daytime);
+        int middling = SyncScheduler.computeInterval(0.3, daytime);
+        int volatile_ = SyncScheduler.computeInterval(0.9, daytime);
+
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL, unknown);
+        assertTrue("Error: stable forecasts should be polled less often", stable > unknown);
+        assertTrue(stable > middling && middling > volatile_);
+        assertTrue("Error: volatile forecasts should be polled more often", volatile_ < unknown);
+    }
+
+    public void testIntervalFollowsDeviceState() {
+        SyncScheduler.DeviceState base = new SyncScheduler.DeviceState();
+        base.hourOfDay = 12;
+        int baseline = SyncScheduler.computeInterval(0.3, base);
+
+        SyncScheduler.DeviceState metered = new SyncScheduler.DeviceState();
+        metered.hourOfDay = 12;
+        metered.metered = true;
+        assertTrue(SyncScheduler.computeInterval(0.3, metered) > baseline);
+
+        SyncScheduler.DeviceState charging = new SyncScheduler.DeviceState();
+        charging.hourOfDay = 12;
+        charging.charging = true;
+        charging.lowBattery = true;
+        assertTrue(SyncScheduler.computeInterval(0.3, charging) < baseline);
+
+        SyncScheduler.DeviceState night = new SyncScheduler.DeviceState();
+        night.hourOfDay = 2;
+        assertTrue(SyncScheduler.computeInterval(0.3, night) > baseline);
+
+        // However bad things get, the interval stays within bounds.
+        SyncScheduler.DeviceState worst = new SyncScheduler.DeviceState();
+        worst.hourOfDay = 2;
+        worst.metered = true;
+        worst.lowBattery = true;
+        assertEquals(SyncScheduler.MAX_INTERVAL, SyncScheduler.computeInterval(0, worst));
+    }
+}
@@ -213,8 +213,14 @@ public class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.Foreca
     }
 
     public void swapCursor(Cursor newCursor) {
+        int oldCount = getItemCount();
         mCursor = newCursor;
-        notifyDataSetChanged();
+        if (ForecastPageLoader.isNextPage(newCursor) && getItemCount() >= oldCount) {
+            // The rows already bound are unchanged; only the new page needs binding.
+            notifyItemRangeInserted(oldCount, getItemCount() - oldCount);
+        } else {
+            notifyDataSetChanged();
+        }
         mEmptyView.setVisibility(getItemCount() == 0 ? View.VISIBLE : View.GONE);
     }
 
@@ -28,11 +28,11 @@ import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -47,6 +47,7 @@ import android.widget.TextView;
 
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncCircuitBreaker;
 
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
@@ -200,6 +201,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // specify an adapter (see also next example)
         mRecyclerView.setAdapter(mForecastAdapter);
 
+        // Rows are loaded a page at a time; ask for the next page before the user reaches
+        // the end of this one.
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy > 0) {
+                    loadNextPageIfNeeded();
+                }
+            }
+        });
+
         final View parallaxView = rootView.findViewById(R.id.parallax_bar);
         if (null != parallaxView) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -268,6 +280,19 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
     }
 
+    private void loadNextPageIfNeeded() {
+        LinearLayoutManager layoutManager =
+                (LinearLayoutManager) mRecyclerView.getLayoutManager();
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        if (lastVisible < mForecastAdapter.getItemCount() - ForecastPageLoader.PAGE_SIZE / 2) {
+            return;
+        }
+        Loader<Cursor> loader = getLoaderManager().getLoader(FORECAST_LOADER);
+        if (loader instanceof ForecastPageLoader) {
+            ((ForecastPageLoader) loader).loadNextPage();
+        }
+    }
+
     private void openPreferredLocationInMap() {
         // Using the URI scheme for showing a location found on a map.  This super-handy
         // intent can is detailed in the "Common Intents" page of Android's developer site:
@@ -309,25 +334,23 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // To only show current and future dates, filter the query to return weather only for
         // dates after or including today.
 
-        // Sort order:  Ascending, by date.
-        String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
-
+        // The loader reads the days in date order, a page at a time.
         String locationSetting = Utility.getPreferredLocation(getActivity());
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis());
-
-        return new CursorLoader(getActivity(),
-                weatherForLocationUri,
+        return new ForecastPageLoader(getActivity(),
+                locationSetting,
+                System.currentTimeMillis(),
                 FORECAST_COLUMNS,
-                null,
-                null,
-                sortOrder);
+                COL_WEATHER_DATE);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         mForecastAdapter.swapCursor(data);
         updateEmptyView();
+        if (ForecastPageLoader.isNextPage(data)) {
+            // A page the user scrolled to; the list stays where it is.
+            return;
+        }
         if ( data.getCount() == 0 ) {
             getActivity().supportStartPostponedEnterTransition();
         } else {
@@ -424,6 +447,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
                             message = R.string.empty_forecast_list_no_network;
                         }
                 }
+                // If syncs are backing off, say when the next attempt is instead.
+                if (SyncCircuitBreaker.getState(getActivity()) == SyncCircuitBreaker.STATE_OPEN) {
+                    long retryAt = SyncCircuitBreaker.getRetryAt(getActivity());
+                    long now = System.currentTimeMillis();
+                    if (retryAt > now) {
+                        tv.setText(getString(R.string.empty_forecast_list_backing_off,
+                                DateUtils.getRelativeTimeSpanString(retryAt, now,
+                                        DateUtils.MINUTE_IN_MILLIS)));
+                        return;
+                    }
+                }
                 tv.setText(message);
             }
         }
@@ -431,7 +465,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(getString(R.string.pref_location_status_key))) {
+        if (key.equals(getString(R.string.pref_location_status_key))
+                || key.equals(getString(R.string.pref_sync_breaker_state_key))) {
             updateEmptyView();
         }
     }
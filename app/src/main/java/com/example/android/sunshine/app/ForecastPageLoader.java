@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Build;
+import android.support.v4.content.AsyncTaskLoader;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.Arrays;
+
+/**
+ * Loads a location's days a page at a time.  The forecast API only returns a couple of weeks,
+ * but archived or hourly data can run to thousands of rows, and reading them all into one
+ * cursor would make the first frame and the memory it takes grow with them.
+ * <p/>
+ * The first load reads one page.  {@link #loadNextPage} adds the next one, asked for by the
+ * last date loaded rather than by offset, so every page is one range of the location/date
+ * index however far down the list it is.  Pages already loaded are kept, and shared with the
+ * cursor that adds to them, rather than read again.
+ * <p/>
+ * When the data changes, the rows loaded so far are read again as a single page of the same
+ * length, so the list doesn't shrink back under the user.  No page is added while that reload
+ * is on its way: it would cancel the reload and add to the rows it was replacing.
+ */
+public class ForecastPageLoader extends AsyncTaskLoader<Cursor> {
+
+    // Comfortably more than a screen of rows, so one page is enough for the first frame.
+    public static final int PAGE_SIZE = 30;
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private final String mLocationSetting;
+    private final long mStartDate;
+    private final String[] mProjection;
+    private final int mDateColumn;
+
+    // The last result delivered.  Read by the background load, so it's volatile.
+    private volatile PagedCursor mCursor;
+    // Set by loadNextPage() for the load it starts; any other load is a reload.
+    private volatile boolean mNextPageRequested;
+    private boolean mPageLoading;
+    // From starting a reload until one is delivered, however many times it's cancelled and
+    // started again on the way.
+    private boolean mReloadPending;
+
+    /**
+     * @param dateColumn the index of WeatherEntry.COLUMN_DATE in {@code projection}.
+     */
+    public ForecastPageLoader(Context context, String locationSetting, long startDate,
+                              String[] projection, int dateColumn) {
+        super(context);
+        mLocationSetting = locationSetting;
+        mStartDate = startDate;
+        mProjection = projection;
+        mDateColumn = dateColumn;
+    }
+
+    /**
+     * @return true if {@code cursor} is being delivered because a page was added to the end of
+     * the last one, rather than as a fresh load.  Only true during that delivery: the same
+     * cursor delivered again, as after a configuration change, is treated as a fresh load.
+     */
+    public static boolean isNextPage(Cursor cursor) {
+        return cursor instanceof PagedCursor && ((PagedCursor) cursor).mPageAdded;
+    }
+
+    /**
+     * Starts loading the page after the rows loaded so far, unless there are no more, or it or
+     * a reload is already loading.  Call it as the list nears its end.
+     */
+    public void loadNextPage() {
+        PagedCursor cursor = mCursor;
+        if (mPageLoading || mReloadPending || cursor == null || cursor.mComplete
+                || !isStarted()) {
+            return;
+        }
+        mPageLoading = true;
+        mNextPageRequested = true;
+        forceLoad();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor current = mCursor;
+        boolean nextPage = mNextPageRequested;
+        mNextPageRequested = false;
+
+        if (nextPage && current != null && !current.mComplete) {
+            Cursor page = queryPage(current.mLastDate, PAGE_SIZE);
+            if (page == null) {
+                return null;
+            }
+            PagedCursor result = new PagedCursor(current, page, PAGE_SIZE, mDateColumn);
+            result.mPageAdded = true;
+            return result;
+        }
+
+        int limit = current == null ? PAGE_SIZE : Math.max(PAGE_SIZE, current.getCount());
+        Cursor page = queryPage(Long.MIN_VALUE, limit);
+        if (page == null) {
+            return null;
+        }
+        return new PagedCursor(null, page, limit, mDateColumn);
+    }
+
+    private Cursor queryPage(long afterDate, int limit) {
+        Cursor page = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationPage(
+                        mLocationSetting, mStartDate, afterDate, limit),
+                mProjection, null, null, null);
+        if (page != null) {
+            // Ensure the cursor window is filled, as CursorLoader does.
+            page.getCount();
+            page.registerContentObserver(mObserver);
+        }
+        return page;
+    }
+
+    @Override
+    public void forceLoad() {
+        if (!mNextPageRequested) {
+            mReloadPending = true;
+        }
+        super.forceLoad();
+    }
+
+    @Override
+    public void onContentChanged() {
+        // The load this starts has to read everything again, not just add a page.
+        mNextPageRequested = false;
+        super.onContentChanged();
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        mPageLoading = false;
+        PagedCursor result = (PagedCursor) cursor;
+        if (isReset()) {
+            if (result != null) {
+                result.close();
+            }
+            return;
+        }
+        PagedCursor old = mCursor;
+        mCursor = result;
+        if (result != old && (result == null || !result.mPageAdded)) {
+            mReloadPending = false;
+        }
+
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+        if (result != null) {
+            // Delivered, or never will be as it is; either way, any later delivery of it is a
+            // redelivery.
+            result.mPageAdded = false;
+        }
+
+        if (old != null && old != result) {
+            if (result != null && result.mBase == old) {
+                // Its pages live on in the new cursor.
+                old.mOwnsPages = false;
+                result.mBase = null;
+            }
+            old.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null || mReloadPending) {
+            // A page that was on its way when the loader stopped is asked for again by the
+            // list, if it still wants it.
+            mNextPageRequested = false;
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+        // A page load cancelled before it began isn't passed to onCanceled().
+        mPageLoading = false;
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        mPageLoading = false;
+        PagedCursor result = (PagedCursor) cursor;
+        if (result == null) {
+            return;
+        }
+        if (result.mBase != null) {
+            // Only the page it added is its own; the rest are still in use.
+            result.mPages[result.mPages.length - 1].close();
+            result.mOwnsPages = false;
+        }
+        result.close();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mCursor != null) {
+            mCursor.close();
+        }
+        mCursor = null;
+    }
+
+    /**
+     * The pages loaded so far, read as one cursor.  A cursor made by adding a page to another
+     * shares that one's pages; whichever of the two is kept owns them.
+     */
+    static class PagedCursor extends AbstractCursor {
+        final Cursor[] mPages;
+        // The position of each page's first row.
+        private final int[] mStarts;
+        private final int mCount;
+        private final String[] mColumnNames;
+        // The date of the last row, the key for the next page.
+        final long mLastDate;
+        // True once a page came back short, so there's nothing after it.
+        final boolean mComplete;
+        // The cursor this one added a page to, until the loader settles which of them is kept.
+        PagedCursor mBase;
+        // True from the load that added a page until the loader has delivered it.
+        volatile boolean mPageAdded;
+        volatile boolean mOwnsPages = true;
+        private Cursor mPage;
+
+        /**
+         * Adds {@code page}, read with {@code limit}, to the pages of {@code base}, if any.
+         * Only reads {@code page}; {@code base} may be in use on another thread.
+         */
+        PagedCursor(PagedCursor base, Cursor page, int limit, int dateColumn) {
+            int pageCount = page.getCount();
+            if (base == null) {
+                mPages = new Cursor[]{page};
+                mStarts = new int[]{0};
+                mCount = pageCount;
+                mColumnNames = page.getColumnNames();
+            } else {
+                mPages = Arrays.copyOf(base.mPages, base.mPages.length + 1);
+                mPages[mPages.length - 1] = page;
+                mStarts = Arrays.copyOf(base.mStarts, base.mStarts.length + 1);
+                mStarts[mStarts.length - 1] = base.mCount;
+                mCount = base.mCount + pageCount;
+                mColumnNames = base.mColumnNames;
+            }
+            mBase = base;
+            if (page.moveToLast()) {
+                mLastDate = page.getLong(dateColumn);
+            } else {
+                mLastDate = base == null ? Long.MIN_VALUE : base.mLastDate;
+            }
+            mComplete = pageCount < limit;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            // Few pages, and moves are mostly to the next row, so a scan back from the end
+            // is as quick as a search.
+            int page = mPages.length - 1;
+            while (page > 0 && mStarts[page] > newPosition) {
+                page--;
+            }
+            mPage = mPages[page];
+            return mPage.moveToPosition(newPosition - mStarts[page]);
+        }
+
+        @Override
+        public String getString(int column) {
+            return mPage.getString(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return mPage.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return mPage.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mPage.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return mPage.getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mPage.getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mPage.getBlob(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mPage.isNull(column);
+        }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        @Override
+        public int getType(int column) {
+            return mPage.getType(column);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (mOwnsPages) {
+                for (Cursor page : mPages) {
+                    page.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.TimeZone;
+
+/**
+ * Does what {@link WeatherContract#normalizeDate} does, without allocating a {@code Time} per
+ * call, for the bulk insert paths.  It finds the day with epoch-day arithmetic on the time zone
+ * offset, and remembers the last day it saw, because a batch is a run of rows a day apart that
+ * are usually normalized already.
+ * <p/>
+ * The archive also uses it to go between dates and the local day numbers it's keyed on.
+ * <p/>
+ * Not thread safe; make one per batch.
+ */
+class DateNormalizer {
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final TimeZone mTimeZone = TimeZone.getDefault();
+
+    // The day the last date fell in, as [start, end) in UTC millis.
+    private long mDayStart = 1;
+    private long mDayEnd = 0;
+
+    long normalize(long date) {
+        if (date >= mDayStart && date < mDayEnd) {
+            return mDayStart;
+        }
+        long offset = mTimeZone.getOffset(date);
+        long localDay = floorDiv(date + offset, DAY_IN_MILLIS);
+        mDayStart = toUtc(localDay * DAY_IN_MILLIS, offset);
+        mDayEnd = toUtc((localDay + 1) * DAY_IN_MILLIS, offset);
+        if (date < mDayStart || date >= mDayEnd) {
+            // A daylight saving switch moved the day's midnight across the date.  Rare enough to
+            // leave to the slow path.
+            mDayEnd = mDayStart;
+            return WeatherContract.normalizeDate(date);
+        }
+        return mDayStart;
+    }
+
+    /**
+     * @return the day {@code date} falls in, in local time, counted from the epoch.
+     */
+    long toLocalDay(long date) {
+        return floorDiv(date + mTimeZone.getOffset(date), DAY_IN_MILLIS);
+    }
+
+    /**
+     * @return the start of a day counted by {@link #toLocalDay}, as a normalized date.
+     */
+    long startOfLocalDay(long localDay) {
+        return toUtc(localDay * DAY_IN_MILLIS, mTimeZone.getRawOffset());
+    }
+
+    // Local wall-clock millis to UTC millis, using the offset in force at that moment.  The
+    // nearby offset is only a first guess, to look the real one up from.
+    private long toUtc(long localMillis, long nearbyOffset) {
+        return localMillis - mTimeZone.getOffset(localMillis - nearbyOffset);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * Hourly forecast rows, held column by column like {@link WeatherBatch}.  Built with
+ * {@link #add}, written with {@link #replace}.
+ * <p/>
+ * A sync fetches every location's hours in full, so the batch replaces what's stored rather
+ * than adding to it: each location with rows in the batch loses the hours it had, and gets the
+ * batch's.  Every location goes in the one transaction.
+ */
+public class HourlyBatch {
+    private static final String LOG_TAG = HourlyBatch.class.getSimpleName();
+
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LOC_KEYS = HourlyEntry.COLUMN_LOC_KEY;
+    private static final String KEY_TIMES = HourlyEntry.COLUMN_TIME;
+    private static final String KEY_WEATHER_IDS = HourlyEntry.COLUMN_WEATHER_ID;
+    private static final String KEY_SHORT_DESCS = HourlyEntry.COLUMN_SHORT_DESC;
+    private static final String KEY_TEMPS = HourlyEntry.COLUMN_TEMP;
+    private static final String KEY_HUMIDITIES = HourlyEntry.COLUMN_HUMIDITY;
+    private static final String KEY_PRESSURES = HourlyEntry.COLUMN_PRESSURE;
+    private static final String KEY_WIND_SPEEDS = HourlyEntry.COLUMN_WIND_SPEED;
+    private static final String KEY_DEGREES = HourlyEntry.COLUMN_DEGREES;
+
+    // Key of the stored row count in the Bundle the provider returns.
+    static final String KEY_COUNT = "count";
+
+    int size;
+    long[] locKeys;
+    long[] times;
+    int[] weatherIds;
+    String[] shortDescs;
+    double[] temps;
+    double[] humidities;
+    double[] pressures;
+    double[] windSpeeds;
+    double[] degrees;
+
+    /**
+     * @param capacity how many rows to make room for up front; the batch grows past it if needed.
+     */
+    public HourlyBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        locKeys = new long[capacity];
+        times = new long[capacity];
+        weatherIds = new int[capacity];
+        shortDescs = new String[capacity];
+        temps = new double[capacity];
+        humidities = new double[capacity];
+        pressures = new double[capacity];
+        windSpeeds = new double[capacity];
+        degrees = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a row.  Times within the same hour are the same row; the last one added wins.
+     */
+    public void add(long locKey, long time, int weatherId, String shortDesc, double temp,
+                    double humidity, double pressure, double windSpeed, double degree) {
+        if (size == times.length) {
+            grow();
+        }
+        locKeys[size] = locKey;
+        times[size] = time;
+        weatherIds[size] = weatherId;
+        shortDescs[size] = shortDesc;
+        temps[size] = temp;
+        humidities[size] = humidity;
+        pressures[size] = pressure;
+        windSpeeds[size] = windSpeed;
+        degrees[size] = degree;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        locKeys = Arrays.copyOf(locKeys, capacity);
+        times = Arrays.copyOf(times, capacity);
+        weatherIds = Arrays.copyOf(weatherIds, capacity);
+        shortDescs = Arrays.copyOf(shortDescs, capacity);
+        temps = Arrays.copyOf(temps, capacity);
+        humidities = Arrays.copyOf(humidities, capacity);
+        pressures = Arrays.copyOf(pressures, capacity);
+        windSpeeds = Arrays.copyOf(windSpeeds, capacity);
+        degrees = Arrays.copyOf(degrees, capacity);
+    }
+
+    /**
+     * Replaces the stored hours of every location in the batch with the batch's, in one
+     * transaction.  From another process the batch has to fit in one binder transaction, as
+     * with {@link WeatherBatch#insert}; a sync of a few dozen locations is well inside it.
+     *
+     * @return the number of rows stored.
+     */
+    public int replace(ContentResolver resolver) {
+        if (size == 0) {
+            return 0;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return replaceByCall(resolver);
+        }
+        // ContentResolver.call() arrived in Honeycomb.  The provider applies a batch of
+        // operations in one transaction too, a row at a time.
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, toOperations());
+            return results.length - getLocationKeys().size();
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing hourly forecast", e);
+            return 0;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int replaceByCall(ContentResolver resolver) {
+        Bundle result = resolver.call(HourlyEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_HOURLY, null, toBundle());
+        return result == null ? 0 : result.getInt(KEY_COUNT);
+    }
+
+    /**
+     * @return the distinct locations in the batch, in the order they were first added.
+     */
+    LinkedHashSet<Long> getLocationKeys() {
+        LinkedHashSet<Long> locationKeys = new LinkedHashSet<Long>();
+        for (int i = 0; i < size; i++) {
+            locationKeys.add(locKeys[i]);
+        }
+        return locationKeys;
+    }
+
+    ArrayList<ContentProviderOperation> toOperations() {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(size + 1);
+        for (long locKey : getLocationKeys()) {
+            // The location's run of row ids; see HourlyEntry.
+            long base = locKey * HourlyEntry.HOURS_PER_LOCATION;
+            operations.add(ContentProviderOperation.newDelete(HourlyEntry.CONTENT_URI)
+                    .withSelection(HourlyEntry._ID + " BETWEEN ? AND ?", new String[]{
+                            Long.toString(base),
+                            Long.toString(base + HourlyEntry.HOURS_PER_LOCATION - 1)})
+                    .build());
+        }
+        for (int i = 0; i < size; i++) {
+            ContentValues row = new ContentValues();
+            row.put(HourlyEntry.COLUMN_LOC_KEY, locKeys[i]);
+            row.put(HourlyEntry.COLUMN_TIME, times[i]);
+            row.put(HourlyEntry.COLUMN_WEATHER_ID, weatherIds[i]);
+            row.put(HourlyEntry.COLUMN_SHORT_DESC, shortDescs[i]);
+            row.put(HourlyEntry.COLUMN_TEMP, temps[i]);
+            row.put(HourlyEntry.COLUMN_HUMIDITY, humidities[i]);
+            row.put(HourlyEntry.COLUMN_PRESSURE, pressures[i]);
+            row.put(HourlyEntry.COLUMN_WIND_SPEED, windSpeeds[i]);
+            row.put(HourlyEntry.COLUMN_DEGREES, degrees[i]);
+            operations.add(ContentProviderOperation.newInsert(HourlyEntry.CONTENT_URI)
+                    .withValues(row)
+                    .build());
+        }
+        return operations;
+    }
+
+    Bundle toBundle() {
+        // Trim to size, so the arrays that get parceled are only as long as the batch.
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_SIZE, size);
+        bundle.putLongArray(KEY_LOC_KEYS, Arrays.copyOf(locKeys, size));
+        bundle.putLongArray(KEY_TIMES, Arrays.copyOf(times, size));
+        bundle.putIntArray(KEY_WEATHER_IDS, Arrays.copyOf(weatherIds, size));
+        bundle.putStringArray(KEY_SHORT_DESCS, Arrays.copyOf(shortDescs, size));
+        bundle.putDoubleArray(KEY_TEMPS, Arrays.copyOf(temps, size));
+        bundle.putDoubleArray(KEY_HUMIDITIES, Arrays.copyOf(humidities, size));
+        bundle.putDoubleArray(KEY_PRESSURES, Arrays.copyOf(pressures, size));
+        bundle.putDoubleArray(KEY_WIND_SPEEDS, Arrays.copyOf(windSpeeds, size));
+        bundle.putDoubleArray(KEY_DEGREES, Arrays.copyOf(degrees, size));
+        return bundle;
+    }
+
+    /**
+     * @return the batch in {@code bundle}, or null if it isn't a complete one.
+     */
+    static HourlyBatch fromBundle(Bundle bundle) {
+        if (bundle == null) {
+            return null;
+        }
+        HourlyBatch batch = new HourlyBatch(0);
+        batch.size = bundle.getInt(KEY_SIZE);
+        batch.locKeys = bundle.getLongArray(KEY_LOC_KEYS);
+        batch.times = bundle.getLongArray(KEY_TIMES);
+        batch.weatherIds = bundle.getIntArray(KEY_WEATHER_IDS);
+        batch.shortDescs = bundle.getStringArray(KEY_SHORT_DESCS);
+        batch.temps = bundle.getDoubleArray(KEY_TEMPS);
+        batch.humidities = bundle.getDoubleArray(KEY_HUMIDITIES);
+        batch.pressures = bundle.getDoubleArray(KEY_PRESSURES);
+        batch.windSpeeds = bundle.getDoubleArray(KEY_WIND_SPEEDS);
+        batch.degrees = bundle.getDoubleArray(KEY_DEGREES);
+        int size = batch.size;
+        if (batch.locKeys == null || batch.locKeys.length < size
+                || batch.times == null || batch.times.length < size
+                || batch.weatherIds == null || batch.weatherIds.length < size
+                || batch.shortDescs == null || batch.shortDescs.length < size
+                || batch.temps == null || batch.temps.length < size
+                || batch.humidities == null || batch.humidities.length < size
+                || batch.pressures == null || batch.pressures.length < size
+                || batch.windSpeeds == null || batch.windSpeeds.length < size
+                || batch.degrees == null || batch.degrees.length < size) {
+            return null;
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.Arrays;
+
+/**
+ * Locations to store, each resolved to its row id whether it was there already or not.
+ * Built with {@link #add}, written with {@link #insertOrGet}.
+ * <p/>
+ * The provider does the whole batch in one transaction, so there's no window between looking a
+ * location up and inserting it for another writer to insert it first.  A location that's
+ * already stored gets its city name and coordinates refreshed, and is only written if they've
+ * changed.
+ */
+public class LocationBatch {
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_SETTINGS = LocationEntry.COLUMN_LOCATION_SETTING;
+    private static final String KEY_CITY_NAMES = LocationEntry.COLUMN_CITY_NAME;
+    private static final String KEY_LATS = LocationEntry.COLUMN_COORD_LAT;
+    private static final String KEY_LONGS = LocationEntry.COLUMN_COORD_LONG;
+
+    // Key of the row ids, in batch order, in the Bundle the provider returns.
+    static final String KEY_IDS = LocationEntry._ID;
+
+    int size;
+    String[] settings;
+    String[] cityNames;
+    double[] lats;
+    double[] longs;
+
+    /**
+     * @param capacity how many locations to make room for up front; the batch grows past it if
+     *                 needed.
+     */
+    public LocationBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        settings = new String[capacity];
+        cityNames = new String[capacity];
+        lats = new double[capacity];
+        longs = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(String locationSetting, String cityName, double lat, double lon) {
+        if (size == settings.length) {
+            int capacity = settings.length * 2;
+            settings = Arrays.copyOf(settings, capacity);
+            cityNames = Arrays.copyOf(cityNames, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+        }
+        settings[size] = locationSetting;
+        cityNames[size] = cityName;
+        lats[size] = lat;
+        longs[size] = lon;
+        size++;
+    }
+
+    /**
+     * Inserts the locations that aren't stored yet and refreshes the ones that are.
+     *
+     * @return each location's row id, in the order they were added; -1 for one that couldn't be
+     * stored.
+     */
+    public long[] insertOrGet(ContentResolver resolver) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return insertOrGetByCall(resolver);
+        }
+        // ContentResolver.call() arrived in Honeycomb.  Each upsert is still atomic on its own.
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            Uri uri = resolver.insert(LocationEntry.UPSERT_URI, toContentValues(i));
+            ids[i] = uri == null ? -1 : ContentUris.parseId(uri);
+        }
+        return ids;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private long[] insertOrGetByCall(ContentResolver resolver) {
+        Bundle result = resolver.call(LocationEntry.CONTENT_URI,
+                WeatherContract.METHOD_INSERT_OR_GET_LOCATIONS, null, toBundle());
+        long[] ids = result == null ? null : result.getLongArray(KEY_IDS);
+        if (ids == null) {
+            ids = new long[size];
+            Arrays.fill(ids, -1);
+        }
+        return ids;
+    }
+
+    ContentValues toContentValues(int i) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, settings[i]);
+        values.put(LocationEntry.COLUMN_CITY_NAME, cityNames[i]);
+        values.put(LocationEntry.COLUMN_COORD_LAT, lats[i]);
+        values.put(LocationEntry.COLUMN_COORD_LONG, longs[i]);
+        return values;
+    }
+
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_SIZE, size);
+        bundle.putStringArray(KEY_SETTINGS, Arrays.copyOf(settings, size));
+        bundle.putStringArray(KEY_CITY_NAMES, Arrays.copyOf(cityNames, size));
+        bundle.putDoubleArray(KEY_LATS, Arrays.copyOf(lats, size));
+        bundle.putDoubleArray(KEY_LONGS, Arrays.copyOf(longs, size));
+        return bundle;
+    }
+
+    /**
+     * @return the batch in {@code bundle}, or null if it isn't a complete one.
+     */
+    static LocationBatch fromBundle(Bundle bundle) {
+        if (bundle == null) {
+            return null;
+        }
+        LocationBatch batch = new LocationBatch(0);
+        batch.size = bundle.getInt(KEY_SIZE);
+        batch.settings = bundle.getStringArray(KEY_SETTINGS);
+        batch.cityNames = bundle.getStringArray(KEY_CITY_NAMES);
+        batch.lats = bundle.getDoubleArray(KEY_LATS);
+        batch.longs = bundle.getDoubleArray(KEY_LONGS);
+        int size = batch.size;
+        if (batch.settings == null || batch.settings.length < size
+                || batch.cityNames == null || batch.cityNames.length < size
+                || batch.lats == null || batch.lats.length < size
+                || batch.longs == null || batch.longs.length < size) {
+            return null;
+        }
+        return batch;
+    }
+}
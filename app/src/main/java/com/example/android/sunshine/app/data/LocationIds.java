@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.util.HashMap;
+
+/**
+ * Location settings and the row ids they resolve to.  The weather and archive URIs name a
+ * location by its setting, a TEXT comparison against the location table on every query; with
+ * the id in hand the weather table can be read on its own, by its integer key.
+ * <p/>
+ * Settings are looked up the first time they're asked for.  The provider keeps the map in
+ * step with its own location writes; nothing in the app writes locations around it.
+ * <p/>
+ * Thread safe.
+ */
+class LocationIds {
+
+    private static final String SQL_LOCATION_ID_BY_SETTING = "SELECT " +
+            LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME + " WHERE " +
+            LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    private final HashMap<String, Long> mIds = new HashMap<String, Long>();
+
+    // Bumped by every write, so a lookup that overlapped one doesn't store what it read.
+    private long mGeneration;
+
+    /**
+     * @return the row id of the location with {@code locationSetting}, or null if there's none.
+     */
+    Long get(SQLiteDatabase db, String locationSetting) {
+        long generation;
+        synchronized (this) {
+            Long id = mIds.get(locationSetting);
+            if (id != null) {
+                return id;
+            }
+            generation = mGeneration;
+        }
+        long id;
+        try {
+            id = DatabaseUtils.longForQuery(db, SQL_LOCATION_ID_BY_SETTING,
+                    new String[]{locationSetting});
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mIds.put(locationSetting, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Records a location the provider has just inserted or upserted.
+     */
+    synchronized void put(String locationSetting, long id) {
+        mGeneration++;
+        mIds.put(locationSetting, id);
+    }
+
+    /**
+     * Forgets everything, after a write that may have removed or renamed locations.
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mIds.clear();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent results of the per-location weather queries, held as plain rows.  After a sync the
+ * widget, Muzei, the notification and the detail screen all ask for today's weather at the
+ * preferred location; the first one reads SQLite and the rest are answered from here.
+ * <p/>
+ * Entries are dropped by the provider's own change notifications, as precisely as the URI
+ * allows: weather/&lt;location setting&gt;/&lt;date&gt; drops that location's entries whose
+ * dates include the day, weather/&lt;location setting&gt; drops all of the location's, as does
+ * a location inserted or changed by its setting, a location's sync state changing drops
+ * nothing, and anything else that could feed a weather query, such as a location deleted,
+ * drops everything.  Writes that go around the provider aren't seen; nothing in the app
+ * makes any.
+ * <p/>
+ * Reading a row's values back by type needs Cursor.getType, so this is Honeycomb and up.
+ * Thread safe.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class QueryCache {
+
+    // Bound on the cached values, rows times columns.  A forecast list is about 14 x 10.
+    static final int MAX_CELLS = 4096;
+    // Results bigger than this aren't cached, rather than pushing out everything else.
+    static final int MAX_ENTRY_CELLS = MAX_CELLS / 4;
+
+    private static class Entry {
+        final String locationSetting;
+        // The dates the query covers, both inclusive.
+        final long startDate;
+        final long endDate;
+        final String[] columns;
+        final Object[][] rows;
+
+        Entry(String locationSetting, long startDate, long endDate, String[] columns,
+              Object[][] rows) {
+            this.locationSetting = locationSetting;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        boolean covers(String locationSetting, long date) {
+            return this.locationSetting.equals(locationSetting)
+                    && date >= startDate && date <= endDate;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_CELLS) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            return Math.max(1, entry.rows.length * entry.columns.length);
+        }
+    };
+
+    // Bumped by every invalidation, so a query that was running while a write came in doesn't
+    // put its possibly stale result in after the write has cleared the way.
+    private long mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    static String key(Uri uri, String[] projection, String sortOrder) {
+        return uri + "|" + (projection == null ? "*" : TextUtils.join(",", projection)) + "|"
+                + sortOrder;
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized int getHits() {
+        return mHits;
+    }
+
+    synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return a cursor over the rows cached under {@code key}, or null if there are none.
+     */
+    Cursor get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return toCursor(entry.columns, entry.rows);
+    }
+
+    /**
+     * Reads {@code cursor} out and caches its rows under {@code key}, unless the result is too
+     * big or a write has come in since {@code generation} was taken.
+     *
+     * @return a cursor over the same rows, to be used in place of {@code cursor}.
+     */
+    Cursor put(String key, long generation, String locationSetting, long startDate,
+               long endDate, Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        int count = cursor.getCount();
+        if (count * columns.length > MAX_ENTRY_CELLS) {
+            return cursor;
+        }
+
+        Object[][] rows = new Object[count][];
+        try {
+            for (int r = 0; cursor.moveToNext(); r++) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = cursor.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[i] = cursor.getString(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = cursor.getBlob(i);
+                            break;
+                        default:
+                            row[i] = null;
+                            break;
+                    }
+                }
+                rows[r] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, new Entry(locationSetting, startDate, endDate, columns, rows));
+            }
+        }
+        return toCursor(columns, rows);
+    }
+
+    /**
+     * Drops whatever a change notification for {@code uri} could have made stale.
+     */
+    synchronized void invalidate(Uri uri) {
+        mGeneration++;
+        List<String> segments = uri.getPathSegments();
+        String table = segments.isEmpty() ? null : segments.get(0);
+        if (WeatherContract.PATH_ARCHIVE.equals(table)
+                || WeatherContract.PATH_METRICS.equals(table)
+                || WeatherContract.PATH_HOURLY.equals(table)
+                || uri.equals(WeatherContract.LocationEntry.SYNC_STATE_URI)) {
+            // Not read by anything cached.
+            return;
+        }
+        String locationSetting;
+        boolean wholeLocation;
+        if (WeatherContract.LocationEntry.isLocationSettingUri(uri)) {
+            // A location inserted or changed: its weather may now read differently, no other's.
+            locationSetting = WeatherContract.LocationEntry.getLocationSettingFromUri(uri);
+            wholeLocation = true;
+        } else if (WeatherContract.PATH_WEATHER.equals(table) && segments.size() >= 2) {
+            locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+            wholeLocation = segments.size() < 3;
+        } else {
+            mEntries.evictAll();
+            return;
+        }
+        long date = wholeLocation ? 0 : WeatherContract.WeatherEntry.getDateFromUri(uri);
+        for (Map.Entry<String, Entry> cached : mEntries.snapshot().entrySet()) {
+            Entry entry = cached.getValue();
+            if (wholeLocation ? entry.locationSetting.equals(locationSetting)
+                    : entry.covers(locationSetting, date)) {
+                mEntries.remove(cached.getKey());
+            }
+        }
+    }
+
+    private static Cursor toCursor(String[] columns, Object[][] rows) {
+        MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+        for (Object[] row : rows) {
+            // addRow copies the values, so the cached row stays as it is.
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
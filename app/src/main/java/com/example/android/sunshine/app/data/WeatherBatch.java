@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * Weather rows to insert, held column by column in primitive arrays rather than as one
+ * {@link ContentValues} map per row.  Built with {@link #add}, written with {@link #insert}.
+ * <p/>
+ * Crosses to the provider as a Bundle of arrays, so there is no per-row boxing on either side
+ * and the provider binds straight from the arrays into one compiled insert statement.
+ */
+public class WeatherBatch {
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LOC_KEYS = WeatherEntry.COLUMN_LOC_KEY;
+    private static final String KEY_DATES = WeatherEntry.COLUMN_DATE;
+    private static final String KEY_SHORT_DESCS = WeatherEntry.COLUMN_SHORT_DESC;
+    private static final String KEY_WEATHER_IDS = WeatherEntry.COLUMN_WEATHER_ID;
+    private static final String KEY_MIN_TEMPS = WeatherEntry.COLUMN_MIN_TEMP;
+    private static final String KEY_MAX_TEMPS = WeatherEntry.COLUMN_MAX_TEMP;
+    private static final String KEY_HUMIDITIES = WeatherEntry.COLUMN_HUMIDITY;
+    private static final String KEY_PRESSURES = WeatherEntry.COLUMN_PRESSURE;
+    private static final String KEY_WIND_SPEEDS = WeatherEntry.COLUMN_WIND_SPEED;
+    private static final String KEY_DEGREES = WeatherEntry.COLUMN_DEGREES;
+
+    // Key of the inserted row count in the Bundle the provider returns.
+    static final String KEY_COUNT = "count";
+
+    int size;
+    long[] locKeys;
+    long[] dates;
+    String[] shortDescs;
+    int[] weatherIds;
+    double[] minTemps;
+    double[] maxTemps;
+    double[] humidities;
+    double[] pressures;
+    double[] windSpeeds;
+    double[] degrees;
+
+    /**
+     * @param capacity how many rows to make room for up front; the batch grows past it if needed.
+     */
+    public WeatherBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        locKeys = new long[capacity];
+        dates = new long[capacity];
+        shortDescs = new String[capacity];
+        weatherIds = new int[capacity];
+        minTemps = new double[capacity];
+        maxTemps = new double[capacity];
+        humidities = new double[capacity];
+        pressures = new double[capacity];
+        windSpeeds = new double[capacity];
+        degrees = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a row.  The date doesn't need to be normalized; the provider does that.
+     */
+    public void add(long locKey, long date, String shortDesc, int weatherId, double minTemp,
+                    double maxTemp, double humidity, double pressure, double windSpeed,
+                    double degree) {
+        if (size == dates.length) {
+            grow();
+        }
+        locKeys[size] = locKey;
+        dates[size] = date;
+        shortDescs[size] = shortDesc;
+        weatherIds[size] = weatherId;
+        minTemps[size] = minTemp;
+        maxTemps[size] = maxTemp;
+        humidities[size] = humidity;
+        pressures[size] = pressure;
+        windSpeeds[size] = windSpeed;
+        degrees[size] = degree;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = dates.length * 2;
+        locKeys = Arrays.copyOf(locKeys, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        shortDescs = Arrays.copyOf(shortDescs, capacity);
+        weatherIds = Arrays.copyOf(weatherIds, capacity);
+        minTemps = Arrays.copyOf(minTemps, capacity);
+        maxTemps = Arrays.copyOf(maxTemps, capacity);
+        humidities = Arrays.copyOf(humidities, capacity);
+        pressures = Arrays.copyOf(pressures, capacity);
+        windSpeeds = Arrays.copyOf(windSpeeds, capacity);
+        degrees = Arrays.copyOf(degrees, capacity);
+    }
+
+    /**
+     * Inserts the rows in one transaction, replacing any row already stored for the same
+     * location and date.  From another process the batch has to fit in one binder transaction,
+     * about a megabyte, so keep those batches to a few thousand rows.
+     *
+     * @return the number of rows inserted.
+     */
+    public int insert(ContentResolver resolver) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return insertByCall(resolver);
+        }
+        // ContentResolver.call() arrived in Honeycomb.
+        return resolver.bulkInsert(WeatherEntry.CONTENT_URI, toContentValues());
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int insertByCall(ContentResolver resolver) {
+        Bundle result = resolver.call(WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_BULK_INSERT_WEATHER, null, toBundle());
+        return result == null ? 0 : result.getInt(KEY_COUNT);
+    }
+
+    ContentValues[] toContentValues() {
+        ContentValues[] values = new ContentValues[size];
+        for (int i = 0; i < size; i++) {
+            ContentValues row = new ContentValues();
+            row.put(WeatherEntry.COLUMN_LOC_KEY, locKeys[i]);
+            row.put(WeatherEntry.COLUMN_DATE, dates[i]);
+            row.put(WeatherEntry.COLUMN_SHORT_DESC, shortDescs[i]);
+            row.put(WeatherEntry.COLUMN_WEATHER_ID, weatherIds[i]);
+            row.put(WeatherEntry.COLUMN_MIN_TEMP, minTemps[i]);
+            row.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemps[i]);
+            row.put(WeatherEntry.COLUMN_HUMIDITY, humidities[i]);
+            row.put(WeatherEntry.COLUMN_PRESSURE, pressures[i]);
+            row.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeeds[i]);
+            row.put(WeatherEntry.COLUMN_DEGREES, degrees[i]);
+            values[i] = row;
+        }
+        return values;
+    }
+
+    Bundle toBundle() {
+        // Trim to size, so the arrays that get parceled are only as long as the batch.
+        Bundle bundle = new Bundle();
+        bundle.putInt(KEY_SIZE, size);
+        bundle.putLongArray(KEY_LOC_KEYS, Arrays.copyOf(locKeys, size));
+        bundle.putLongArray(KEY_DATES, Arrays.copyOf(dates, size));
+        bundle.putStringArray(KEY_SHORT_DESCS, Arrays.copyOf(shortDescs, size));
+        bundle.putIntArray(KEY_WEATHER_IDS, Arrays.copyOf(weatherIds, size));
+        bundle.putDoubleArray(KEY_MIN_TEMPS, Arrays.copyOf(minTemps, size));
+        bundle.putDoubleArray(KEY_MAX_TEMPS, Arrays.copyOf(maxTemps, size));
+        bundle.putDoubleArray(KEY_HUMIDITIES, Arrays.copyOf(humidities, size));
+        bundle.putDoubleArray(KEY_PRESSURES, Arrays.copyOf(pressures, size));
+        bundle.putDoubleArray(KEY_WIND_SPEEDS, Arrays.copyOf(windSpeeds, size));
+        bundle.putDoubleArray(KEY_DEGREES, Arrays.copyOf(degrees, size));
+        return bundle;
+    }
+
+    /**
+     * @return the batch in {@code bundle}, or null if it isn't a complete one.
+     */
+    static WeatherBatch fromBundle(Bundle bundle) {
+        if (bundle == null) {
+            return null;
+        }
+        WeatherBatch batch = new WeatherBatch(0);
+        batch.size = bundle.getInt(KEY_SIZE);
+        batch.locKeys = bundle.getLongArray(KEY_LOC_KEYS);
+        batch.dates = bundle.getLongArray(KEY_DATES);
+        batch.shortDescs = bundle.getStringArray(KEY_SHORT_DESCS);
+        batch.weatherIds = bundle.getIntArray(KEY_WEATHER_IDS);
+        batch.minTemps = bundle.getDoubleArray(KEY_MIN_TEMPS);
+        batch.maxTemps = bundle.getDoubleArray(KEY_MAX_TEMPS);
+        batch.humidities = bundle.getDoubleArray(KEY_HUMIDITIES);
+        batch.pressures = bundle.getDoubleArray(KEY_PRESSURES);
+        batch.windSpeeds = bundle.getDoubleArray(KEY_WIND_SPEEDS);
+        batch.degrees = bundle.getDoubleArray(KEY_DEGREES);
+        int size = batch.size;
+        if (batch.locKeys == null || batch.locKeys.length < size
+                || batch.dates == null || batch.dates.length < size
+                || batch.shortDescs == null || batch.shortDescs.length < size
+                || batch.weatherIds == null || batch.weatherIds.length < size
+                || batch.minTemps == null || batch.minTemps.length < size
+                || batch.maxTemps == null || batch.maxTemps.length < size
+                || batch.humidities == null || batch.humidities.length < size
+                || batch.pressures == null || batch.pressures.length < size
+                || batch.windSpeeds == null || batch.windSpeeds.length < size
+                || batch.degrees == null || batch.degrees.length < size) {
+            return null;
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The weather rows a write touched, by location and date, so the provider can notify
+ * weather/&lt;location setting&gt;/&lt;date&gt; for each day rather than the whole weather URI.
+ * A detail screen showing one day then isn't requeried because another day changed, while the
+ * forecast list, observing weather/&lt;location setting&gt; and its descendants, still is.
+ * <p/>
+ * Past {@link #MAX_DATES} days for one location, the location is notified as a whole, and past
+ * {@link #MAX_LOCATIONS} locations the whole weather URI is, so a wide delete costs a handful
+ * of notifications rather than one per row.  The broader URI reaches every observer the
+ * narrower ones would have.
+ * <p/>
+ * Not thread safe; make one per write.
+ */
+class WeatherChanges {
+
+    static final int MAX_DATES = 32;
+    static final int MAX_LOCATIONS = 8;
+
+    private static final String[] WEATHER_KEY_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE
+    };
+
+    // These indices must match WEATHER_KEY_COLUMNS.
+    private static final int COL_LOC_KEY = 0;
+    private static final int COL_DATE = 1;
+
+    private static final String SQL_LOCATION_SETTING_BY_ID = "SELECT " +
+            LocationEntry.COLUMN_LOCATION_SETTING + " FROM " + LocationEntry.TABLE_NAME +
+            " WHERE " + LocationEntry._ID + " = ?";
+
+    // Changed dates by location row id.  A location mapped to null changed as a whole.
+    private final HashMap<Long, LinkedHashSet<Long>> mDates =
+            new HashMap<Long, LinkedHashSet<Long>>();
+    private boolean mEverything;
+
+    /**
+     * Records a change to the row for {@code locationId} on the normalized {@code date}.
+     */
+    void add(long locationId, long date) {
+        if (mEverything) {
+            return;
+        }
+        LinkedHashSet<Long> dates = mDates.get(locationId);
+        if (dates == null) {
+            if (mDates.containsKey(locationId)) {
+                return;
+            }
+            if (mDates.size() == MAX_LOCATIONS) {
+                addEverything();
+                return;
+            }
+            dates = new LinkedHashSet<Long>();
+            mDates.put(locationId, dates);
+        }
+        dates.add(date);
+        if (dates.size() > MAX_DATES) {
+            mDates.put(locationId, null);
+        }
+    }
+
+    /**
+     * Records a change that can't be narrowed down, such as one that moves rows to another
+     * location or date.
+     */
+    void addEverything() {
+        mEverything = true;
+        mDates.clear();
+    }
+
+    /**
+     * Records the rows matching {@code selection}.  Call it before the update or delete that
+     * uses the same selection.
+     */
+    void addMatching(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (mEverything) {
+            return;
+        }
+        Cursor cursor = db.query(true, WeatherEntry.TABLE_NAME, WEATHER_KEY_COLUMNS, selection,
+                selectionArgs, null, null, null, null);
+        try {
+            while (!mEverything && cursor.moveToNext()) {
+                add(cursor.getLong(COL_LOC_KEY), cursor.getLong(COL_DATE));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    boolean isEmpty() {
+        return !mEverything && mDates.isEmpty();
+    }
+
+    /**
+     * @return the URIs to notify.  Rows whose location can't be found are covered by the
+     * weather URI.
+     */
+    List<Uri> toUris(SQLiteDatabase db) {
+        ArrayList<Uri> uris = new ArrayList<Uri>();
+        if (mEverything) {
+            uris.add(WeatherEntry.CONTENT_URI);
+            return uris;
+        }
+        for (Map.Entry<Long, LinkedHashSet<Long>> entry : mDates.entrySet()) {
+            String locationSetting;
+            try {
+                locationSetting = DatabaseUtils.stringForQuery(db, SQL_LOCATION_SETTING_BY_ID,
+                        new String[]{Long.toString(entry.getKey())});
+            } catch (SQLiteDoneException e) {
+                locationSetting = null;
+            }
+            if (locationSetting == null) {
+                uris.clear();
+                uris.add(WeatherEntry.CONTENT_URI);
+                return uris;
+            }
+            if (entry.getValue() == null) {
+                uris.add(WeatherEntry.buildWeatherLocation(locationSetting));
+            } else {
+                for (long date : entry.getValue()) {
+                    uris.add(WeatherEntry.buildWeatherLocationWithDate(locationSetting, date));
+                }
+            }
+        }
+        return uris;
+    }
+}
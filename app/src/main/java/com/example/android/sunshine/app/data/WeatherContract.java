@@ -21,6 +21,8 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.format.Time;
 
+import java.util.List;
+
 /**
  * Defines table and column names for the weather database.
  */
@@ -43,6 +45,38 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_ARCHIVE = "archive";
+    public static final String PATH_CONDITIONS = "conditions";
+    public static final String PATH_FIRST = "first";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_SYNC_STATE = "sync_state";
+    public static final String PATH_SETTING = "setting";
+
+    // Query parameter that turns a location insert into an upsert; see LocationEntry.UPSERT_URI.
+    public static final String PARAM_UPSERT = "upsert";
+    // Query parameter that has a weather delete archive the days first; see
+    // WeatherEntry.ARCHIVING_URI.
+    public static final String PARAM_ARCHIVE = "archive";
+
+    // Provider methods, for ContentResolver.call().  Folds the database's write-ahead log back
+    // into the main file; the sync adapter calls it once a sync's writes are in.
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+    // Rebuilds the database for incremental auto-vacuum if it isn't set up for it yet; the sync
+    // adapter calls it after the checkpoint, and again on later syncs until it has succeeded.
+    public static final String METHOD_ENABLE_INCREMENTAL_VACUUM = "enable_incremental_vacuum";
+    // Inserts a WeatherBatch; use WeatherBatch.insert() rather than calling it directly.
+    public static final String METHOD_BULK_INSERT_WEATHER = "bulk_insert_weather";
+    // Stores a LocationBatch and returns the row ids; use LocationBatch.insertOrGet().
+    public static final String METHOD_INSERT_OR_GET_LOCATIONS = "insert_or_get_locations";
+    // Replaces locations' hours with an HourlyBatch; use HourlyBatch.replace().
+    public static final String METHOD_REPLACE_HOURLY = "replace_hourly";
+    // How the provider's query cache has done since the provider started, as a Bundle with
+    // KEY_QUERY_CACHE_HITS and KEY_QUERY_CACHE_MISSES.  Null where there's no cache.
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+    public static final String KEY_QUERY_CACHE_HITS = "hits";
+    public static final String KEY_QUERY_CACHE_MISSES = "misses";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -54,6 +88,13 @@ public class WeatherContract {
         return time.setJulianDay(julianDay);
     }
 
+    // Reads a numeric query parameter, for the range and paging parameters of the entries
+    // below.  Missing or empty, it's defaultValue: the open end of a range, or no limit.
+    private static long getLongParameter(Uri uri, String name, long defaultValue) {
+        String value = uri.getQueryParameter(name);
+        return value == null || value.length() == 0 ? defaultValue : Long.parseLong(value);
+    }
+
     /* Inner class that defines the table contents of the location table */
     public static final class LocationEntry implements BaseColumns {
 
@@ -81,9 +122,66 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // HTTP cache validators from the last full forecast response for this location, so the
+        // next sync can ask the server whether anything changed.  ETag and Last-Modified are
+        // stored exactly as the server sent them; either may be null.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // Time in milliseconds since the epoch until which the last response is fresh, derived
+        // from its Cache-Control max-age.  0 means it must be revalidated.
+        public static final String COLUMN_EXPIRES = "expires";
+
+        // Size in bytes of the last full forecast response body, used to account for the
+        // bytes a cache hit saves.
+        public static final String COLUMN_CONTENT_LENGTH = "content_length";
+
+        // Outcome of the most recent sync of this location, one of the
+        // SunshineSyncAdapter.LOCATION_STATUS_* values.
+        public static final String COLUMN_SYNC_STATUS = "sync_status";
+
+        // How much of the stored forecast each of the last few syncs changed, oldest first, as
+        // comma separated per mille values.  The sync scheduler reads it to decide how soon the
+        // next sync should run.
+        public static final String COLUMN_CHANGE_HISTORY = "change_history";
+
+        // Inserting through this URI updates the row with the same location setting if there
+        // is one, instead of failing on it, and returns that row's URI either way.  The sync
+        // puts its location first in a batch this way, so the days can be keyed to it by back
+        // reference whether or not it was already stored.
+        public static final Uri UPSERT_URI =
+                CONTENT_URI.buildUpon().appendQueryParameter(PARAM_UPSERT, "true").build();
+
+        // Notified in place of CONTENT_URI by a location update that only changes the sync
+        // state: the cache validators, the change history and the sync status.  No weather
+        // query returns those, so the provider's query cache keeps what it has.
+        public static final Uri SYNC_STATE_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_SYNC_STATE).build();
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        // Notified in place of CONTENT_URI when a location is inserted or changed by its
+        // location setting, so the query cache only drops that location's entries.
+        public static Uri buildLocationSettingUri(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SETTING)
+                    .appendPath(locationSetting).build();
+        }
+
+        public static boolean isLocationSettingUri(Uri uri) {
+            List<String> segments = uri.getPathSegments();
+            return segments.size() == 3 && PATH_LOCATION.equals(segments.get(0))
+                    && PATH_SETTING.equals(segments.get(1));
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return Boolean.parseBoolean(uri.getQueryParameter(PARAM_UPSERT));
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -97,6 +195,11 @@ public class WeatherContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEATHER;
 
+        // Deleting through this URI moves the deleted days into the archive first, in the same
+        // transaction, instead of losing them.  The sync's retention delete uses it.
+        public static final Uri ARCHIVING_URI =
+                CONTENT_URI.buildUpon().appendQueryParameter(PARAM_ARCHIVE, "true").build();
+
         public static final String TABLE_NAME = "weather";
 
         // Column with the foreign key into the location table.
@@ -126,6 +229,34 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Paging for weather/<location setting>: at most PARAM_LIMIT days, starting after the
+        // date in PARAM_AFTER_DATE.  Paged results always come in date order, so the last date
+        // of one page is the key for the next, and a page costs the same however deep it is.
+        public static final String PARAM_LIMIT = "limit";
+        public static final String PARAM_AFTER_DATE = "after";
+
+        // Aggregates over a location's days, computed by SQLite in one query each:
+        //   weather/<location setting>/summary: one row, with the columns below
+        //   weather/<location setting>/conditions: a row per weather id, with COLUMN_WEATHER_ID
+        //       and COLUMN_DAYS, most frequent first
+        //   weather/<location setting>/first: the earliest day whose weather id is between
+        //       PARAM_WEATHER_ID_FROM and PARAM_WEATHER_ID_TO, as a weather row, or no rows
+        // Each takes an optional range, PARAM_START_DATE to PARAM_END_DATE, both inclusive.
+        public static final String PARAM_START_DATE = "start";
+        public static final String PARAM_END_DATE = "end";
+        public static final String PARAM_WEATHER_ID_FROM = "weather_id_from";
+        public static final String PARAM_WEATHER_ID_TO = "weather_id_to";
+
+        // Columns of the summary cursor, over the days in range
+        public static final String COLUMN_DAYS = "days";
+        // Lowest low and highest high
+        public static final String COLUMN_LOWEST = "lowest";
+        public static final String COLUMN_HIGHEST = "highest";
+        // Means of the daily lows, of the daily highs, and of both together
+        public static final String COLUMN_MEAN_MIN = "mean_min";
+        public static final String COLUMN_MEAN_MAX = "mean_max";
+        public static final String COLUMN_MEAN_TEMP = "mean_temp";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -144,15 +275,79 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        /**
+         * @param afterDate the last date of the previous page, or Long.MIN_VALUE for the first.
+         */
+        public static Uri buildWeatherLocationPage(String locationSetting, long startDate,
+                                                   long afterDate, int limit) {
+            Uri.Builder builder = buildWeatherLocationWithStartDate(locationSetting, startDate)
+                    .buildUpon().appendQueryParameter(PARAM_LIMIT, Integer.toString(limit));
+            if (afterDate != Long.MIN_VALUE) {
+                builder.appendQueryParameter(PARAM_AFTER_DATE, Long.toString(afterDate));
+            }
+            return builder.build();
+        }
+
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
             return CONTENT_URI.buildUpon().appendPath(locationSetting)
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        public static Uri buildWeatherSummary(String locationSetting, long startDate,
+                                              long endDate) {
+            return buildAggregate(locationSetting, PATH_SUMMARY, startDate, endDate).build();
+        }
+
+        public static Uri buildWeatherConditions(String locationSetting, long startDate,
+                                                 long endDate) {
+            return buildAggregate(locationSetting, PATH_CONDITIONS, startDate, endDate).build();
+        }
+
+        public static Uri buildWeatherFirstMatch(String locationSetting, long startDate,
+                                                 long endDate, int weatherIdFrom,
+                                                 int weatherIdTo) {
+            return buildAggregate(locationSetting, PATH_FIRST, startDate, endDate)
+                    .appendQueryParameter(PARAM_WEATHER_ID_FROM, Integer.toString(weatherIdFrom))
+                    .appendQueryParameter(PARAM_WEATHER_ID_TO, Integer.toString(weatherIdTo))
+                    .build();
+        }
+
+        private static Uri.Builder buildAggregate(String locationSetting, String aggregate,
+                                                  long startDate, long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(aggregate)
+                    .appendQueryParameter(PARAM_START_DATE, Long.toString(startDate))
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(endDate));
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
 
+        public static long getRangeStartFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_START_DATE, Long.MIN_VALUE);
+        }
+
+        public static long getRangeEndFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_END_DATE, Long.MAX_VALUE);
+        }
+
+        public static long getAfterDateFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_AFTER_DATE, Long.MIN_VALUE);
+        }
+
+        // 0 if there's no limit.
+        public static int getLimitFromUri(Uri uri) {
+            return (int) getLongParameter(uri, PARAM_LIMIT, 0);
+        }
+
+        public static long getWeatherIdRangeStartFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_WEATHER_ID_FROM, Long.MIN_VALUE);
+        }
+
+        public static long getWeatherIdRangeEndFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_WEATHER_ID_TO, Long.MAX_VALUE);
+        }
+
         public static long getDateFromUri(Uri uri) {
             return Long.parseLong(uri.getPathSegments().get(2));
         }
@@ -164,5 +359,219 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        public static boolean isArchivingUri(Uri uri) {
+            return Boolean.parseBoolean(uri.getQueryParameter(PARAM_ARCHIVE));
+        }
+    }
+
+    /*
+        Inner class that defines the forecast archive: the days that have dropped out of the
+        weather table, kept compactly so years of them fit on a small device.
+
+        Query archive/<location setting> for the stored days and archive/<location setting>/
+        summary for aggregates, both optionally limited to a range of dates.  Rows come back
+        decoded, in the same units and under the same column names as the weather table.
+     */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ARCHIVE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ARCHIVE;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ARCHIVE;
+
+        // One row per location and day.  The row id is the key: the location's row id times
+        // DAYS_PER_LOCATION, plus the day, counted from the epoch in local time.  That makes
+        // a location's days one contiguous run of row ids, read without any other index.
+        // Temperatures, pressure and wind are stored in tenths, as integers; humidity and
+        // degrees as whole numbers.
+        public static final String TABLE_NAME = "archive";
+        // The short description of each weather id, stored once rather than on every day.  The
+        // weather table's days share it.
+        public static final String DESCRIPTION_TABLE_NAME = "archive_description";
+
+        public static final long DAYS_PER_LOCATION = 1 << 20;
+
+        // Range parameters, dates in milliseconds since the epoch, both inclusive.
+        public static final String PARAM_START_DATE = "start";
+        public static final String PARAM_END_DATE = "end";
+
+        // Columns of the summary cursor, over the days in range
+        public static final String COLUMN_DAYS = "days";
+        // Lowest low and highest high
+        public static final String COLUMN_LOWEST = "lowest";
+        public static final String COLUMN_HIGHEST = "highest";
+        // Means of the daily values
+        public static final String COLUMN_MEAN_MIN = "mean_min";
+        public static final String COLUMN_MEAN_MAX = "mean_max";
+        public static final String COLUMN_MEAN_HUMIDITY = "mean_humidity";
+        public static final String COLUMN_MEAN_PRESSURE = "mean_pressure";
+        public static final String COLUMN_MEAN_WIND_SPEED = "mean_wind";
+
+        public static Uri buildArchiveLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static Uri buildArchiveLocationWithRange(
+                String locationSetting, long startDate, long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_START_DATE, Long.toString(startDate))
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(endDate)).build();
+        }
+
+        public static Uri buildArchiveSummaryWithRange(
+                String locationSetting, long startDate, long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(PATH_SUMMARY)
+                    .appendQueryParameter(PARAM_START_DATE, Long.toString(startDate))
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(endDate)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartDateFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_START_DATE, Long.MIN_VALUE);
+        }
+
+        public static long getEndDateFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_END_DATE, Long.MAX_VALUE);
+        }
+    }
+
+    /*
+        Inner class that defines the hourly forecast: OWM's 5 day / 3 hour forecast, a row per
+        location and forecast time.  That's about 40 rows per location against the weather
+        table's 14, and a sync replaces all of them.
+
+        Query hourly/<location setting> for a location's hours, optionally limited to a range
+        of times, in time order.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        // As in the archive, the row id is the key: the location's row id times
+        // HOURS_PER_LOCATION, plus the hour, counted from the epoch in UTC.  A location's
+        // hours are one contiguous run of row ids, so neither a range query nor the delete
+        // that replaces them needs another index.  The location and time columns below are
+        // decoded from it.
+        public static final String TABLE_NAME = "hourly";
+
+        public static final long HOURS_PER_LOCATION = 1 << 24;
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Forecast time, in milliseconds since the epoch.  OWM's are every three hours, on the
+        // hour in UTC.
+        public static final String COLUMN_TIME = "time";
+        // Weather id and short description, as in the weather table
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // Temperature at that time, rather than the day's low and high
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity, pressure, wind speed and direction, as in the weather table
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final String COLUMN_DEGREES = "degrees";
+
+        // Range parameters, times in milliseconds since the epoch, both inclusive.
+        public static final String PARAM_START_TIME = "start";
+        public static final String PARAM_END_TIME = "end";
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static Uri buildHourlyLocationWithRange(
+                String locationSetting, long startTime, long endTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(PARAM_START_TIME, Long.toString(startTime))
+                    .appendQueryParameter(PARAM_END_TIME, Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_START_TIME, Long.MIN_VALUE);
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_END_TIME, Long.MAX_VALUE);
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync metrics table */
+    public static final class MetricsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_METRICS).build();
+
+        // One row per stage, with its percentiles over every run kept in the table.
+        public static final Uri SUMMARY_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_SUMMARY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        public static final String TABLE_NAME = "sync_metrics";
+
+        // Only the most recent runs are kept; older rows are dropped as new ones come in.
+        public static final int MAX_ROWS = 500;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_START_TIME = "start_time";
+        // The location setting that was synced
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        // Stage timings, in milliseconds.  NULL when the run never reached the stage, e.g. the
+        // network stages of a sync answered from the cache.
+        // Opening the connection
+        public static final String COLUMN_CONNECT_TIME = "connect_time";
+        // From starting the request to having the response headers
+        public static final String COLUMN_FIRST_BYTE_TIME = "first_byte_time";
+        // Reading and decoding the body; the parser streams, so this includes the download
+        public static final String COLUMN_DECODE_TIME = "decode_time";
+        // Diffing against and writing to the database
+        public static final String COLUMN_DB_TIME = "db_time";
+        // From starting the fan-out until the last consumer finished or timed out
+        public static final String COLUMN_FAN_OUT_TIME = "fan_out_time";
+
+        // Response body bytes as they came off the wire, before decompression
+        public static final String COLUMN_BYTES = "bytes";
+        // HTTP status code, or NULL if no request was made
+        public static final String COLUMN_HTTP_STATUS = "http_status";
+        // One of the SunshineSyncAdapter.LOCATION_STATUS_* values
+        public static final String COLUMN_RESULT = "result";
+
+        // The stage columns, in pipeline order.  The summary has one row for each.
+        public static final String[] STAGE_COLUMNS = new String[]{
+                COLUMN_CONNECT_TIME,
+                COLUMN_FIRST_BYTE_TIME,
+                COLUMN_DECODE_TIME,
+                COLUMN_DB_TIME,
+                COLUMN_FAN_OUT_TIME
+        };
+
+        // Columns of the summary cursor
+        public static final String COLUMN_STAGE = "stage";
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P95 = "p95";
+        public static final String COLUMN_P99 = "p99";
+
+        public static Uri buildMetricsUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
     }
 }
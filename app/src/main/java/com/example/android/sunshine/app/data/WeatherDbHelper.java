@@ -16,24 +16,179 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
+import java.io.File;
 
 /**
  * Manages a local database for weather data.
+ * <p/>
+ * From Honeycomb on the database runs in write-ahead-log mode, so the forecast list, the widgets
+ * and Muzei keep reading the last committed forecast while a sync is writing the next one,
+ * instead of queueing behind its transaction.
+ * <p/>
+ * The weather table is a view over the compact rows described on WeatherStorage.  The database
+ * uses incremental auto-vacuum, so the pages the sync's retention delete frees can be given back
+ * to the file system without rebuilding the whole file.  A database from before then is switched
+ * over by the sync; see enableIncrementalVacuum().
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
+
+    // If you change the database schema, you must increment the database version, and add the
+    // step from the old version to WeatherMigrations.
+    static final int DATABASE_VERSION = 10;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Every weather query in WeatherProvider picks a location, then a date or a run of dates
+    // from it.  UNIQUE(date, location_id) has its columns the wrong way round for that, so
+    // without this each of them scans the whole weather table.  The location side is already
+    // covered by the index behind location_setting's UNIQUE constraint.
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date_idx";
+
+    private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + WEATHER_LOCATION_DATE_INDEX + " ON " +
+                    WeatherStorage.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ");";
+
+    // The weather table as the contract has it, decoded from the stored rows.  A plain select
+    // from one table, so SQLite flattens it into the queries that use it and they keep using the
+    // stored table's indexes.  The description is a primary key lookup, made only for queries
+    // that ask for it.
+    private static final String SQL_CREATE_WEATHER_VIEW =
+            "CREATE VIEW " + WeatherEntry.TABLE_NAME + " AS SELECT " +
+                    WeatherEntry._ID + " AS " + WeatherEntry._ID + ", " +
+                    WeatherEntry.COLUMN_LOC_KEY + " AS " + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + " AS " + WeatherEntry.COLUMN_DATE + ", " +
+                    "(SELECT " + WeatherEntry.COLUMN_SHORT_DESC + " FROM " +
+                    WeatherStorage.DESCRIPTION_TABLE_NAME + " d WHERE d." +
+                    WeatherEntry.COLUMN_WEATHER_ID + " = " + WeatherStorage.TABLE_NAME + "." +
+                    WeatherEntry.COLUMN_WEATHER_ID + ") AS " + WeatherEntry.COLUMN_SHORT_DESC +
+                    ", " + WeatherEntry.COLUMN_WEATHER_ID + " AS " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                    decodeColumn(WeatherEntry.COLUMN_MIN_TEMP) + ", " +
+                    decodeColumn(WeatherEntry.COLUMN_MAX_TEMP) + ", " +
+                    decodeColumn(WeatherEntry.COLUMN_HUMIDITY) + ", " +
+                    decodeColumn(WeatherEntry.COLUMN_PRESSURE) + ", " +
+                    decodeColumn(WeatherEntry.COLUMN_WIND_SPEED) + ", " +
+                    decodeColumn(WeatherEntry.COLUMN_DEGREES) + " FROM " +
+                    WeatherStorage.TABLE_NAME + ";";
+
+    private static String decodeColumn(String column) {
+        return column + " / " + WeatherStorage.SCALE + ".0 AS " + column;
+    }
+
+    // PRAGMA auto_vacuum's value for INCREMENTAL.
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    // The log is folded back into the database after every sync, so it only grows past this
+    // while one is running; once checkpointed it's truncated back down to it.
+    private static final long JOURNAL_SIZE_LIMIT = 512 * 1024;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Set before the first open, so SQLiteDatabase also sizes its pool of reader
+            // connections for WAL.
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        runPragma(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT);
+    }
+
+    /**
+     * Switches the database to incremental auto-vacuum if it isn't already.  auto_vacuum only
+     * takes effect by itself on an empty file, and SQLiteDatabase has created its metadata
+     * table before any of our code runs, so it takes a VACUUM to rebuild the file with the
+     * page map it keeps.  That rewrites the whole file and needs as much free space again, so
+     * it's left to the background sync rather than whichever open comes first, and skipped
+     * while the space isn't there.  The sync calls it every time; after the first success
+     * it's one pragma read.
+     *
+     * @return true if the database uses incremental auto-vacuum now, false to try again later.
+     */
+    boolean enableIncrementalVacuum() {
+        SQLiteDatabase db = getWritableDatabase();
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL) {
+            return true;
+        }
+        File file = new File(db.getPath());
+        if (file.getParentFile().getUsableSpace() < 2 * file.length()) {
+            Log.w(LOG_TAG, "Not enough free space to vacuum the database yet");
+            return false;
+        }
+        try {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Error vacuuming the database, will retry", e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies what's in the write-ahead log back into the database, so the log stays small and
+     * readers don't have to search through it.  Passive: it copies what it can without waiting
+     * on readers, and never blocks them.  A no-op without WAL.
+     */
+    void checkpoint() {
+        runPragma(getWritableDatabase(), "PRAGMA wal_checkpoint");
+    }
+
+    /**
+     * Gives the pages on the free list back to the file system, shrinking the file.  Deleted
+     * rows only free their pages for SQLite to reuse; this moves whatever is still in use off
+     * the end of the file and truncates it, without rewriting the rest as VACUUM would.
+     *
+     * @return the number of pages given back.
+     */
+    int reclaimFreePages() {
+        // Each page freed is a result row, so it has to run through a cursor; counting the
+        // rows steps it to the end.
+        Cursor cursor = getWritableDatabase().rawQuery("PRAGMA incremental_vacuum", null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // These pragmas return a row, so they have to go through a cursor rather than execSQL().
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -45,10 +200,19 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                LocationEntry.COLUMN_EXPIRES + " INTEGER NOT NULL DEFAULT 0, " +
+                LocationEntry.COLUMN_CONTENT_LENGTH + " INTEGER NOT NULL DEFAULT 0, " +
+                LocationEntry.COLUMN_SYNC_STATUS + " INTEGER NOT NULL DEFAULT " +
+                SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN + ", " +
+                LocationEntry.COLUMN_CHANGE_HISTORY + " TEXT" +
                 " );";
 
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+        // The weather rows, encoded as described on WeatherStorage.  WeatherEntry.TABLE_NAME
+        // is the view over them.
+        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherStorage.TABLE_NAME + " (" +
                 // Why AutoIncrement here, and not above?
                 // Unique keys will be auto-generated in either case.  But for weather
                 // forecasting, it's reasonable to assume the user will want information
@@ -59,16 +223,16 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 // the ID of the location entry associated with this weather data
                 WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
                 WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
 
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                // In hundredths
+                WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
 
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
 
                 // Set up the location column as a foreign key to location table.
                 " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
@@ -79,20 +243,80 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // A rolling log of sync runs, one row each, for finding out where slow syncs spend
+        // their time.
+        final String SQL_CREATE_METRICS_TABLE = "CREATE TABLE " + MetricsEntry.TABLE_NAME + " (" +
+                MetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                MetricsEntry.COLUMN_START_TIME + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_LOCATION_SETTING + " TEXT, " +
+                MetricsEntry.COLUMN_CONNECT_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_FIRST_BYTE_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_DECODE_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_DB_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_FAN_OUT_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                MetricsEntry.COLUMN_HTTP_STATUS + " INTEGER, " +
+                MetricsEntry.COLUMN_RESULT + " INTEGER NOT NULL" +
+                " );";
+
+        // Days that have dropped out of the weather table, encoded as described on ArchiveEntry.
+        // The row id is the (location, day) key, so there's no separate key index to store.
+        final String SQL_CREATE_ARCHIVE_TABLE = "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+                ArchiveEntry._ID + " INTEGER PRIMARY KEY," +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL" +
+                " );";
+
+        // The description of each weather id, for the weather view as well as the archive.
+        final String SQL_CREATE_ARCHIVE_DESCRIPTION_TABLE = "CREATE TABLE " +
+                ArchiveEntry.DESCRIPTION_TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER PRIMARY KEY," +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL" +
+                " );";
+
+        // The hourly forecast, keyed by its row id as described on HourlyEntry.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL" +
+                " );";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_DESCRIPTION_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_VIEW);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        // Note that this only fires if you change the version number for your database.
-        // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
+        if (WeatherMigrations.canMigrate(oldVersion)) {
+            // Keep what's stored: the forecast, the locations' cache validators and history.
+            WeatherMigrations.migrate(sqLiteDatabase, oldVersion, newVersion);
+            return;
+        }
+
+        // Too old to migrate.  This database is only a cache for online data, so start over.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherStorage.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + MetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.DESCRIPTION_TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
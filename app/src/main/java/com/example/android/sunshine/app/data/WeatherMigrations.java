@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * The schema's history, one step per version, so an upgrade keeps the stored forecast instead
+ * of starting every user over with an empty list and a cold fetch.
+ * <p/>
+ * SQLiteOpenHelper calls onUpgrade inside a transaction and only bumps the version if it
+ * commits, so a run of steps either all lands or leaves the database as it was.
+ * <p/>
+ * Steps spell out the SQL as it was at the time rather than reusing onCreate's, so a later
+ * schema change can't quietly change what an old step does.  When you bump
+ * {@link WeatherDbHelper#DATABASE_VERSION}, add a case for the old version here.
+ */
+class WeatherMigrations {
+
+    // The oldest version there's a path from.  Anything older predates the migrations and is
+    // dropped and recreated.
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
+
+    static boolean canMigrate(int oldVersion) {
+        return oldVersion >= OLDEST_MIGRATABLE_VERSION;
+    }
+
+    /**
+     * Brings {@code db} from {@code oldVersion} up to {@code newVersion}, one version at a time.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            switch (version) {
+                case 2:
+                    addConditionalGetColumns(db);
+                    break;
+                case 3:
+                    addSyncStatusColumn(db);
+                    break;
+                case 4:
+                    addChangeHistoryColumn(db);
+                    break;
+                case 5:
+                    createMetricsTable(db);
+                    break;
+                case 6:
+                    createWeatherLocationDateIndex(db);
+                    break;
+                case 7:
+                    createArchiveTables(db);
+                    break;
+                case 8:
+                    createHourlyTable(db);
+                    break;
+                case 9:
+                    compactWeatherTable(db);
+                    break;
+                default:
+                    throw new IllegalStateException("No migration from version " + version);
+            }
+        }
+    }
+
+    // 2 -> 3: validators and freshness for conditional GETs.
+    private static void addConditionalGetColumns(SQLiteDatabase db) {
+        addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_ETAG + " TEXT");
+        addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_LAST_MODIFIED + " TEXT");
+        addColumn(db, LocationEntry.TABLE_NAME,
+                LocationEntry.COLUMN_EXPIRES + " INTEGER NOT NULL DEFAULT 0");
+        addColumn(db, LocationEntry.TABLE_NAME,
+                LocationEntry.COLUMN_CONTENT_LENGTH + " INTEGER NOT NULL DEFAULT 0");
+    }
+
+    // 3 -> 4: per-location sync status.  3 is LOCATION_STATUS_UNKNOWN.
+    private static void addSyncStatusColumn(SQLiteDatabase db) {
+        addColumn(db, LocationEntry.TABLE_NAME,
+                LocationEntry.COLUMN_SYNC_STATUS + " INTEGER NOT NULL DEFAULT 3");
+    }
+
+    // 4 -> 5: change history for the sync scheduler.
+    private static void addChangeHistoryColumn(SQLiteDatabase db) {
+        addColumn(db, LocationEntry.TABLE_NAME, LocationEntry.COLUMN_CHANGE_HISTORY + " TEXT");
+    }
+
+    // 5 -> 6: the sync metrics table.
+    private static void createMetricsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + MetricsEntry.TABLE_NAME + " (" +
+                MetricsEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                MetricsEntry.COLUMN_START_TIME + " INTEGER NOT NULL, " +
+                MetricsEntry.COLUMN_LOCATION_SETTING + " TEXT, " +
+                MetricsEntry.COLUMN_CONNECT_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_FIRST_BYTE_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_DECODE_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_DB_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_FAN_OUT_TIME + " INTEGER, " +
+                MetricsEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                MetricsEntry.COLUMN_HTTP_STATUS + " INTEGER, " +
+                MetricsEntry.COLUMN_RESULT + " INTEGER NOT NULL" +
+                " );");
+    }
+
+    // 6 -> 7: the location/date index the weather URIs are answered from.
+    private static void createWeatherLocationDateIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS weather_location_date_idx ON " +
+                WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ");");
+    }
+
+    // 7 -> 8: the forecast archive and its description dictionary.
+    private static void createArchiveTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+                ArchiveEntry._ID + " INTEGER PRIMARY KEY," +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL" +
+                " );");
+        db.execSQL("CREATE TABLE " + ArchiveEntry.DESCRIPTION_TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER PRIMARY KEY," +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL" +
+                " );");
+    }
+
+    // 8 -> 9: the hourly forecast.
+    private static void createHourlyTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                HourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                HourlyEntry.COLUMN_DEGREES + " REAL NOT NULL" +
+                " );");
+    }
+
+    // 9 -> 10: the weather rows in hundredths, with their descriptions in the dictionary, and
+    // the weather table a view decoding them.  WeatherDbHelper.onOpen turns on incremental
+    // auto-vacuum afterwards, which rebuilds the file and so also drops the old table's pages.
+    private static void compactWeatherTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE weather_data (" +
+                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);");
+        db.execSQL("INSERT OR REPLACE INTO " + ArchiveEntry.DESCRIPTION_TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " + WeatherEntry.COLUMN_SHORT_DESC +
+                ") SELECT " + WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + " FROM " + WeatherEntry.TABLE_NAME +
+                " GROUP BY " + WeatherEntry.COLUMN_WEATHER_ID);
+        db.execSQL("INSERT INTO weather_data (" +
+                WeatherEntry._ID + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_HUMIDITY + ", " +
+                WeatherEntry.COLUMN_PRESSURE + ", " +
+                WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                WeatherEntry.COLUMN_DEGREES + ") SELECT " +
+                WeatherEntry._ID + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                toHundredths(WeatherEntry.COLUMN_MIN_TEMP) + ", " +
+                toHundredths(WeatherEntry.COLUMN_MAX_TEMP) + ", " +
+                toHundredths(WeatherEntry.COLUMN_HUMIDITY) + ", " +
+                toHundredths(WeatherEntry.COLUMN_PRESSURE) + ", " +
+                toHundredths(WeatherEntry.COLUMN_WIND_SPEED) + ", " +
+                toHundredths(WeatherEntry.COLUMN_DEGREES) + " FROM " +
+                WeatherEntry.TABLE_NAME);
+        // Drops weather_location_date_idx with it.
+        db.execSQL("DROP TABLE " + WeatherEntry.TABLE_NAME);
+        db.execSQL("CREATE INDEX weather_location_date_idx ON weather_data (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");");
+        db.execSQL("CREATE VIEW " + WeatherEntry.TABLE_NAME + " AS SELECT " +
+                WeatherEntry._ID + " AS " + WeatherEntry._ID + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + " AS " + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + " AS " + WeatherEntry.COLUMN_DATE + ", " +
+                "(SELECT " + WeatherEntry.COLUMN_SHORT_DESC + " FROM " +
+                ArchiveEntry.DESCRIPTION_TABLE_NAME + " d WHERE d." +
+                WeatherEntry.COLUMN_WEATHER_ID + " = weather_data." +
+                WeatherEntry.COLUMN_WEATHER_ID + ") AS " + WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + " AS " + WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                fromHundredths(WeatherEntry.COLUMN_MIN_TEMP) + ", " +
+                fromHundredths(WeatherEntry.COLUMN_MAX_TEMP) + ", " +
+                fromHundredths(WeatherEntry.COLUMN_HUMIDITY) + ", " +
+                fromHundredths(WeatherEntry.COLUMN_PRESSURE) + ", " +
+                fromHundredths(WeatherEntry.COLUMN_WIND_SPEED) + ", " +
+                fromHundredths(WeatherEntry.COLUMN_DEGREES) + " FROM weather_data;");
+    }
+
+    private static String toHundredths(String column) {
+        return "CAST(ROUND(" + column + " * 100) AS INTEGER)";
+    }
+
+    private static String fromHundredths(String column) {
+        return column + " / 100.0 AS " + column;
+    }
+
+    // ALTER TABLE ADD COLUMN only touches the schema; existing rows pick up the default
+    // without being rewritten, however many there are.
+    private static void addColumn(SQLiteDatabase db, String table, String columnDef) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + columnDef);
+    }
+}
@@ -17,25 +17,68 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.TimeZone;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    // Null before Honeycomb; see QueryCache.
+    private QueryCache mQueryCache;
+    private final LocationIds mLocationIds = new LocationIds();
+
+    // While a batch is being applied on this thread, the URIs it has changed.  Observers are
+    // told once the whole batch has committed rather than once per operation.
+    private final ThreadLocal<LinkedHashSet<Uri>> mPendingNotifications =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+    // Set when a delete within that batch has freed pages to give back once it's committed.
+    private final ThreadLocal<Boolean> mPendingReclaim = new ThreadLocal<Boolean>();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_SUMMARY = 103;
+    static final int WEATHER_CONDITIONS = 104;
+    static final int WEATHER_FIRST_MATCH = 105;
     static final int LOCATION = 300;
+    static final int METRICS = 400;
+    static final int METRICS_SUMMARY = 401;
+    static final int ARCHIVE_WITH_LOCATION = 500;
+    static final int ARCHIVE_SUMMARY = 501;
+    static final int HOURLY = 600;
+    static final int HOURLY_WITH_LOCATION = 601;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // Package-private, along with the selections below, so TestQueryPlans can check the plans
+    // SQLite picks for them.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -52,26 +95,348 @@ public class WeatherProvider extends ContentProvider {
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    // The same three, for the weather table on its own once the location's id is known.
+    //location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //location_id = ? AND date = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    // Columns a weather URI query can ask for and still be answered from the weather table
+    // alone.  The location setting is among them because the URI already says what it is.
+    private static final HashSet<String> sWeatherOnlyColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+
+    // Location columns that only the sync reads and writes: its cache validators, change
+    // history and status.  A location update limited to these can't change a weather query.
+    private static final HashSet<String> sSyncStateColumns = new HashSet<String>(Arrays.asList(
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_EXPIRES,
+            WeatherContract.LocationEntry.COLUMN_CONTENT_LENGTH,
+            WeatherContract.LocationEntry.COLUMN_CHANGE_HISTORY,
+            WeatherContract.LocationEntry.COLUMN_SYNC_STATUS));
+
+    // Every stored column of a weather row, in the order the bulk insert statement binds them.
+    // The description goes in the dictionary instead; see WeatherStorage.
+    private static final String[] WEATHER_INSERT_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    // These indices must match WEATHER_INSERT_COLUMNS.  Bind indices, so they start at 1.
+    private static final int BIND_LOC_KEY = 1;
+    private static final int BIND_DATE = 2;
+    private static final int BIND_WEATHER_ID = 3;
+    // The measurements, from here to the end, are bound in hundredths.
+    private static final int BIND_MIN_TEMP = 4;
+    private static final int BIND_MAX_TEMP = 5;
+    private static final int BIND_HUMIDITY = 6;
+    private static final int BIND_PRESSURE = 7;
+    private static final int BIND_WIND_SPEED = 8;
+    private static final int BIND_DEGREES = 9;
+
+    // Plain INSERT: the table's UNIQUE(date, location_id) ON CONFLICT REPLACE still applies.
+    private static final String SQL_INSERT_WEATHER = buildInsertSql(
+            WeatherStorage.TABLE_NAME, WEATHER_INSERT_COLUMNS);
+
+    private static String buildInsertSql(String table, String[] columns) {
+        return buildInsertSql("INSERT INTO ", table, columns);
+    }
+
+    private static String buildInsertSql(String insert, String table, String[] columns) {
+        StringBuilder sql = new StringBuilder(insert).append(table).append(" (")
+                .append(TextUtils.join(", ", columns)).append(") VALUES (?");
+        for (int i = 1; i < columns.length; i++) {
+            sql.append(", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    private static final String SQL_LOCATION_ID_BY_SETTING = "SELECT " +
+            WeatherContract.LocationEntry._ID + " FROM " +
+            WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    private static final String SQL_INSERT_LOCATION = buildInsertSql(
+            WeatherContract.LocationEntry.TABLE_NAME, new String[]{
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                    WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                    WeatherContract.LocationEntry.COLUMN_COORD_LONG});
+
+    // Refreshes a stored location's name and coordinates, leaving the row alone if they're
+    // unchanged.  Bound with the id and then the new values.
+    private static final String SQL_REFRESH_LOCATION = "UPDATE " +
+            WeatherContract.LocationEntry.TABLE_NAME + " SET " +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + " = ?2, " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + " = ?3, " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + " = ?4 WHERE " +
+            WeatherContract.LocationEntry._ID + " = ?1 AND (" +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + " IS NOT ?2 OR " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + " IS NOT ?3 OR " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + " IS NOT ?4)";
+
+    // The archive's encoding is described on ArchiveEntry.  Temperatures, pressure and wind go
+    // in as tenths; the descriptions are already in the dictionary the two tables share.  A
+    // weather date is a local midnight, so adding the zone offset lands on a UTC midnight; the
+    // offset is today's, and rounding to the nearest day absorbs the hour a daylight saving
+    // change would put it out by.
+    private static final String SQL_ARCHIVE_WEATHER = "INSERT OR REPLACE INTO " +
+            WeatherContract.ArchiveEntry.TABLE_NAME + " (" +
+            WeatherContract.ArchiveEntry._ID + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", " +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", " +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", " +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES + ") SELECT " +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " * " +
+            WeatherContract.ArchiveEntry.DAYS_PER_LOCATION + " + (" +
+            WeatherContract.WeatherEntry.COLUMN_DATE + " + ? + 43200000) / 86400000, " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            "CAST(ROUND(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " * 10) AS INTEGER), " +
+            "CAST(ROUND(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " * 10) AS INTEGER), " +
+            "CAST(ROUND(" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ") AS INTEGER), " +
+            "CAST(ROUND(" + WeatherContract.WeatherEntry.COLUMN_PRESSURE + " * 10) AS INTEGER), " +
+            "CAST(ROUND(" + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " * 10) AS INTEGER), " +
+            "CAST(ROUND(" + WeatherContract.WeatherEntry.COLUMN_DEGREES + ") AS INTEGER) FROM " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " WHERE (";
+
+    private static final long ARCHIVE_MAX_DAY = WeatherContract.ArchiveEntry.DAYS_PER_LOCATION - 1;
+
+    // A location's days are the row ids from location id * DAYS_PER_LOCATION on, so a range of
+    // them is a range of row ids and needs no other index.
+    private static final String SQL_ARCHIVE_KEY_RANGE =
+            WeatherContract.ArchiveEntry._ID + " BETWEEN ? AND ?";
+
+    private static final String SQL_QUERY_ARCHIVE = "SELECT a." +
+            WeatherContract.ArchiveEntry._ID + ", NULL, a." +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", d." +
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", a." +
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", a." +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", a." +
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", a." +
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", a." +
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", a." +
+            WeatherContract.WeatherEntry.COLUMN_DEGREES + " FROM " +
+            WeatherContract.ArchiveEntry.TABLE_NAME + " a LEFT JOIN " +
+            WeatherContract.ArchiveEntry.DESCRIPTION_TABLE_NAME + " d ON a." +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " = d." +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " WHERE a." + SQL_ARCHIVE_KEY_RANGE +
+            " ORDER BY a." + WeatherContract.ArchiveEntry._ID;
+
+    // The columns of an archive cursor, decoded.
+    private static final String[] ARCHIVE_COLUMNS = {
+            WeatherContract.ArchiveEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    // These indices must match ARCHIVE_COLUMNS, and the columns of SQL_QUERY_ARCHIVE.
+    private static final int COL_ARCHIVE_KEY = 0;
+    private static final int COL_ARCHIVE_DATE = 1;
+    private static final int COL_ARCHIVE_WEATHER_ID = 2;
+    private static final int COL_ARCHIVE_SHORT_DESC = 3;
+    private static final int COL_ARCHIVE_MIN_TEMP = 4;
+    private static final int COL_ARCHIVE_MAX_TEMP = 5;
+    private static final int COL_ARCHIVE_HUMIDITY = 6;
+    private static final int COL_ARCHIVE_PRESSURE = 7;
+    private static final int COL_ARCHIVE_WIND_SPEED = 8;
+    private static final int COL_ARCHIVE_DEGREES = 9;
+
+    private static final String SQL_ARCHIVE_SUMMARY = "SELECT " +
+            "COUNT(*) AS " + WeatherContract.ArchiveEntry.COLUMN_DAYS + ", " +
+            "MIN(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ") / 10.0 AS " +
+            WeatherContract.ArchiveEntry.COLUMN_LOWEST + ", " +
+            "MAX(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ") / 10.0 AS " +
+            WeatherContract.ArchiveEntry.COLUMN_HIGHEST + ", " +
+            "AVG(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ") / 10.0 AS " +
+            WeatherContract.ArchiveEntry.COLUMN_MEAN_MIN + ", " +
+            "AVG(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ") / 10.0 AS " +
+            WeatherContract.ArchiveEntry.COLUMN_MEAN_MAX + ", " +
+            "AVG(" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ") AS " +
+            WeatherContract.ArchiveEntry.COLUMN_MEAN_HUMIDITY + ", " +
+            "AVG(" + WeatherContract.WeatherEntry.COLUMN_PRESSURE + ") / 10.0 AS " +
+            WeatherContract.ArchiveEntry.COLUMN_MEAN_PRESSURE + ", " +
+            "AVG(" + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ") / 10.0 AS " +
+            WeatherContract.ArchiveEntry.COLUMN_MEAN_WIND_SPEED + " FROM " +
+            WeatherContract.ArchiveEntry.TABLE_NAME + " WHERE " + SQL_ARCHIVE_KEY_RANGE;
+
+    // The aggregates read the weather table by location id, so each is one range of the
+    // location/date index.  Bound with the location id and the first and last date.
+    private static final String SQL_WEATHER_RANGE =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ?";
+
+    private static final String SQL_WEATHER_SUMMARY = "SELECT " +
+            "COUNT(*) AS " + WeatherContract.WeatherEntry.COLUMN_DAYS + ", " +
+            "MIN(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ") AS " +
+            WeatherContract.WeatherEntry.COLUMN_LOWEST + ", " +
+            "MAX(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ") AS " +
+            WeatherContract.WeatherEntry.COLUMN_HIGHEST + ", " +
+            "AVG(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ") AS " +
+            WeatherContract.WeatherEntry.COLUMN_MEAN_MIN + ", " +
+            "AVG(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ") AS " +
+            WeatherContract.WeatherEntry.COLUMN_MEAN_MAX + ", " +
+            "AVG((" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " + " +
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ") / 2.0) AS " +
+            WeatherContract.WeatherEntry.COLUMN_MEAN_TEMP + " FROM " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " + SQL_WEATHER_RANGE;
+
+    private static final String SQL_WEATHER_CONDITIONS = "SELECT " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            "COUNT(*) AS " + WeatherContract.WeatherEntry.COLUMN_DAYS + " FROM " +
+            WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " + SQL_WEATHER_RANGE +
+            " GROUP BY " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID +
+            " ORDER BY " + WeatherContract.WeatherEntry.COLUMN_DAYS + " DESC, " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID;
+
+    private static final String sWeatherFirstMatchSelection = SQL_WEATHER_RANGE + " AND " +
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " BETWEEN ? AND ?";
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000L;
+    private static final long HOURLY_MAX_HOUR = WeatherContract.HourlyEntry.HOURS_PER_LOCATION - 1;
+
+    // The hourly table's columns as its cursors have them, with the location and time decoded
+    // from the row id; see HourlyEntry.
+    static final String[] HOURLY_COLUMNS = {
+            WeatherContract.HourlyEntry._ID,
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+            WeatherContract.HourlyEntry.COLUMN_TIME,
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+            WeatherContract.HourlyEntry.COLUMN_SHORT_DESC,
+            WeatherContract.HourlyEntry.COLUMN_TEMP,
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+            WeatherContract.HourlyEntry.COLUMN_DEGREES
+    };
+
+    static final SQLiteQueryBuilder sHourlyQueryBuilder;
+
+    static {
+        HashMap<String, String> projectionMap = new HashMap<String, String>();
+        for (String column : HOURLY_COLUMNS) {
+            projectionMap.put(column, column);
+        }
+        projectionMap.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+                WeatherContract.HourlyEntry._ID + " / " +
+                WeatherContract.HourlyEntry.HOURS_PER_LOCATION + " AS " +
+                WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+        projectionMap.put(WeatherContract.HourlyEntry.COLUMN_TIME,
+                "(" + WeatherContract.HourlyEntry._ID + " % " +
+                WeatherContract.HourlyEntry.HOURS_PER_LOCATION + ") * " + HOUR_IN_MILLIS +
+                " AS " + WeatherContract.HourlyEntry.COLUMN_TIME);
+        sHourlyQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyQueryBuilder.setTables(WeatherContract.HourlyEntry.TABLE_NAME);
+        sHourlyQueryBuilder.setProjectionMap(projectionMap);
+    }
+
+    // A location's hours are the row ids from location id * HOURS_PER_LOCATION on, so a range
+    // of them, and the whole run that a sync replaces, is a range of row ids.
+    static final String sHourlyKeyRangeSelection =
+            WeatherContract.HourlyEntry._ID + " BETWEEN ? AND ?";
+
+    private static final String SQL_DELETE_HOURLY_KEY_RANGE = "DELETE FROM " +
+            WeatherContract.HourlyEntry.TABLE_NAME + " WHERE " + sHourlyKeyRangeSelection;
+
+    // The stored columns, in the order the replace statement binds them.  OR REPLACE, because
+    // two times in the same hour are the same row.
+    private static final String SQL_INSERT_HOURLY = buildInsertSql("INSERT OR REPLACE INTO ",
+            WeatherContract.HourlyEntry.TABLE_NAME, new String[]{
+                    WeatherContract.HourlyEntry._ID,
+                    WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+                    WeatherContract.HourlyEntry.COLUMN_SHORT_DESC,
+                    WeatherContract.HourlyEntry.COLUMN_TEMP,
+                    WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+                    WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                    WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                    WeatherContract.HourlyEntry.COLUMN_DEGREES});
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
 
+        // A page: the days after the previous page's last one, in date order, up to the limit.
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        int pageSize = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        if (afterDate != Long.MIN_VALUE) {
+            // Dates are whole milliseconds, so date > afterDate is date >= afterDate + 1, and
+            // the start date selection and its index plan serve for both.
+            startDate = Math.max(startDate, afterDate + 1);
+        }
+        String limit = null;
+        if (afterDate != Long.MIN_VALUE || pageSize > 0) {
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+            limit = pageSize > 0 ? Integer.toString(pageSize) : null;
+        }
+
+        Long locationId = getLocationIdForWeatherOnlyQuery(locationSetting, projection, sortOrder);
+        if (locationId != null) {
+            return mOpenHelper.getReadableDatabase().query(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    toWeatherOnlyProjection(projection, locationSetting),
+                    startDate == 0 ? sLocationIdSelection : sLocationIdWithStartDateSelection,
+                    startDate == 0 ? new String[]{Long.toString(locationId)}
+                            : new String[]{Long.toString(locationId), Long.toString(startDate)},
+                    null,
+                    null,
+                    sortOrder,
+                    limit
+            );
+        }
+
         String[] selectionArgs;
         String selection;
 
@@ -89,7 +454,8 @@ public class WeatherProvider extends ContentProvider {
                 selectionArgs,
                 null,
                 null,
-                sortOrder
+                sortOrder,
+                limit
         );
     }
 
@@ -98,6 +464,19 @@ public class WeatherProvider extends ContentProvider {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
+        Long locationId = getLocationIdForWeatherOnlyQuery(locationSetting, projection, sortOrder);
+        if (locationId != null) {
+            return mOpenHelper.getReadableDatabase().query(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    toWeatherOnlyProjection(projection, locationSetting),
+                    sLocationIdAndDaySelection,
+                    new String[]{Long.toString(locationId), Long.toString(date)},
+                    null,
+                    null,
+                    sortOrder
+            );
+        }
+
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
                 sLocationSettingAndDaySelection,
@@ -108,6 +487,116 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getWeatherAggregate(int match, Uri uri, String[] projection) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Long locationId = mLocationIds.get(db,
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+        String[] rangeArgs = {
+                // No such location: no row has id -1, so the aggregates come back empty.
+                locationId == null ? "-1" : Long.toString(locationId),
+                Long.toString(WeatherContract.WeatherEntry.getRangeStartFromUri(uri)),
+                Long.toString(WeatherContract.WeatherEntry.getRangeEndFromUri(uri))
+        };
+        switch (match) {
+            case WEATHER_SUMMARY:
+                return db.rawQuery(SQL_WEATHER_SUMMARY, rangeArgs);
+            case WEATHER_CONDITIONS:
+                return db.rawQuery(SQL_WEATHER_CONDITIONS, rangeArgs);
+            default:
+                return db.query(WeatherContract.WeatherEntry.TABLE_NAME, projection,
+                        sWeatherFirstMatchSelection, new String[]{
+                                rangeArgs[0], rangeArgs[1], rangeArgs[2],
+                                Long.toString(WeatherContract.WeatherEntry
+                                        .getWeatherIdRangeStartFromUri(uri)),
+                                Long.toString(WeatherContract.WeatherEntry
+                                        .getWeatherIdRangeEndFromUri(uri))},
+                        null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC", "1");
+        }
+    }
+
+    /**
+     * @return the location's id if the query can skip the location join, otherwise null.  It
+     * can if every column it asks for and sorts by is in sWeatherOnlyColumns, and the location
+     * exists; if it doesn't, the join finds nothing just as well.
+     */
+    private Long getLocationIdForWeatherOnlyQuery(
+            String locationSetting, String[] projection, String sortOrder) {
+        if (projection == null) {
+            return null;
+        }
+        for (String column : projection) {
+            if (!isWeatherOnlyColumn(column)) {
+                return null;
+            }
+        }
+        if (sortOrder != null) {
+            for (String term : sortOrder.split(",")) {
+                String[] words = term.trim().split("\\s+");
+                if (words.length > 2 || !isWeatherOnlyColumn(words[0]) || (words.length == 2
+                        && !words[1].equalsIgnoreCase("ASC")
+                        && !words[1].equalsIgnoreCase("DESC"))) {
+                    return null;
+                }
+            }
+        }
+        return mLocationIds.get(mOpenHelper.getReadableDatabase(), locationSetting);
+    }
+
+    private static boolean isWeatherOnlyColumn(String column) {
+        String weatherPrefix = WeatherContract.WeatherEntry.TABLE_NAME + ".";
+        if (column.startsWith(weatherPrefix)) {
+            column = column.substring(weatherPrefix.length());
+        } else if (column.equals(WeatherContract.LocationEntry.TABLE_NAME + "." +
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+            return true;
+        }
+        return sWeatherOnlyColumns.contains(column);
+    }
+
+    // The location setting comes from the URI, as a literal, under the name the join gives it.
+    private static String[] toWeatherOnlyProjection(String[] projection, String locationSetting) {
+        String[] weatherProjection = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (column.endsWith(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                column = DatabaseUtils.sqlEscapeString(locationSetting) + " AS " +
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING;
+            }
+            weatherProjection[i] = column;
+        }
+        return weatherProjection;
+    }
+
+    /**
+     * Answers the per-location weather queries from the query cache where it can, and caches
+     * what it has to read.  These are the queries every consumer repeats after a sync.
+     */
+    private Cursor getWeatherByLocationSettingCached(
+            int match, Uri uri, String[] projection, String sortOrder) {
+        if (mQueryCache == null) {
+            return match == WEATHER_WITH_LOCATION_AND_DATE
+                    ? getWeatherByLocationSettingAndDate(uri, projection, sortOrder)
+                    : getWeatherByLocationSetting(uri, projection, sortOrder);
+        }
+        String key = QueryCache.key(uri, projection, sortOrder);
+        Cursor cached = mQueryCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = mQueryCache.getGeneration();
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        if (match == WEATHER_WITH_LOCATION_AND_DATE) {
+            long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+            return mQueryCache.put(key, generation, locationSetting, date, date,
+                    getWeatherByLocationSettingAndDate(uri, projection, sortOrder));
+        } else {
+            return mQueryCache.put(key, generation, locationSetting,
+                    WeatherContract.WeatherEntry.getStartDateFromUri(uri), Long.MAX_VALUE,
+                    getWeatherByLocationSetting(uri, projection, sortOrder));
+        }
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -128,8 +617,25 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" +
+                WeatherContract.PATH_SUMMARY, WEATHER_SUMMARY);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" +
+                WeatherContract.PATH_CONDITIONS, WEATHER_CONDITIONS);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" +
+                WeatherContract.PATH_FIRST, WEATHER_FIRST_MATCH);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_METRICS, METRICS);
+        matcher.addURI(authority, WeatherContract.PATH_METRICS + "/" +
+                WeatherContract.PATH_SUMMARY, METRICS_SUMMARY);
+
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE + "/*", ARCHIVE_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE + "/*/" +
+                WeatherContract.PATH_SUMMARY, ARCHIVE_SUMMARY);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
         return matcher;
     }
 
@@ -140,6 +646,9 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            mQueryCache = new QueryCache();
+        }
         return true;
     }
 
@@ -162,8 +671,23 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_SUMMARY:
+            case WEATHER_FIRST_MATCH:
+                return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
+            case WEATHER_CONDITIONS:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case METRICS:
+            case METRICS_SUMMARY:
+                return WeatherContract.MetricsEntry.CONTENT_TYPE;
+            case ARCHIVE_WITH_LOCATION:
+                return WeatherContract.ArchiveEntry.CONTENT_TYPE;
+            case ARCHIVE_SUMMARY:
+                return WeatherContract.ArchiveEntry.CONTENT_ITEM_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -175,16 +699,24 @@ public class WeatherProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        Uri notificationUri = uri;
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = getWeatherByLocationSettingCached(match, uri, projection, sortOrder);
+                break;
+            }
+            // "weather/*/summary", "weather/*/conditions" and "weather/*/first"
+            case WEATHER_SUMMARY:
+            case WEATHER_CONDITIONS:
+            case WEATHER_FIRST_MATCH: {
+                retCursor = getWeatherAggregate(match, uri, projection);
+                // Writes are notified per day, which the aggregate URI isn't an ancestor of.
+                notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
                 break;
             }
             // "weather"
@@ -213,11 +745,56 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "metrics"
+            case METRICS: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.MetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "metrics/summary"
+            case METRICS_SUMMARY: {
+                retCursor = getMetricsSummary();
+                break;
+            }
+            // "archive/*"
+            case ARCHIVE_WITH_LOCATION: {
+                retCursor = getArchive(uri, projection);
+                break;
+            }
+            // "archive/*/summary"
+            case ARCHIVE_SUMMARY: {
+                retCursor = getArchiveSummary(uri);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = sHourlyQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                        projection == null ? HOURLY_COLUMNS : projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
@@ -233,25 +810,61 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = WeatherStorage.insert(db, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                WeatherChanges changes = new WeatherChanges();
+                addWeatherChange(changes, values);
+                notifyWeatherChanges(db, changes);
+                return returnUri;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                long _id;
+                if (WeatherContract.LocationEntry.isUpsertUri(uri)) {
+                    _id = upsertLocation(db, values);
+                    uri = WeatherContract.LocationEntry.CONTENT_URI;
+                } else {
+                    _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                String locationSetting =
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                if (locationSetting != null) {
+                    mLocationIds.put(locationSetting, _id);
+                    // Only this location's weather can read any differently.
+                    uri = WeatherContract.LocationEntry.buildLocationSettingUri(locationSetting);
+                }
+                break;
+            }
+            case HOURLY: {
+                long _id = insertHourly(db, values);
+                if ( _id != -1 )
+                    returnUri = ContentUris.withAppendedId(uri, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case METRICS: {
+                long _id = db.insert(WeatherContract.MetricsEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.MetricsEntry.buildMetricsUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                // Keep the table rolling.  _ID is AUTOINCREMENT, so this drops the oldest rows.
+                db.delete(WeatherContract.MetricsEntry.TABLE_NAME,
+                        WeatherContract.MetricsEntry._ID + " <= ?",
+                        new String[]{Long.toString(_id - WeatherContract.MetricsEntry.MAX_ROWS)});
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -260,27 +873,355 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
+        final boolean deleteAll = null == selection;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
+            case WEATHER: {
+                WeatherChanges changes = new WeatherChanges();
+                if (deleteAll) {
+                    changes.addEverything();
+                } else {
+                    changes.addMatching(db, selection, selectionArgs);
+                }
+                if (WeatherContract.WeatherEntry.isArchivingUri(uri)) {
+                    rowsDeleted = archiveAndDeleteWeather(db, selection, selectionArgs);
+                    if (rowsDeleted != 0) {
+                        notifyChange(WeatherContract.ArchiveEntry.CONTENT_URI);
+                        reclaimFreePagesAfterCommit();
+                    }
+                } else {
+                    rowsDeleted = db.delete(WeatherStorage.TABLE_NAME,
+                            WeatherStorage.toStoredSelection(selection), selectionArgs);
+                }
+                if (rowsDeleted != 0) {
+                    notifyWeatherChanges(db, changes);
+                }
+                return rowsDeleted;
+            }
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mLocationIds.clear();
+                }
+                break;
+            case METRICS:
+                rowsDeleted = db.delete(
+                        WeatherContract.MetricsEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case HOURLY:
+                // The selection is against the stored columns, so by row id; see HourlyEntry.
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
 
+    /**
+     * @return true if {@code values} only sets location columns that are the sync's own state.
+     */
+    private static boolean isSyncStateOnly(ContentValues values) {
+        for (String column : values.keySet()) {
+            if (!sSyncStateColumns.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Updates the location with the same location setting as {@code values}, or inserts one if
+     * there isn't one yet.
+     *
+     * @return the location's row id, or -1 if it couldn't be inserted.
+     */
+    private long upsertLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("Upserting a location needs its location setting");
+        }
+        db.beginTransaction();
+        try {
+            long _id;
+            try {
+                _id = DatabaseUtils.longForQuery(db, SQL_LOCATION_ID_BY_SETTING,
+                        new String[]{locationSetting});
+                db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                        WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(_id)});
+            } catch (SQLiteDoneException e) {
+                _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+            return _id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Copies the weather rows matching {@code selection} into the archive, then deletes them,
+     * all in one transaction.
+     */
+    private int archiveAndDeleteWeather(SQLiteDatabase db, String selection,
+                                        String[] selectionArgs) {
+        Object[] args = new Object[1 + (selectionArgs == null ? 0 : selectionArgs.length)];
+        args[0] = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        }
+        db.beginTransaction();
+        try {
+            db.execSQL(SQL_ARCHIVE_WEATHER + selection + ")", args);
+            int rowsDeleted = db.delete(WeatherStorage.TABLE_NAME,
+                    WeatherStorage.toStoredSelection(selection), selectionArgs);
+            db.setTransactionSuccessful();
+            return rowsDeleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the weather rows matching {@code selection}, which is on the weather table's
+     * columns as the contract has them.
+     */
+    private static int updateWeather(SQLiteDatabase db, ContentValues values, String selection,
+                                     String[] selectionArgs) {
+        ContentValues stored = WeatherStorage.encode(values);
+        db.beginTransaction();
+        try {
+            if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)) {
+                // First, while the selection still matches what it did.
+                WeatherStorage.updateDescriptions(db, values, selection, selectionArgs);
+            }
+            int rowsUpdated;
+            if (stored.size() == 0) {
+                rowsUpdated = (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                        WeatherContract.WeatherEntry.TABLE_NAME +
+                        (selection == null ? "" : " WHERE " + selection), selectionArgs);
+            } else {
+                rowsUpdated = db.update(WeatherStorage.TABLE_NAME, stored,
+                        WeatherStorage.toStoredSelection(selection), selectionArgs);
+            }
+            db.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the archive row id range holding {@code uri}'s location and dates, as
+     * {first, last}, or null if the location isn't known.
+     */
+    private long[] getArchiveKeyRange(SQLiteDatabase db, Uri uri) {
+        String locationSetting = WeatherContract.ArchiveEntry.getLocationSettingFromUri(uri);
+        Long locationId = mLocationIds.get(db, locationSetting);
+        if (locationId == null) {
+            return null;
+        }
+        DateNormalizer dateNormalizer = new DateNormalizer();
+        long startDate = WeatherContract.ArchiveEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.ArchiveEntry.getEndDateFromUri(uri);
+        long startDay = startDate == Long.MIN_VALUE ? 0 : dateNormalizer.toLocalDay(startDate);
+        long endDay = endDate == Long.MAX_VALUE
+                ? ARCHIVE_MAX_DAY : dateNormalizer.toLocalDay(endDate);
+        startDay = Math.max(0, startDay);
+        endDay = Math.min(ARCHIVE_MAX_DAY, endDay);
+        long base = locationId * WeatherContract.ArchiveEntry.DAYS_PER_LOCATION;
+        return new long[]{base + startDay, base + endDay};
+    }
+
+    private Cursor getArchive(Uri uri, String[] projection) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String[] columns = projection == null ? ARCHIVE_COLUMNS : projection;
+        int[] columnMap = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnMap[i] = Arrays.asList(ARCHIVE_COLUMNS).indexOf(columns[i]);
+            if (columnMap[i] < 0) {
+                throw new IllegalArgumentException("Unknown archive column: " + columns[i]);
+            }
+        }
+
+        long[] range = getArchiveKeyRange(db, uri);
+        if (range == null) {
+            return new MatrixCursor(columns, 0);
+        }
+        Cursor stored = db.rawQuery(SQL_QUERY_ARCHIVE, new String[]{
+                Long.toString(range[0]), Long.toString(range[1])});
+        try {
+            // Decoding the dates needs the time zone rules, which SQL doesn't have, so the
+            // rows are decoded here.  A range is at most a few years of days.
+            MatrixCursor archive = new MatrixCursor(columns, stored.getCount());
+            DateNormalizer dateNormalizer = new DateNormalizer();
+            Object[] decoded = new Object[ARCHIVE_COLUMNS.length];
+            Object[] row = new Object[columns.length];
+            while (stored.moveToNext()) {
+                long key = stored.getLong(COL_ARCHIVE_KEY);
+                decoded[COL_ARCHIVE_KEY] = key;
+                decoded[COL_ARCHIVE_DATE] = dateNormalizer.startOfLocalDay(
+                        key % WeatherContract.ArchiveEntry.DAYS_PER_LOCATION);
+                decoded[COL_ARCHIVE_WEATHER_ID] = stored.getInt(COL_ARCHIVE_WEATHER_ID);
+                decoded[COL_ARCHIVE_SHORT_DESC] = stored.getString(COL_ARCHIVE_SHORT_DESC);
+                decoded[COL_ARCHIVE_MIN_TEMP] = stored.getInt(COL_ARCHIVE_MIN_TEMP) / 10.0;
+                decoded[COL_ARCHIVE_MAX_TEMP] = stored.getInt(COL_ARCHIVE_MAX_TEMP) / 10.0;
+                decoded[COL_ARCHIVE_HUMIDITY] = (double) stored.getInt(COL_ARCHIVE_HUMIDITY);
+                decoded[COL_ARCHIVE_PRESSURE] = stored.getInt(COL_ARCHIVE_PRESSURE) / 10.0;
+                decoded[COL_ARCHIVE_WIND_SPEED] = stored.getInt(COL_ARCHIVE_WIND_SPEED) / 10.0;
+                decoded[COL_ARCHIVE_DEGREES] = (double) stored.getInt(COL_ARCHIVE_DEGREES);
+                for (int i = 0; i < columns.length; i++) {
+                    row[i] = decoded[columnMap[i]];
+                }
+                archive.addRow(row);
+            }
+            return archive;
+        } finally {
+            stored.close();
+        }
+    }
+
+    private Cursor getArchiveSummary(Uri uri) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long[] range = getArchiveKeyRange(db, uri);
+        if (range == null) {
+            // No such location: no days, and no row ids will match.
+            range = new long[]{-1, -2};
+        }
+        return db.rawQuery(SQL_ARCHIVE_SUMMARY, new String[]{
+                Long.toString(range[0]), Long.toString(range[1])});
+    }
+
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long[] range = getHourlyKeyRange(db, uri);
+        if (range == null) {
+            // No such location: no row ids will match.
+            range = new long[]{-1, -2};
+        }
+        return sHourlyQueryBuilder.query(db,
+                projection == null ? HOURLY_COLUMNS : projection,
+                sHourlyKeyRangeSelection,
+                new String[]{Long.toString(range[0]), Long.toString(range[1])},
+                null,
+                null,
+                sortOrder == null ? WeatherContract.HourlyEntry._ID : sortOrder
+        );
+    }
+
+    /**
+     * @return the hourly row id range holding {@code uri}'s location and times, as
+     * {first, last}, or null if the location isn't known.
+     */
+    private long[] getHourlyKeyRange(SQLiteDatabase db, Uri uri) {
+        Long locationId = mLocationIds.get(db,
+                WeatherContract.HourlyEntry.getLocationSettingFromUri(uri));
+        if (locationId == null) {
+            return null;
+        }
+        long startTime = WeatherContract.HourlyEntry.getStartTimeFromUri(uri);
+        long endTime = WeatherContract.HourlyEntry.getEndTimeFromUri(uri);
+        // Rows are on the hour: from the first hour at or after the start to the last at or
+        // before the end.
+        long startHour = startTime <= 0 ? 0 : Math.min(HOURLY_MAX_HOUR + 1,
+                startTime / HOUR_IN_MILLIS + (startTime % HOUR_IN_MILLIS == 0 ? 0 : 1));
+        long endHour = endTime < 0 ? -1 : Math.min(HOURLY_MAX_HOUR, endTime / HOUR_IN_MILLIS);
+        long base = locationId * WeatherContract.HourlyEntry.HOURS_PER_LOCATION;
+        return new long[]{base + startHour, base + endHour};
+    }
+
+    /**
+     * @return the hourly row id of {@code locationId} at {@code time}, or -1 if the time is
+     * outside what the key can hold.
+     */
+    private static long getHourlyKey(long locationId, long time) {
+        if (time < 0 || time / HOUR_IN_MILLIS > HOURLY_MAX_HOUR) {
+            return -1;
+        }
+        return locationId * WeatherContract.HourlyEntry.HOURS_PER_LOCATION
+                + time / HOUR_IN_MILLIS;
+    }
+
+    // One row through the hourly URI, with its location and time, as HourlyBatch does before
+    // Honeycomb.
+    private static long insertHourly(SQLiteDatabase db, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+        Long time = values.getAsLong(WeatherContract.HourlyEntry.COLUMN_TIME);
+        if (locationId == null || time == null) {
+            throw new IllegalArgumentException("An hourly row needs its location and time");
+        }
+        long key = getHourlyKey(locationId, time);
+        if (key == -1) {
+            return -1;
+        }
+        ContentValues row = new ContentValues(values);
+        row.remove(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+        row.remove(WeatherContract.HourlyEntry.COLUMN_TIME);
+        row.put(WeatherContract.HourlyEntry._ID, key);
+        return db.insertWithOnConflict(WeatherContract.HourlyEntry.TABLE_NAME, null, row,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Builds the metrics summary: for each stage, how many runs reached it and the 50th, 95th
+     * and 99th percentile of its time.  The table is capped at MAX_ROWS, so sorting each
+     * column is cheap.
+     */
+    private Cursor getMetricsSummary() {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        MatrixCursor summary = new MatrixCursor(new String[]{
+                WeatherContract.MetricsEntry.COLUMN_STAGE,
+                WeatherContract.MetricsEntry.COLUMN_COUNT,
+                WeatherContract.MetricsEntry.COLUMN_P50,
+                WeatherContract.MetricsEntry.COLUMN_P95,
+                WeatherContract.MetricsEntry.COLUMN_P99
+        });
+        for (String stage : WeatherContract.MetricsEntry.STAGE_COLUMNS) {
+            Cursor cursor = db.query(WeatherContract.MetricsEntry.TABLE_NAME,
+                    new String[]{stage},
+                    stage + " IS NOT NULL",
+                    null,
+                    null,
+                    null,
+                    stage + " ASC");
+            long[] sorted = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                sorted[i] = cursor.getLong(0);
+            }
+            cursor.close();
+            summary.addRow(new Object[]{
+                    stage,
+                    sorted.length,
+                    percentile(sorted, 50),
+                    percentile(sorted, 95),
+                    percentile(sorted, 99)
+            });
+        }
+        return summary;
+    }
+
+    /**
+     * Nearest-rank percentile of already sorted values.
+     *
+     * @return the percentile, or null if there are no values.
+     */
+    static Long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return null;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -297,20 +1238,40 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                WeatherChanges changes = new WeatherChanges();
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                        || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                    // Rows may move to days we can't know in advance.
+                    changes.addEverything();
+                } else {
+                    changes.addMatching(db, selection, selectionArgs);
+                }
+                rowsUpdated = updateWeather(db, values, selection, selectionArgs);
+                if (rowsUpdated != 0) {
+                    notifyWeatherChanges(db, changes);
+                }
+                return rowsUpdated;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0 && (values.containsKey(WeatherContract.LocationEntry._ID)
+                        || values.containsKey(
+                                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING))) {
+                    mLocationIds.clear();
+                }
+                if (isSyncStateOnly(values)) {
+                    // Every sync writes this much, and no weather query reads it.
+                    uri = WeatherContract.LocationEntry.SYNC_STATE_URI;
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +1282,396 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                // One statement, compiled once and rebound per row, instead of db.insert()
+                // building and compiling the SQL again from each row's keys.
+                SQLiteStatement insert = db.compileStatement(SQL_INSERT_WEATHER);
+                DateNormalizer dateNormalizer = new DateNormalizer();
+                WeatherStorage.Descriptions descriptions = new WeatherStorage.Descriptions(db);
+                WeatherChanges changes = new WeatherChanges();
                 db.beginTransaction();
                 int returnCount = 0;
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id;
+                        if (bindWeatherValues(insert, value, dateNormalizer)) {
+                            _id = descriptions.put(
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                                    value.getAsString(
+                                            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC))
+                                    ? executeInsert(insert) : -1;
+                        } else {
+                            // Not a plain weather row; let SQLiteDatabase sort it out.
+                            normalizeDate(value);
+                            _id = WeatherStorage.insert(db, value);
+                        }
                         if (_id != -1) {
                             returnCount++;
+                            addWeatherChange(changes, value);
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
+                    insert.close();
+                    descriptions.close();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyWeatherChanges(db, changes);
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Applies the whole batch in one database transaction, so that a sync's writes land
+     * together or not at all, and sends each distinct change notification once at the end.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final LinkedHashSet<Uri> notifications = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results = null;
+        boolean reclaim;
+        mPendingNotifications.set(notifications);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+            reclaim = mPendingReclaim.get() != null;
+            mPendingReclaim.remove();
+            if (results == null) {
+                // Rolled back; any location ids the batch recorded may not exist any more.
+                mLocationIds.clear();
+            }
+        }
+        for (Uri uri : notifications) {
+            notifyChange(uri);
+        }
+        if (reclaim) {
+            reclaimFreePages();
+        }
+        return results;
+    }
+
+    /**
+     * Binds a row for SQL_INSERT_WEATHER.  Its description isn't bound, and has to be written
+     * separately.
+     *
+     * @return false if the row has anything other than exactly the weather columns, in which
+     * case nothing useful was bound.
+     */
+    private static boolean bindWeatherValues(SQLiteStatement insert, ContentValues values,
+                                             DateNormalizer dateNormalizer) {
+        if (values.size() != WEATHER_INSERT_COLUMNS.length + 1
+                || !values.containsKey(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)) {
+            return false;
+        }
+        for (int i = 0; i < WEATHER_INSERT_COLUMNS.length; i++) {
+            String column = WEATHER_INSERT_COLUMNS[i];
+            if (!values.containsKey(column)) {
+                return false;
+            }
+            if (i + 1 == BIND_DATE) {
+                Long date = values.getAsLong(column);
+                if (date == null) {
+                    return false;
+                }
+                long normalizedDate = dateNormalizer.normalize(date);
+                if (normalizedDate != date) {
+                    // Write it back, as normalizeDate(ContentValues) does.
+                    values.put(column, normalizedDate);
+                }
+                insert.bindLong(BIND_DATE, normalizedDate);
+            } else if (i + 1 >= BIND_MIN_TEMP) {
+                Double value = values.getAsDouble(column);
+                if (value == null) {
+                    return false;
+                }
+                insert.bindLong(i + 1, WeatherStorage.encode(value));
+            } else {
+                DatabaseUtils.bindObjectToProgram(insert, i + 1, values.get(column));
+            }
+        }
+        return true;
+    }
+
+    // Like SQLiteDatabase.insert(): a row that breaks a constraint is logged and skipped rather
+    // than failing the whole batch.
+    private static long executeInsert(SQLiteStatement insert) {
+        try {
+            return insert.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting weather row", e);
+            return -1;
+        }
+    }
+
+    private int bulkInsertWeather(WeatherBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_WEATHER);
+        WeatherStorage.Descriptions descriptions = new WeatherStorage.Descriptions(db);
+        DateNormalizer dateNormalizer = new DateNormalizer();
+        WeatherChanges changes = new WeatherChanges();
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                if (!descriptions.put((long) batch.weatherIds[i], batch.shortDescs[i])) {
+                    continue;
+                }
+                long date = dateNormalizer.normalize(batch.dates[i]);
+                insert.bindLong(BIND_LOC_KEY, batch.locKeys[i]);
+                insert.bindLong(BIND_DATE, date);
+                insert.bindLong(BIND_WEATHER_ID, batch.weatherIds[i]);
+                insert.bindLong(BIND_MIN_TEMP, WeatherStorage.encode(batch.minTemps[i]));
+                insert.bindLong(BIND_MAX_TEMP, WeatherStorage.encode(batch.maxTemps[i]));
+                insert.bindLong(BIND_HUMIDITY, WeatherStorage.encode(batch.humidities[i]));
+                insert.bindLong(BIND_PRESSURE, WeatherStorage.encode(batch.pressures[i]));
+                insert.bindLong(BIND_WIND_SPEED, WeatherStorage.encode(batch.windSpeeds[i]));
+                insert.bindLong(BIND_DEGREES, WeatherStorage.encode(batch.degrees[i]));
+                if (executeInsert(insert) != -1) {
+                    returnCount++;
+                    changes.add(batch.locKeys[i], date);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            descriptions.close();
+        }
+        notifyWeatherChanges(db, changes);
+        return returnCount;
+    }
+
+    /**
+     * Looks up each location in {@code batch}, refreshing it if it's stored and inserting it if
+     * not, all in one transaction.
+     *
+     * @return the row ids, in batch order; -1 for a location that couldn't be inserted.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private long[] insertOrGetLocations(LocationBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement lookup = db.compileStatement(SQL_LOCATION_ID_BY_SETTING);
+        SQLiteStatement refresh = db.compileStatement(SQL_REFRESH_LOCATION);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_LOCATION);
+        long[] ids = new long[batch.size];
+        ArrayList<String> changedSettings = new ArrayList<String>();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                String locationSetting = batch.settings[i];
+                if (locationSetting == null) {
+                    throw new IllegalArgumentException(
+                            "Storing a location needs its location setting");
+                }
+                String cityName = batch.cityNames[i];
+                lookup.bindString(1, locationSetting);
+                try {
+                    ids[i] = lookup.simpleQueryForLong();
+                    refresh.bindLong(1, ids[i]);
+                    bindStringOrNull(refresh, 2, cityName);
+                    refresh.bindDouble(3, batch.lats[i]);
+                    refresh.bindDouble(4, batch.longs[i]);
+                    if (refresh.executeUpdateDelete() != 0) {
+                        changedSettings.add(locationSetting);
+                    }
+                } catch (SQLiteDoneException e) {
+                    insert.bindString(1, locationSetting);
+                    bindStringOrNull(insert, 2, cityName);
+                    insert.bindDouble(3, batch.lats[i]);
+                    insert.bindDouble(4, batch.longs[i]);
+                    try {
+                        ids[i] = insert.executeInsert();
+                    } catch (SQLException insertFailed) {
+                        Log.e(LOG_TAG, "Error inserting location " + locationSetting,
+                                insertFailed);
+                        ids[i] = -1;
+                    }
+                    if (ids[i] != -1) {
+                        changedSettings.add(locationSetting);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            lookup.close();
+            refresh.close();
+            insert.close();
+        }
+        for (int i = 0; i < batch.size; i++) {
+            if (ids[i] != -1) {
+                mLocationIds.put(batch.settings[i], ids[i]);
+            }
+        }
+        for (String locationSetting : changedSettings) {
+            notifyChange(WeatherContract.LocationEntry.buildLocationSettingUri(locationSetting));
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes the stored hours of each location in {@code batch}, then inserts the batch's, all
+     * in one transaction.  A location's hours are one range of row ids, so each delete is a
+     * single range of the table's own b-tree.
+     *
+     * @return the number of rows stored.
+     */
+    private int replaceHourly(HourlyBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE_HOURLY_KEY_RANGE);
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_HOURLY);
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (long locationId : batch.getLocationKeys()) {
+                long base = locationId * WeatherContract.HourlyEntry.HOURS_PER_LOCATION;
+                delete.bindLong(1, base);
+                delete.bindLong(2, base + HOURLY_MAX_HOUR);
+                delete.execute();
+            }
+            for (int i = 0; i < batch.size; i++) {
+                long key = getHourlyKey(batch.locKeys[i], batch.times[i]);
+                if (key == -1) {
+                    Log.w(LOG_TAG, "Skipping hourly row at " + batch.times[i]);
+                    continue;
+                }
+                insert.bindLong(1, key);
+                insert.bindLong(2, batch.weatherIds[i]);
+                bindStringOrNull(insert, 3, batch.shortDescs[i]);
+                insert.bindDouble(4, batch.temps[i]);
+                insert.bindDouble(5, batch.humidities[i]);
+                insert.bindDouble(6, batch.pressures[i]);
+                insert.bindDouble(7, batch.windSpeeds[i]);
+                insert.bindDouble(8, batch.degrees[i]);
+                if (executeInsert(insert) != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            delete.close();
+            insert.close();
+        }
+        notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+        return returnCount;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_CHECKPOINT.equals(method)) {
+            mOpenHelper.checkpoint();
+            return null;
+        }
+        if (WeatherContract.METHOD_ENABLE_INCREMENTAL_VACUUM.equals(method)) {
+            mOpenHelper.enableIncrementalVacuum();
+            return null;
+        }
+        if (WeatherContract.METHOD_BULK_INSERT_WEATHER.equals(method)) {
+            WeatherBatch batch = WeatherBatch.fromBundle(extras);
+            if (batch == null) {
+                throw new IllegalArgumentException("Not a weather batch: " + extras);
+            }
+            Bundle result = new Bundle();
+            result.putInt(WeatherBatch.KEY_COUNT, bulkInsertWeather(batch));
+            return result;
+        }
+        if (WeatherContract.METHOD_INSERT_OR_GET_LOCATIONS.equals(method)) {
+            LocationBatch batch = LocationBatch.fromBundle(extras);
+            if (batch == null) {
+                throw new IllegalArgumentException("Not a location batch: " + extras);
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(LocationBatch.KEY_IDS, insertOrGetLocations(batch));
+            return result;
+        }
+        if (WeatherContract.METHOD_REPLACE_HOURLY.equals(method)) {
+            HourlyBatch batch = HourlyBatch.fromBundle(extras);
+            if (batch == null) {
+                throw new IllegalArgumentException("Not an hourly batch: " + extras);
+            }
+            Bundle result = new Bundle();
+            result.putInt(HourlyBatch.KEY_COUNT, replaceHourly(batch));
+            return result;
+        }
+        if (WeatherContract.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            if (mQueryCache == null) {
+                return null;
+            }
+            Bundle result = new Bundle();
+            result.putInt(WeatherContract.KEY_QUERY_CACHE_HITS, mQueryCache.getHits());
+            result.putInt(WeatherContract.KEY_QUERY_CACHE_MISSES, mQueryCache.getMisses());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    private static void addWeatherChange(WeatherChanges changes, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            changes.addEverything();
+        } else {
+            changes.add(locationId, date);
+        }
+    }
+
+    // Weather changes are notified per day; see WeatherChanges.  Within applyBatch they join
+    // the batch's other notifications, so a day written twice is still notified once.
+    private void notifyWeatherChanges(SQLiteDatabase db, WeatherChanges changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (Uri uri : changes.toUris(db)) {
+            notifyChange(uri);
+        }
+    }
+
+    // The retention delete frees a day's worth of pages per location each sync.  They're given
+    // back after the transaction it's in, rather than making it longer.
+    private void reclaimFreePagesAfterCommit() {
+        if (mPendingNotifications.get() != null) {
+            mPendingReclaim.set(Boolean.TRUE);
+        } else {
+            reclaimFreePages();
+        }
+    }
+
+    private void reclaimFreePages() {
+        int pages = mOpenHelper.reclaimFreePages();
+        if (pages != 0) {
+            Log.d(LOG_TAG, "Reclaimed " + pages + " free pages");
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            // Whatever observers requery has to come from the database, not the cache.
+            if (mQueryCache != null) {
+                mQueryCache.invalidate(uri);
+            }
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
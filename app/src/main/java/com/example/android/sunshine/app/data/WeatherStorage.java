@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+
+/**
+ * How weather rows are stored.  {@link WeatherEntry#TABLE_NAME} is a view; the rows themselves
+ * are in {@link #TABLE_NAME}, in a more compact form the view decodes:
+ * <ul>
+ * <li>The six measurements are integers in hundredths rather than REALs.  A REAL with a
+ * fraction takes eight bytes; a temperature in hundredths takes two, a pressure three.</li>
+ * <li>The short description isn't stored on the row.  It's the same for every day with the same
+ * weather id, so it's kept once per id in the description table the archive already has.</li>
+ * </ul>
+ * Reads, through the provider or straight from the database, see the weather table as the
+ * contract describes it, and its selections and sort orders work on the decoded values.  Only
+ * writes have to come through here, since a view can't be written to.
+ * <p/>
+ * A decoded measurement is the stored one divided by {@link #SCALE}, so it only reads back as
+ * it was written if it had two decimal places or fewer.  Code comparing values with the stored
+ * ones should compare them {@link #encode encoded}.
+ */
+public class WeatherStorage {
+
+    private static final String LOG_TAG = WeatherStorage.class.getSimpleName();
+
+    static final String TABLE_NAME = "weather_data";
+
+    // Shared with the archive, which reads it for its days the same way.
+    static final String DESCRIPTION_TABLE_NAME = ArchiveEntry.DESCRIPTION_TABLE_NAME;
+
+    // The measurements are stored multiplied by this and rounded, which keeps the two decimal
+    // places OpenWeatherMap sends.
+    public static final int SCALE = 100;
+
+    static final String[] SCALED_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // Writes a weather id's description, unless it's already the one stored, so the common
+    // case of a description seen before is a primary key lookup and no write.
+    private static final String SQL_PUT_DESCRIPTION = "INSERT OR REPLACE INTO " +
+            DESCRIPTION_TABLE_NAME + " (" + WeatherEntry.COLUMN_WEATHER_ID + ", " +
+            WeatherEntry.COLUMN_SHORT_DESC + ") SELECT ?1, ?2 WHERE NOT EXISTS (SELECT 1 FROM " +
+            DESCRIPTION_TABLE_NAME + " WHERE " + WeatherEntry.COLUMN_WEATHER_ID + " = ?1 AND " +
+            WeatherEntry.COLUMN_SHORT_DESC + " = ?2)";
+
+    public static long encode(double value) {
+        return Math.round(value * SCALE);
+    }
+
+    /**
+     * @return true if {@code column} is one of the weather columns stored scaled.
+     */
+    public static boolean isScaled(String column) {
+        for (String scaled : SCALED_COLUMNS) {
+            if (scaled.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code values}, a weather row or the columns an update sets, as they're stored:
+     * without the short description, and with the measurements scaled.
+     */
+    static ContentValues encode(ContentValues values) {
+        ContentValues stored = new ContentValues(values);
+        stored.remove(WeatherEntry.COLUMN_SHORT_DESC);
+        for (String column : SCALED_COLUMNS) {
+            if (values.containsKey(column)) {
+                Double value = values.getAsDouble(column);
+                if (value == null) {
+                    stored.putNull(column);
+                } else {
+                    stored.put(column, encode(value));
+                }
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * @return the stored rows' selection for {@code selection}, which may be on any of the
+     * weather table's columns, decoded.
+     */
+    static String toStoredSelection(String selection) {
+        if (selection == null || selection.equals("1")) {
+            return selection;
+        }
+        return WeatherEntry._ID + " IN (SELECT " + WeatherEntry._ID + " FROM " +
+                WeatherEntry.TABLE_NAME + " WHERE (" + selection + "))";
+    }
+
+    /**
+     * Inserts a weather row and its description, as SQLiteDatabase.insert() would into a table.
+     *
+     * @return the row id, or -1 if it couldn't be inserted.
+     */
+    static long insert(SQLiteDatabase db, ContentValues values) {
+        Long weatherId = values.getAsLong(WeatherEntry.COLUMN_WEATHER_ID);
+        String description = values.getAsString(WeatherEntry.COLUMN_SHORT_DESC);
+        if (weatherId == null || description == null) {
+            Log.e(LOG_TAG, "Error inserting " + values + ": no weather id or description");
+            return -1;
+        }
+        db.beginTransaction();
+        try {
+            db.execSQL(SQL_PUT_DESCRIPTION, new Object[]{weatherId, description});
+            long id = db.insert(TABLE_NAME, null, encode(values));
+            // Even if the row failed: the description is right either way, and an enclosing
+            // transaction mustn't be rolled back for one row, as it isn't by db.insert().
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Sets the description an update to the rows matching {@code selection} gives them.  It
+     * goes to the weather id, and so to every row with it: the one the update sets, or else each
+     * of the rows' own.
+     */
+    static void updateDescriptions(SQLiteDatabase db, ContentValues values, String selection,
+                                   String[] selectionArgs) {
+        String description = values.getAsString(WeatherEntry.COLUMN_SHORT_DESC);
+        Long weatherId = values.getAsLong(WeatherEntry.COLUMN_WEATHER_ID);
+        if (weatherId != null) {
+            db.execSQL(SQL_PUT_DESCRIPTION, new Object[]{weatherId, description});
+            return;
+        }
+        Object[] args = new Object[1 + (selectionArgs == null ? 0 : selectionArgs.length)];
+        args[0] = description;
+        if (selectionArgs != null) {
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        }
+        db.execSQL("INSERT OR REPLACE INTO " + DESCRIPTION_TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " + WeatherEntry.COLUMN_SHORT_DESC +
+                ") SELECT DISTINCT " + WeatherEntry.COLUMN_WEATHER_ID + ", ? FROM " +
+                WeatherEntry.TABLE_NAME + (selection == null ? "" : " WHERE " + selection), args);
+    }
+
+    /**
+     * Writes the descriptions of a batch of rows, each one once.  Use it within a transaction.
+     */
+    static class Descriptions {
+        private final SQLiteStatement mPut;
+        private final HashMap<Long, String> mWritten = new HashMap<Long, String>();
+
+        Descriptions(SQLiteDatabase db) {
+            mPut = db.compileStatement(SQL_PUT_DESCRIPTION);
+        }
+
+        /**
+         * @return false if there's no description to write, in which case the row can't be
+         * stored either.
+         */
+        boolean put(Long weatherId, String description) {
+            if (weatherId == null || description == null) {
+                Log.e(LOG_TAG, "Error inserting weather row: no weather id or description");
+                return false;
+            }
+            if (description.equals(mWritten.get(weatherId))) {
+                return true;
+            }
+            mPut.bindLong(1, weatherId);
+            mPut.bindString(2, description);
+            mPut.execute();
+            mWritten.put(weatherId, description);
+            return true;
+        }
+
+        void close() {
+            mPut.close();
+        }
+    }
+}
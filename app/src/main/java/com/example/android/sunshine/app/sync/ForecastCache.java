@@ -0,0 +1,230 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.net.HttpURLConnection;
+
+/**
+ * HTTP cache state for one location's forecast.  The forecast rows already in the database are
+ * the cached response body; this class keeps the validators that let us revalidate them with a
+ * conditional GET, and the freshness lifetime that lets us skip the network entirely.
+ */
+class ForecastCache {
+
+    // Callers that need more location columns can append them after these.
+    static final String[] LOCATION_CACHE_PROJECTION = new String[]{
+            WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED,
+            WeatherContract.LocationEntry.COLUMN_EXPIRES,
+            WeatherContract.LocationEntry.COLUMN_CONTENT_LENGTH,
+            WeatherContract.LocationEntry.COLUMN_CHANGE_HISTORY
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_ETAG = 1;
+    private static final int INDEX_LAST_MODIFIED = 2;
+    private static final int INDEX_EXPIRES = 3;
+    private static final int INDEX_CONTENT_LENGTH = 4;
+    private static final int INDEX_CHANGE_HISTORY = 5;
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    // Row ID of the location this state was loaded from, -1 if there's no row yet.
+    long locationId = -1;
+    String etag;
+    String lastModified;
+    long expires;
+    long contentLength;
+    // Recent change rates, see WeatherContract.LocationEntry.COLUMN_CHANGE_HISTORY.
+    String changeHistory;
+
+    /**
+     * Loads the cache state stored with the location row for {@code locationSetting}.  A
+     * location we've never synced comes back empty, which makes the fetch unconditional.
+     */
+    static ForecastCache load(Context context, String locationSetting) {
+        ForecastCache cache = new ForecastCache();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                LOCATION_CACHE_PROJECTION,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                cache = fromCursor(cursor);
+            }
+            cursor.close();
+        }
+        return cache;
+    }
+
+    /**
+     * Reads the cache state from the current row of a cursor whose projection starts with
+     * {@link #LOCATION_CACHE_PROJECTION}.
+     */
+    static ForecastCache fromCursor(Cursor cursor) {
+        ForecastCache cache = new ForecastCache();
+        cache.locationId = cursor.getLong(INDEX_LOCATION_ID);
+        cache.etag = cursor.getString(INDEX_ETAG);
+        cache.lastModified = cursor.getString(INDEX_LAST_MODIFIED);
+        cache.expires = cursor.getLong(INDEX_EXPIRES);
+        cache.contentLength = cursor.getLong(INDEX_CONTENT_LENGTH);
+        cache.changeHistory = cursor.getString(INDEX_CHANGE_HISTORY);
+        return cache;
+    }
+
+    /**
+     * @return a copy to fetch with, which the fetch can update without touching this one.
+     */
+    ForecastCache copy() {
+        ForecastCache cache = new ForecastCache();
+        cache.locationId = locationId;
+        cache.etag = etag;
+        cache.lastModified = lastModified;
+        cache.expires = expires;
+        cache.contentLength = contentLength;
+        cache.changeHistory = changeHistory;
+        return cache;
+    }
+
+    /**
+     * @return true if the stored forecast is still within its max-age and can be used
+     * without asking the server.
+     */
+    boolean isFresh(long now) {
+        return now < expires;
+    }
+
+    /**
+     * Adds the conditional headers for whatever validators we have.  Must be called before
+     * the connection is opened.
+     */
+    void addConditionalHeaders(HttpURLConnection connection) {
+        if (etag != null) {
+            connection.setRequestProperty(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Picks up validators and freshness from a response.  On a 304 the server may omit
+     * validators it isn't changing, so we only overwrite the ones it sent.
+     */
+    void updateFromResponse(HttpURLConnection connection, long now) {
+        String responseEtag = connection.getHeaderField(HEADER_ETAG);
+        String responseLastModified = connection.getHeaderField(HEADER_LAST_MODIFIED);
+        if (responseEtag != null) etag = responseEtag;
+        if (responseLastModified != null) lastModified = responseLastModified;
+
+        long maxAge = parseMaxAge(connection.getHeaderField(HEADER_CACHE_CONTROL));
+        expires = maxAge > 0 ? now + maxAge * 1000 : 0;
+    }
+
+    /**
+     * @return the cache state as location columns, ready to be written to the location row.
+     */
+    ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_ETAG, etag);
+        values.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified);
+        values.put(WeatherContract.LocationEntry.COLUMN_EXPIRES, expires);
+        values.put(WeatherContract.LocationEntry.COLUMN_CONTENT_LENGTH, contentLength);
+        values.put(WeatherContract.LocationEntry.COLUMN_CHANGE_HISTORY, changeHistory);
+        return values;
+    }
+
+    /**
+     * Writes the cache state back to the location row, along with the status of the sync
+     * that produced it.
+     */
+    void save(Context context, long locationId, @SunshineSyncAdapter.LocationStatus int status) {
+        ContentValues values = toContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_SYNC_STATUS, status);
+        context.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI, values,
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)});
+    }
+
+    /**
+     * Extracts the max-age from a Cache-Control header, in seconds.
+     *
+     * @return the max-age, or 0 if the header is missing, has no max-age, or forbids
+     * reusing the response without revalidation.
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return 0;
+        }
+        long maxAge = 0;
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.equalsIgnoreCase("no-cache") || directive.equalsIgnoreCase("no-store")) {
+                return 0;
+            }
+            if (directive.regionMatches(true, 0, "max-age=", 0, 8)) {
+                try {
+                    maxAge = Long.parseLong(directive.substring(8).replace("\"", "").trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return Math.max(0, maxAge);
+    }
+
+    /**
+     * Counts a sync that was answered from the cache, either because the stored forecast
+     * was fresh or because the server replied 304 Not Modified.
+     *
+     * @param bytesSaved the size of the response body we didn't have to download.
+     */
+    static void recordHit(Context context, long bytesSaved) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String hitsKey = context.getString(R.string.pref_sync_cache_hits_key);
+        String bytesSavedKey = context.getString(R.string.pref_sync_cache_bytes_saved_key);
+        sp.edit()
+                .putLong(hitsKey, sp.getLong(hitsKey, 0) + 1)
+                .putLong(bytesSavedKey, sp.getLong(bytesSavedKey, 0) + bytesSaved)
+                .apply();
+    }
+
+    /**
+     * Counts a sync that had to download and ingest the full forecast.
+     */
+    static void recordMiss(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String missesKey = context.getString(R.string.pref_sync_cache_misses_key);
+        sp.edit().putLong(missesKey, sp.getLong(missesKey, 0) + 1).apply();
+    }
+
+    static long getHits(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(context.getString(R.string.pref_sync_cache_hits_key), 0);
+    }
+
+    static long getMisses(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(context.getString(R.string.pref_sync_cache_misses_key), 0);
+    }
+
+    static long getBytesSaved(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(context.getString(R.string.pref_sync_cache_bytes_saved_key), 0);
+    }
+}
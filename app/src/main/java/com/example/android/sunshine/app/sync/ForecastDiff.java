@@ -0,0 +1,204 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherStorage;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares a freshly decoded forecast with the rows already stored for its location, field by
+ * field, and works out the smallest set of writes that brings the table up to date.
+ * <p/>
+ * The weather table's UNIQUE(date, location_id) ON CONFLICT REPLACE means a plain insert of an
+ * existing day deletes and reinserts it, and every bulkInsert notifies the whole weather URI.
+ * Going through the diff instead, days that didn't change aren't written at all, and a sync
+ * where nothing changed produces no writes and no notifications.
+ */
+class ForecastDiff {
+
+    private static final String[] WEATHER_DIFF_PROJECTION = new String[]{
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATE = 1;
+
+    // Rows to insert, for days we have nothing stored for yet.
+    final ArrayList<ContentValues> inserts = new ArrayList<ContentValues>();
+    // Changed columns only, keyed by the _ID of the stored row they apply to.
+    final HashMap<Long, ContentValues> updates = new HashMap<Long, ContentValues>();
+    int unchanged;
+
+    /**
+     * @param locationId the location row the incoming rows are keyed to.
+     * @param incoming   rows as built by {@link SunshineSyncAdapter#buildWeatherValues}.
+     */
+    static ForecastDiff compute(ContentResolver resolver, long locationId, ContentValues[] incoming) {
+        ForecastDiff diff = new ForecastDiff();
+        if (incoming.length == 0) {
+            return diff;
+        }
+
+        // Key incoming rows by the date the provider will store them under.
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        HashMap<Long, ContentValues> byDate = new HashMap<Long, ContentValues>(incoming.length * 2);
+        for (ContentValues values : incoming) {
+            long date = WeatherContract.normalizeDate(values.getAsLong(WeatherEntry.COLUMN_DATE));
+            values.put(WeatherEntry.COLUMN_DATE, date);
+            byDate.put(date, values);
+            minDate = Math.min(minDate, date);
+            maxDate = Math.max(maxDate, date);
+        }
+
+        Cursor cursor = resolver.query(WeatherEntry.CONTENT_URI,
+                WEATHER_DIFF_PROJECTION,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherEntry.COLUMN_DATE + " >= ? AND " +
+                        WeatherEntry.COLUMN_DATE + " <= ?",
+                new String[]{Long.toString(locationId), Long.toString(minDate),
+                        Long.toString(maxDate)},
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                long date = cursor.getLong(INDEX_DATE);
+                ContentValues values = byDate.remove(date);
+                if (values == null) {
+                    continue;
+                }
+                ContentValues changed = changedColumns(cursor, values);
+                if (changed.size() == 0) {
+                    diff.unchanged++;
+                } else {
+                    diff.updates.put(cursor.getLong(INDEX_ID), changed);
+                }
+            }
+            cursor.close();
+        }
+
+        // Whatever didn't match a stored row is a new day.
+        for (ContentValues values : incoming) {
+            if (byDate.containsKey(values.getAsLong(WeatherEntry.COLUMN_DATE))) {
+                diff.inserts.add(values);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return the columns of {@code values} that differ from the cursor's current row.
+     */
+    private static ContentValues changedColumns(Cursor cursor, ContentValues values) {
+        ContentValues changed = new ContentValues();
+        for (int i = INDEX_DATE + 1; i < WEATHER_DIFF_PROJECTION.length; i++) {
+            String column = WEATHER_DIFF_PROJECTION[i];
+            Object value = values.get(column);
+            boolean same;
+            if (value instanceof Number && WeatherStorage.isScaled(column)) {
+                // Measurements are stored in hundredths and read back decoded, so one with
+                // more decimal places never reads back identical.  Compare what's stored.
+                same = !cursor.isNull(i) && WeatherStorage.encode(cursor.getDouble(i))
+                        == WeatherStorage.encode(((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                // Compare everything else numeric as a double too; integers read back exactly.
+                same = !cursor.isNull(i)
+                        && cursor.getDouble(i) == ((Number) value).doubleValue();
+            } else if (value != null) {
+                same = value.toString().equals(cursor.getString(i));
+            } else {
+                same = cursor.isNull(i);
+            }
+            if (!same) {
+                if (value instanceof Integer) {
+                    changed.put(column, (Integer) value);
+                } else if (value instanceof Number) {
+                    changed.put(column, ((Number) value).doubleValue());
+                } else {
+                    changed.put(column, value == null ? null : value.toString());
+                }
+            }
+        }
+        return changed;
+    }
+
+    boolean isEmpty() {
+        return inserts.isEmpty() && updates.isEmpty();
+    }
+
+    int getInsertedCount() {
+        return inserts.size();
+    }
+
+    int getUpdatedCount() {
+        return updates.size();
+    }
+
+    int getUnchangedCount() {
+        return unchanged;
+    }
+
+    /**
+     * @return the fraction of incoming days that had to be written, from 0 (nothing changed)
+     * to 1 (every day was new or different).
+     */
+    double getChangeRate() {
+        int total = getInsertedCount() + getUpdatedCount() + getUnchangedCount();
+        return total == 0 ? 0 : (double) (getInsertedCount() + getUpdatedCount()) / total;
+    }
+
+    /**
+     * Appends the writes this diff calls for to a batch.  Updates touch only the columns that
+     * changed, in place, so the row keeps its _ID.
+     */
+    void addOperations(ArrayList<ContentProviderOperation> operations) {
+        addOperations(operations, -1);
+    }
+
+    /**
+     * Like {@link #addOperations(ArrayList)}, but keys the new days to whatever location the
+     * batch's operation at {@code locationOperation} inserted, for a location that may not
+     * have been stored until that batch.
+     */
+    void addOperations(ArrayList<ContentProviderOperation> operations, int locationOperation) {
+        for (ContentValues values : inserts) {
+            ContentProviderOperation.Builder insert =
+                    ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                            .withValues(values);
+            if (locationOperation >= 0) {
+                insert.withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, locationOperation);
+            }
+            operations.add(insert.build());
+        }
+        for (Map.Entry<Long, ContentValues> update : updates.entrySet()) {
+            operations.add(ContentProviderOperation.newUpdate(WeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherEntry._ID + " = ?",
+                            new String[]{Long.toString(update.getKey())})
+                    .withValues(update.getValue())
+                    .build());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getInsertedCount() + " inserted, " + getUpdatedCount() + " updated, "
+                + getUnchangedCount() + " unchanged";
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads and decodes the forecast for one location.  Nothing here touches the database, so
+ * fetches for several locations can run side by side and be persisted together afterwards.
+ * <p/>
+ * Each response body that's read to the end goes into the {@link ResponseJournal}, as it came
+ * off the wire, whether or not it decodes.
+ * <p/>
+ * Not thread safe: each thread fetching concurrently needs its own instance.
+ */
+class ForecastFetcher {
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    private static final int NUM_DAYS = 14;
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    private static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    // The 5 day / 3 hour forecast.  It always sends all 40 times, so there's no count.
+    private static final String HOURLY_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast?";
+
+    /**
+     * Outcome of one fetch.  {@link #status} is one of the
+     * {@link SunshineSyncAdapter.LocationStatus} values; {@link #forecast} is only set when the
+     * status is OK and the server sent a new body.
+     */
+    static class Result {
+        @SunshineSyncAdapter.LocationStatus
+        int status = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+        boolean notModified;
+        SunshineSyncAdapter.ParsedForecast forecast;
+        // Bytes of response body that crossed the wire, before decompression.
+        long wireBytes;
+    }
+
+    private final ResponseDecoder mResponseDecoder = new ResponseDecoder();
+    private final ResponseJournal mJournal;
+
+    /**
+     * @param journal where to record response bodies, or null not to.
+     */
+    ForecastFetcher(ResponseJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Fetches the forecast, by coordinates if {@code lat} and {@code lon} are given and by
+     * location string otherwise.  Validators and freshness in {@code cache} are sent with the
+     * request and updated from the response, but not saved.  Network and decode timings go
+     * into {@code metrics}.
+     */
+    Result fetch(String locationQuery, String lat, String lon, ForecastCache cache,
+                 SyncMetrics metrics) {
+        Result result = new Result();
+
+        // These two need to be declared outside the try/catch
+        // so that they can be closed in the finally block.
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        CountingInputStream wireStream = null;
+
+        try {
+            final String DAYS_PARAM = "cnt";
+            URL url = new URL(buildUri(FORECAST_BASE_URL, locationQuery, lat, lon)
+                    .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                    .build().toString());
+
+            // Create the request to OpenWeatherMap, and open the connection
+            urlConnection = SunshineHttp.open(url);
+            urlConnection.setRequestMethod("GET");
+            // ForecastCache does our revalidation; keep forecasts out of the shared HTTP cache.
+            urlConnection.setUseCaches(false);
+            cache.addConditionalHeaders(urlConnection);
+            mResponseDecoder.addAcceptEncoding(urlConnection);
+            long requestStart = SyncMetrics.now();
+            urlConnection.connect();
+            metrics.connectMillis = SyncMetrics.now() - requestStart;
+            int responseCode = urlConnection.getResponseCode();
+            metrics.firstByteMillis = SyncMetrics.now() - requestStart;
+            metrics.httpStatus = responseCode;
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                    && cache.locationId != -1) {
+                // What we have is still current.  Remember the new freshness lifetime; the
+                // caller skips the parse, the database write and everything that follows.
+                cache.updateFromResponse(urlConnection, System.currentTimeMillis());
+                result.notModified = true;
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                return result;
+            }
+
+            long decodeStart = SyncMetrics.now();
+            InputStream rawInputStream = urlConnection.getInputStream();
+            if (rawInputStream == null) {
+                // Nothing to do.
+                result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+                return result;
+            }
+            // Count what actually crossed the wire, before decompression.
+            wireStream = openWireStream(rawInputStream);
+            inputStream = mResponseDecoder.decode(wireStream, urlConnection.getContentEncoding());
+
+            SunshineSyncAdapter.ParsedForecast forecast = new SunshineSyncAdapter.ParsedForecast();
+            int code = decodeForecast(inputStream, forecast);
+            result.wireBytes = wireStream.getCount();
+            metrics.decodeMillis = SyncMetrics.now() - decodeStart;
+            metrics.bytes = result.wireBytes;
+
+            // do we have an error?
+            switch (code) {
+                case HttpURLConnection.HTTP_OK:
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                    result.forecast = forecast;
+                    cache.contentLength = result.wireBytes;
+                    cache.updateFromResponse(urlConnection, System.currentTimeMillis());
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_INVALID;
+                    break;
+                default:
+                    result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+        } finally {
+            journal(ResponseJournal.KIND_DAILY, locationQuery, urlConnection, wireStream,
+                    inputStream);
+            // Hands the socket back to the shared pool for the next location or sync.
+            SunshineHttp.release(urlConnection, inputStream);
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the 5 day / 3 hour forecast for the same location as {@link #fetch}.  OWM only
+     * refreshes it every three hours and the whole of it is replaced each time, so it's
+     * fetched without validators.
+     *
+     * @return the decoded hours, or null if the fetch or the decode failed.
+     */
+    SunshineSyncAdapter.ParsedHourly fetchHourly(String locationQuery, String lat, String lon) {
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        CountingInputStream wireStream = null;
+
+        try {
+            URL url = new URL(buildUri(HOURLY_BASE_URL, locationQuery, lat, lon).build()
+                    .toString());
+            urlConnection = SunshineHttp.open(url);
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setUseCaches(false);
+            mResponseDecoder.addAcceptEncoding(urlConnection);
+            urlConnection.connect();
+            if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+
+            InputStream rawInputStream = urlConnection.getInputStream();
+            if (rawInputStream == null) {
+                return null;
+            }
+            wireStream = openWireStream(rawInputStream);
+            inputStream = mResponseDecoder.decode(wireStream, urlConnection.getContentEncoding());
+
+            SunshineSyncAdapter.ParsedHourly hourly = new SunshineSyncAdapter.ParsedHourly();
+            int code = decodeHourly(inputStream, hourly);
+            return code == HttpURLConnection.HTTP_OK ? hourly : null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            return null;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            return null;
+        } finally {
+            journal(ResponseJournal.KIND_HOURLY, locationQuery, urlConnection, wireStream,
+                    inputStream);
+            SunshineHttp.release(urlConnection, inputStream);
+        }
+    }
+
+    /**
+     * Decodes a daily forecast body, straight off the stream where the platform allows it.  An
+     * empty body surfaces as an EOFException.
+     *
+     * @return the response code the body carries.
+     */
+    int decodeForecast(InputStream in, SunshineSyncAdapter.ParsedForecast forecast)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return ForecastJsonParser.parse(in, forecast);
+        }
+        String forecastJsonStr = mResponseDecoder.readFully(in);
+        if (forecastJsonStr.length() == 0) {
+            // Stream was empty.  No point in parsing.
+            throw new EOFException("Empty forecast response");
+        }
+        return ForecastJsonParser.parseTree(forecastJsonStr, forecast);
+    }
+
+    /**
+     * Decodes a 5 day / 3 hour forecast body, as {@link #decodeForecast} does a daily one.
+     */
+    int decodeHourly(InputStream in, SunshineSyncAdapter.ParsedHourly hourly)
+            throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return ForecastJsonParser.parseHourly(in, hourly);
+        }
+        String hourlyJsonStr = mResponseDecoder.readFully(in);
+        if (hourlyJsonStr.length() == 0) {
+            throw new EOFException("Empty hourly response");
+        }
+        return ForecastJsonParser.parseHourlyTree(hourlyJsonStr, hourly);
+    }
+
+    private CountingInputStream openWireStream(InputStream rawInputStream) {
+        return mJournal == null ? new CountingInputStream(rawInputStream)
+                : new RecordingInputStream(rawInputStream);
+    }
+
+    /**
+     * Journals the body read from {@code wireStream}, once the rest of it has been read, as
+     * release() would anyway.  A body the network cut short isn't worth keeping.
+     */
+    private void journal(int kind, String locationQuery, HttpURLConnection connection,
+                         CountingInputStream wireStream, InputStream inputStream) {
+        if (!(wireStream instanceof RecordingInputStream) || inputStream == null) {
+            return;
+        }
+        try {
+            mResponseDecoder.drain(inputStream);
+        } catch (IOException e) {
+            return;
+        }
+        mJournal.append(kind, locationQuery, System.currentTimeMillis(),
+                connection.getContentEncoding(), ((RecordingInputStream) wireStream).toByteArray());
+    }
+
+    /**
+     * Starts the URL of a forecast request: the location, the format, the units and the key.
+     */
+    private static Uri.Builder buildUri(String baseUrl, String locationQuery, String lat,
+                                        String lon) {
+        final String QUERY_PARAM = "q";
+        final String LAT_PARAM = "lat";
+        final String LON_PARAM = "lon";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String APPID_PARAM = "APPID";
+
+        Uri.Builder uriBuilder = Uri.parse(baseUrl).buildUpon();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (lat != null && lon != null) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, lat)
+                    .appendQueryParameter(LON_PARAM, lon);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+        }
+
+        return uriBuilder.appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+    }
+}
@@ -0,0 +1,486 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Decodes the OpenWeatherMap daily forecast payload into typed rows, and the 5 day / 3 hour
+ * forecast payload with {@link #parseHourly(InputStream, HourlyCallback)}.
+ * <p/>
+ * {@link #parse(InputStream, Callback)} pulls tokens straight off the connection stream, so
+ * neither the raw response String nor a JSONObject tree is ever built.  Rows are handed to the
+ * {@link Callback} as soon as each day object has been read.  {@link #parseTree(String, Callback)}
+ * is the original JSONObject based decoder, kept for devices without {@link JsonReader}.
+ */
+public class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // The hourly payload's names, where they differ.  Each entry of its "list" is one forecast
+    // time, with the measurements in "main" and the wind in its own object.
+    static final String OWM_TIME = "dt";
+    static final String OWM_MAIN = "main";
+    static final String OWM_WIND = "wind";
+
+    /**
+     * Receives the decoded payload.  Days are delivered in the order the server sent them,
+     * which is also date order starting with today.
+     */
+    public interface Callback {
+        void onCity(String cityName, double lat, double lon);
+
+        void onDay(ForecastDay day);
+    }
+
+    /**
+     * Receives the decoded hourly payload, in the order the server sent it, which is time
+     * order.
+     */
+    public interface HourlyCallback {
+        void onHour(ForecastHour hour);
+    }
+
+    /**
+     * One forecast time as returned by the server, before it is keyed to a location.
+     */
+    public static class ForecastHour {
+        // Milliseconds since the epoch; the server sends seconds.
+        public long time;
+        public double temperature;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public String description;
+        public int weatherId;
+    }
+
+    /**
+     * One day of forecast as returned by the server, before it is keyed to a location and date.
+     */
+    public static class ForecastDay {
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public double high;
+        public double low;
+        public String description;
+        public int weatherId;
+    }
+
+    /**
+     * Streams the payload from {@code in}.  The stream is not closed.
+     *
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     * payload did not carry one.
+     * @throws IOException   if the stream cannot be read, including an empty stream.
+     * @throws JSONException if the payload is not a well formed forecast.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int code = HttpURLConnection.HTTP_OK;
+        boolean sawCity = false;
+        boolean sawList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    code = readCode(reader);
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, callback);
+                    sawCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        callback.onDay(readDay(reader));
+                    }
+                    reader.endArray();
+                    sawList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports unexpected token types this way; surface it the same way
+            // the JSONObject decoder would have.
+            throw new JSONException(e.getMessage());
+        }
+        if (code == HttpURLConnection.HTTP_OK) {
+            if (!sawCity) throw new JSONException("No value for " + OWM_CITY);
+            if (!sawList) throw new JSONException("No value for " + OWM_LIST);
+        }
+        return code;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int readCode(JsonReader reader) throws IOException {
+        // OWM sends "cod" as a number on some responses and as a string on others.
+        if (reader.peek() == JsonToken.NUMBER) {
+            return reader.nextInt();
+        }
+        return Integer.parseInt(reader.nextString());
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        boolean sawCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                sawCoord = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null) throw new JSONException("No value for " + OWM_CITY_NAME);
+        if (!sawCoord) throw new JSONException("No value for " + OWM_COORD);
+        callback.onCity(cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ForecastDay readDay(JsonReader reader) throws IOException, JSONException {
+        ForecastDay day = new ForecastDay();
+        boolean sawTemperature = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                day.humidity = reader.nextInt();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        day.high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        day.low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                sawTemperature = true;
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            day.description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            day.weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    first = false;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!sawTemperature) throw new JSONException("No value for " + OWM_TEMPERATURE);
+        if (day.description == null) throw new JSONException("No value for " + OWM_WEATHER);
+        return day;
+    }
+
+    /**
+     * Streams an hourly payload from {@code in}, the same way as {@link #parse}.  The city is
+     * skipped; the daily forecast already stored it.  The stream is not closed.
+     *
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     * payload did not carry one.
+     * @throws IOException   if the stream cannot be read, including an empty stream.
+     * @throws JSONException if the payload is not a well formed hourly forecast.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static int parseHourly(InputStream in, HourlyCallback callback)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int code = HttpURLConnection.HTTP_OK;
+        boolean sawList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    code = readCode(reader);
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        callback.onHour(readHour(reader));
+                    }
+                    reader.endArray();
+                    sawList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+        if (code == HttpURLConnection.HTTP_OK && !sawList) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return code;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ForecastHour readHour(JsonReader reader) throws IOException, JSONException {
+        ForecastHour hour = new ForecastHour();
+        boolean sawTime = false;
+        boolean sawMain = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                hour.time = reader.nextLong() * 1000;
+                sawTime = true;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        hour.temperature = reader.nextDouble();
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        hour.pressure = reader.nextDouble();
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        hour.humidity = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                sawMain = true;
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        hour.windSpeed = reader.nextDouble();
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        hour.windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // As in the daily payload: a one element array with the description and code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            hour.description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            hour.weatherId = reader.nextInt();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    first = false;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!sawTime) throw new JSONException("No value for " + OWM_TIME);
+        if (!sawMain) throw new JSONException("No value for " + OWM_MAIN);
+        if (hour.description == null) throw new JSONException("No value for " + OWM_WEATHER);
+        return hour;
+    }
+
+    /**
+     * Decodes a payload that has already been read into a String by building the full
+     * JSONObject tree.  Used where {@link JsonReader} is not available.
+     *
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     * payload did not carry one.
+     */
+    public static int parseTree(String forecastJsonStr, Callback callback) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int code = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (code != HttpURLConnection.HTTP_OK) {
+                return code;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        callback.onCity(cityJson.getString(OWM_CITY_NAME),
+                cityCoord.getDouble(OWM_LATITUDE),
+                cityCoord.getDouble(OWM_LONGITUDE));
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            ForecastDay day = new ForecastDay();
+
+            day.pressure = dayForecast.getDouble(OWM_PRESSURE);
+            day.humidity = dayForecast.getInt(OWM_HUMIDITY);
+            day.windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
+            day.windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            day.description = weatherObject.getString(OWM_DESCRIPTION);
+            day.weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+            day.high = temperatureObject.getDouble(OWM_MAX);
+            day.low = temperatureObject.getDouble(OWM_MIN);
+
+            callback.onDay(day);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Decodes an hourly payload that has already been read into a String, by building the
+     * JSONObject tree.  Used where {@link JsonReader} is not available.
+     *
+     * @return the "cod" value of the response, or {@link HttpURLConnection#HTTP_OK} if the
+     * payload did not carry one.
+     */
+    public static int parseHourlyTree(String hourlyJsonStr, HourlyCallback callback)
+            throws JSONException {
+        JSONObject hourlyJson = new JSONObject(hourlyJsonStr);
+
+        if (hourlyJson.has(OWM_MESSAGE_CODE)) {
+            int code = hourlyJson.getInt(OWM_MESSAGE_CODE);
+            if (code != HttpURLConnection.HTTP_OK) {
+                return code;
+            }
+        }
+
+        JSONArray hourArray = hourlyJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < hourArray.length(); i++) {
+            JSONObject hourForecast = hourArray.getJSONObject(i);
+            ForecastHour hour = new ForecastHour();
+
+            hour.time = hourForecast.getLong(OWM_TIME) * 1000;
+
+            JSONObject mainObject = hourForecast.getJSONObject(OWM_MAIN);
+            hour.temperature = mainObject.getDouble(OWM_TEMPERATURE);
+            hour.pressure = mainObject.getDouble(OWM_PRESSURE);
+            hour.humidity = mainObject.getInt(OWM_HUMIDITY);
+
+            JSONObject windObject = hourForecast.optJSONObject(OWM_WIND);
+            if (windObject != null) {
+                hour.windSpeed = windObject.getDouble(OWM_WINDSPEED);
+                hour.windDirection = windObject.getDouble(OWM_WIND_DIRECTION);
+            }
+
+            JSONObject weatherObject =
+                    hourForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            hour.description = weatherObject.getString(OWM_DESCRIPTION);
+            hour.weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+
+            callback.onHour(hour);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+}
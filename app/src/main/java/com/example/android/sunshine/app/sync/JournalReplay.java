@@ -0,0 +1,177 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.HourlyBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes and stores the responses in the {@link ResponseJournal} again, oldest first, the way
+ * the sync did when it fetched them: each daily forecast is diffed against what's stored and
+ * written in one batch with the retention delete, and each hourly forecast replaces the
+ * location's hours.  Days are dated from when the response was fetched, not from now.
+ * <p/>
+ * The location's cache validators, change history and sync status are left alone, so a replay
+ * doesn't change when or how the next sync fetches, or what the app says about the last one.
+ * The location row is only written for a location that isn't stored yet.
+ * <p/>
+ * With no network involved, it's also a repeatable load on the decode and persist stages.
+ */
+class JournalReplay {
+    private static final String LOG_TAG = JournalReplay.class.getSimpleName();
+
+    /**
+     * What a replay did, and where its time went.
+     */
+    static class Result {
+        int responses;
+        // Responses that couldn't be read or decoded, or that carried an error.
+        int failed;
+        int daysChanged;
+        int hoursStored;
+        long journalBytes;
+        long decodeMillis;
+        long persistMillis;
+
+        @Override
+        public String toString() {
+            return responses + " responses (" + failed + " failed, " + journalBytes
+                    + " bytes), " + daysChanged + " days changed, " + hoursStored
+                    + " hours stored; decode " + decodeMillis + "ms, persist " + persistMillis
+                    + "ms";
+        }
+    }
+
+    private final Context mContext;
+    private final ResponseJournal mJournal;
+    private final ResponseDecoder mResponseDecoder = new ResponseDecoder();
+    private final ForecastFetcher mFetcher = new ForecastFetcher(null);
+
+    JournalReplay(Context context) {
+        this(context, ResponseJournal.get(context));
+    }
+
+    JournalReplay(Context context, ResponseJournal journal) {
+        mContext = context;
+        mJournal = journal;
+    }
+
+    /**
+     * Replays the responses fetched between {@code from} and {@code to} inclusive.
+     *
+     * @param locationSetting the location to replay, or null for every location.
+     */
+    Result replay(String locationSetting, long from, long to) {
+        Result result = new Result();
+        List<ResponseJournal.Entry> entries = mJournal.find(locationSetting, from, to);
+        for (ResponseJournal.Entry entry : entries) {
+            result.responses++;
+            result.journalBytes += entry.length;
+            try {
+                if (!replay(entry, result)) {
+                    result.failed++;
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error replaying response for " + entry.locationSetting, e);
+                result.failed++;
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage(), e);
+                result.failed++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return false if the response carried an error, or couldn't be stored.
+     */
+    private boolean replay(ResponseJournal.Entry entry, Result result)
+            throws IOException, JSONException {
+        long decodeStart = SyncMetrics.now();
+        ByteArrayInputStream body = new ByteArrayInputStream(mJournal.read(entry));
+        ContentResolver resolver = mContext.getContentResolver();
+
+        if (entry.kind == ResponseJournal.KIND_HOURLY) {
+            SunshineSyncAdapter.ParsedHourly hourly = new SunshineSyncAdapter.ParsedHourly();
+            int code = mFetcher.decodeHourly(
+                    mResponseDecoder.decode(body, entry.contentEncoding), hourly);
+            result.decodeMillis += SyncMetrics.now() - decodeStart;
+            long locationId = ForecastCache.load(mContext, entry.locationSetting).locationId;
+            if (code != HttpURLConnection.HTTP_OK || locationId == -1) {
+                // The hours carry no city, so there's nothing to key them to until the daily
+                // forecast has stored the location.
+                return false;
+            }
+            long persistStart = SyncMetrics.now();
+            HourlyBatch batch = new HourlyBatch(hourly.hours.size());
+            hourly.addTo(batch, locationId);
+            result.hoursStored += batch.replace(resolver);
+            result.persistMillis += SyncMetrics.now() - persistStart;
+            return true;
+        }
+
+        SunshineSyncAdapter.ParsedForecast forecast = new SunshineSyncAdapter.ParsedForecast();
+        int code = mFetcher.decodeForecast(
+                mResponseDecoder.decode(body, entry.contentEncoding), forecast);
+        result.decodeMillis += SyncMetrics.now() - decodeStart;
+        if (code != HttpURLConnection.HTTP_OK) {
+            return false;
+        }
+
+        long persistStart = SyncMetrics.now();
+        ForecastCache cache = ForecastCache.load(mContext, entry.locationSetting);
+        ContentValues[] values = SunshineSyncAdapter.buildWeatherValues(cache.locationId,
+                forecast, entry.fetchTime);
+        ForecastDiff diff = ForecastDiff.compute(resolver, cache.locationId, values);
+        ArrayList<ContentProviderOperation> operations =
+                buildReplayOperations(entry.locationSetting, forecast, cache.locationId, diff);
+        try {
+            if (!operations.isEmpty()) {
+                resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing replayed forecast for " + entry.locationSetting, e);
+            return false;
+        } finally {
+            result.persistMillis += SyncMetrics.now() - persistStart;
+        }
+        result.daysChanged += diff.getInsertedCount() + diff.getUpdatedCount();
+        return true;
+    }
+
+    /**
+     * Builds the days a replayed forecast calls for, and the retention delete if any changed:
+     * the sync's batch without its location update.  A location that isn't stored yet is
+     * upserted first, as the sync would, and its days keyed to it.
+     */
+    private static ArrayList<ContentProviderOperation> buildReplayOperations(
+            String locationSetting, SunshineSyncAdapter.ParsedForecast forecast, long locationId,
+            ForecastDiff diff) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        int locationOperation = -1;
+        if (locationId == -1) {
+            operations.add(SunshineSyncAdapter.buildLocationUpsert(locationSetting, forecast,
+                    new ContentValues()));
+            locationOperation = 0;
+        }
+        diff.addOperations(operations, locationOperation);
+        if (!diff.isEmpty()) {
+            SunshineSyncAdapter.addRetentionDelete(operations);
+        }
+        return operations;
+    }
+}
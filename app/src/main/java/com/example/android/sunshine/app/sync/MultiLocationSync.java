@@ -0,0 +1,365 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.HourlyBatch;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes every location in the location table, not just the preferred one.
+ * <p/>
+ * Forecasts are fetched in parallel by a small worker pool.  OWM's batched "group" endpoint
+ * only serves current conditions, not the daily forecast, so each city is its own request.
+ * Nothing is written until every fetch has finished; then all forecasts, cache validators and
+ * per-location statuses go to the provider as one batch, which it applies in one transaction.
+ * <p/>
+ * Each worker fetches its location's 5 day / 3 hour forecast straight after the daily one.
+ * Every location's hours are then replaced together in a second transaction, once the daily
+ * forecasts are committed.
+ */
+class MultiLocationSync {
+    private static final String LOG_TAG = MultiLocationSync.class.getSimpleName();
+
+    // Enough to overlap network latency without hammering the API key or a slow radio.
+    private static final int MAX_WORKERS = 4;
+
+    // Upper bound for the whole fan-out; anything still in flight then counts as failed.
+    private static final long FETCH_TIMEOUT_SECONDS = 90;
+
+    private static final String[] LOCATION_COLUMNS;
+    private static final int INDEX_LOCATION_SETTING;
+    private static final int INDEX_COORD_LAT;
+    private static final int INDEX_COORD_LONG;
+
+    static {
+        int base = ForecastCache.LOCATION_CACHE_PROJECTION.length;
+        LOCATION_COLUMNS = new String[base + 3];
+        System.arraycopy(ForecastCache.LOCATION_CACHE_PROJECTION, 0, LOCATION_COLUMNS, 0, base);
+        INDEX_LOCATION_SETTING = base;
+        INDEX_COORD_LAT = base + 1;
+        INDEX_COORD_LONG = base + 2;
+        LOCATION_COLUMNS[INDEX_LOCATION_SETTING] = WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING;
+        LOCATION_COLUMNS[INDEX_COORD_LAT] = WeatherContract.LocationEntry.COLUMN_COORD_LAT;
+        LOCATION_COLUMNS[INDEX_COORD_LONG] = WeatherContract.LocationEntry.COLUMN_COORD_LONG;
+    }
+
+    /**
+     * One location being synced, and what came back for it.
+     */
+    private static class Target {
+        String locationSetting;
+        String lat;
+        String lon;
+        ForecastCache cache;
+        ForecastFetcher.Result result;
+        SunshineSyncAdapter.ParsedHourly hourly;
+        SyncMetrics metrics;
+    }
+
+    /**
+     * What one worker fetched for a location.  A worker only writes to its own Fetch, never to
+     * the Target: one that times out may still be blocked in the network, and carry on after
+     * the batch has been built from the targets.
+     */
+    private static class Fetch {
+        ForecastFetcher.Result result;
+        ForecastCache cache;
+        SunshineSyncAdapter.ParsedHourly hourly;
+        SyncMetrics metrics;
+    }
+
+    private final Context mContext;
+    private final List<SyncMetrics> mMetrics = new ArrayList<SyncMetrics>();
+
+    // Fetchers keep reusable decode buffers, so each worker thread gets its own.
+    private final ThreadLocal<ForecastFetcher> mFetchers = new ThreadLocal<ForecastFetcher>() {
+        @Override
+        protected ForecastFetcher initialValue() {
+            return new ForecastFetcher(ResponseJournal.get(mContext));
+        }
+    };
+
+    MultiLocationSync(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return metrics for each location of the last {@link #run}, not yet recorded.
+     */
+    List<SyncMetrics> getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return true if any location's stored forecast changed.
+     */
+    boolean run() {
+        List<Target> targets = loadTargets();
+        if (targets.isEmpty()) {
+            return false;
+        }
+
+        boolean fetched = fetchAll(targets);
+        for (Target target : targets) {
+            mMetrics.add(target.metrics);
+        }
+        if (!fetched) {
+            return false;
+        }
+
+        long dbStart = SyncMetrics.now();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        boolean dataChanged = false;
+        String preferredLocation = Utility.getPreferredLocation(mContext);
+        int preferredStatus = -1;
+
+        for (Target target : targets) {
+            ForecastFetcher.Result result = target.result;
+            ContentValues locationValues;
+            if (result == null) {
+                // Still fresh, nothing was fetched and nothing needs writing.
+                if (target.locationSetting.equals(preferredLocation)) {
+                    preferredStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                }
+                continue;
+            } else if (result.forecast != null) {
+                ForecastDiff diff = ForecastDiff.compute(mContext.getContentResolver(),
+                        target.cache.locationId, SunshineSyncAdapter.buildWeatherValues(
+                                target.cache.locationId, result.forecast));
+                Log.d(LOG_TAG, "Sync for " + target.locationSetting + ": " + diff);
+                diff.addOperations(operations);
+                dataChanged = dataChanged || !diff.isEmpty();
+                target.cache.changeHistory = SyncScheduler.appendChangeRate(
+                        target.cache.changeHistory, diff.getChangeRate());
+                locationValues = target.cache.toContentValues();
+                // Pick up the server's name and coordinates in case they've moved.
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        result.forecast.cityName);
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        result.forecast.cityLatitude);
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                        result.forecast.cityLongitude);
+                ForecastCache.recordMiss(mContext);
+            } else if (result.notModified) {
+                target.cache.changeHistory =
+                        SyncScheduler.appendChangeRate(target.cache.changeHistory, 0);
+                locationValues = target.cache.toContentValues();
+                ForecastCache.recordHit(mContext, target.cache.contentLength);
+            } else {
+                locationValues = new ContentValues();
+            }
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_SYNC_STATUS, result.status);
+            operations.add(ContentProviderOperation
+                    .newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.LocationEntry._ID + " = ?",
+                            new String[]{Long.toString(target.cache.locationId)})
+                    .withValues(locationValues)
+                    .build());
+
+            if (target.locationSetting.equals(preferredLocation)) {
+                preferredStatus = result.status;
+            }
+        }
+
+        if (dataChanged) {
+            SunshineSyncAdapter.addRetentionDelete(operations);
+        }
+
+        if (!operations.isEmpty()) {
+            try {
+                mContext.getContentResolver().applyBatch(
+                        WeatherContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, "Error committing multi-location sync", e);
+                return false;
+            }
+        }
+
+        // Every fetched location shares the one transaction, so they share its time too.
+        long dbMillis = SyncMetrics.now() - dbStart;
+        for (Target target : targets) {
+            if (target.result != null) {
+                target.metrics.dbMillis = dbMillis;
+            }
+        }
+
+        // The forecast list and settings still read the single global status, which follows
+        // the preferred location.
+        if (preferredStatus != -1) {
+            SunshineSyncAdapter.setLocationStatus(mContext, preferredStatus);
+        }
+
+        storeHourly(targets);
+        return dataChanged;
+    }
+
+    /**
+     * Replaces the hours of every location whose hourly fetch succeeded, in one transaction.
+     */
+    private void storeHourly(List<Target> targets) {
+        long start = SyncMetrics.now();
+        // OWM sends 40 times per location.
+        HourlyBatch batch = new HourlyBatch(targets.size() * 40);
+        for (Target target : targets) {
+            if (target.result != null
+                    && target.result.status == SunshineSyncAdapter.LOCATION_STATUS_OK
+                    && target.hourly != null) {
+                target.hourly.addTo(batch, target.cache.locationId);
+            }
+        }
+        int stored = batch.replace(mContext.getContentResolver());
+        Log.d(LOG_TAG, "Stored " + stored + " hours in " + (SyncMetrics.now() - start) + "ms");
+    }
+
+    private List<Target> loadTargets() {
+        List<Target> targets = new ArrayList<Target>();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, LOCATION_COLUMNS, null, null, null);
+        if (cursor == null) {
+            return targets;
+        }
+        while (cursor.moveToNext()) {
+            Target target = new Target();
+            target.cache = ForecastCache.fromCursor(cursor);
+            target.locationSetting = cursor.getString(INDEX_LOCATION_SETTING);
+            // The stored coordinates are the ones OWM resolved the city to last time, so
+            // asking by coordinates gets the same city back without re-geocoding the setting.
+            target.lat = cursor.getString(INDEX_COORD_LAT);
+            target.lon = cursor.getString(INDEX_COORD_LONG);
+            target.metrics = new SyncMetrics(target.locationSetting);
+            targets.add(target);
+        }
+        cursor.close();
+        return targets;
+    }
+
+    /**
+     * Fetches every location that isn't fresh, leaving the result of each in its target: what
+     * its worker fetched, or a failure if the worker didn't finish in time.
+     *
+     * @return false if the circuit breaker kept us off the network.
+     */
+    private boolean fetchAll(List<Target> targets) {
+        long now = System.currentTimeMillis();
+        List<Target> stale = new ArrayList<Target>(targets.size());
+        List<Callable<Fetch>> tasks = new ArrayList<Callable<Fetch>>(targets.size());
+
+        for (final Target target : targets) {
+            if (target.cache.isFresh(now)) {
+                ForecastCache.recordHit(mContext, target.cache.contentLength);
+                target.metrics.result = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                continue;
+            }
+            stale.add(target);
+            final String locationSetting = target.locationSetting;
+            final String lat = target.lat;
+            final String lon = target.lon;
+            final ForecastCache cache = target.cache.copy();
+            tasks.add(new Callable<Fetch>() {
+                @Override
+                public Fetch call() {
+                    ForecastFetcher fetcher = mFetchers.get();
+                    Fetch fetch = new Fetch();
+                    fetch.cache = cache;
+                    fetch.metrics = new SyncMetrics(locationSetting);
+                    fetch.result = fetcher.fetch(locationSetting, lat, lon, fetch.cache,
+                            fetch.metrics);
+                    if (fetch.result.status == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+                        fetch.hourly = fetcher.fetchHourly(locationSetting, lat, lon);
+                    }
+                    return fetch;
+                }
+            });
+        }
+        if (tasks.isEmpty()) {
+            return true;
+        }
+
+        SyncCircuitBreaker breaker = SyncCircuitBreaker.load(mContext);
+        if (!breaker.allowRequest(now)) {
+            Log.d(LOG_TAG, "Circuit breaker open, skipping multi-location sync");
+            for (Target target : stale) {
+                target.metrics.result = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+            }
+            return false;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_WORKERS, tasks.size()));
+        try {
+            List<Future<Fetch>> futures =
+                    pool.invokeAll(tasks, FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                Target target = stale.get(i);
+                Fetch fetch = getFetch(futures.get(i));
+                if (fetch == null) {
+                    target.result = failed();
+                } else {
+                    target.result = fetch.result;
+                    target.cache = fetch.cache;
+                    target.hourly = fetch.hourly;
+                    target.metrics = fetch.metrics;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "Multi-location sync interrupted", e);
+            Thread.currentThread().interrupt();
+            for (Target target : stale) {
+                if (target.result == null) target.result = failed();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for (Target target : stale) {
+            target.metrics.result = target.result.status;
+        }
+
+        // One location answering is enough to show the server is up.
+        int status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        for (Target target : stale) {
+            if (!SyncCircuitBreaker.isUpstreamFailure(target.result.status)) {
+                status = target.result.status;
+                break;
+            }
+        }
+        breaker.onResult(status, System.currentTimeMillis());
+        breaker.save(mContext);
+        return true;
+    }
+
+    /**
+     * @return what the worker fetched, or null if it timed out or failed.
+     */
+    private static Fetch getFetch(Future<Fetch> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (CancellationException | ExecutionException e) {
+            // Timed out or blew up; either way the server didn't give us a forecast.
+            Log.e(LOG_TAG, "Location fetch failed", e);
+            return null;
+        }
+    }
+
+    private static ForecastFetcher.Result failed() {
+        ForecastFetcher.Result result = new ForecastFetcher.Result();
+        result.status = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+        return result;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it, as {@link CountingInputStream} does, and keeps a copy of
+ * them.
+ */
+class RecordingInputStream extends CountingInputStream {
+    private final ByteArrayOutputStream mRecording = new ByteArrayOutputStream(8 * 1024);
+
+    RecordingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return the bytes read so far.
+     */
+    byte[] toByteArray() {
+        return mRecording.toByteArray();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) mRecording.write(b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) mRecording.write(buffer, offset, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        // Skipped bytes would leave a hole in the copy, so read them instead.
+        byte[] buffer = new byte[(int) Math.min(byteCount, 4096)];
+        long skipped = 0;
+        while (skipped < byteCount) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+            if (read == -1) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+}
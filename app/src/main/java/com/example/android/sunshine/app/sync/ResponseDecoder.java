@@ -0,0 +1,218 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Negotiates compressed transfer for forecast fetches and undoes it on the way in.
+ * <p/>
+ * Setting Accept-Encoding ourselves turns off HttpURLConnection's transparent gzip handling,
+ * which only covers gzip and hides the compressed size from us.  In exchange we decode the
+ * body here, a buffer at a time, and hand the parser a plain byte stream.
+ * <p/>
+ * A gzip body is a deflate stream with a header in front and a checksum behind, so both
+ * encodings go through the same reused Inflater: gzip's with its zlib wrapper turned off, and
+ * the gzip header and trailer read here rather than by a GZIPInputStream and the Inflater it
+ * allocates for every response.
+ * <p/>
+ * Not thread safe: one instance belongs to one sync adapter, which runs one sync at a time.
+ */
+class ResponseDecoder {
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODINGS = "gzip, deflate";
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // Reused across syncs so a periodic sync doesn't churn through fresh buffers every time.
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final ByteArrayOutputStream mBody = new ByteArrayOutputStream(BUFFER_SIZE * 4);
+    private final Inflater mInflater = new Inflater();
+    private final Inflater mGzipInflater = new Inflater(true);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Asks the server for a compressed body.  Must be called before the connection is opened.
+     */
+    void addAcceptEncoding(HttpURLConnection connection) {
+        connection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODINGS);
+    }
+
+    /**
+     * Wraps the raw response stream so that reads return the decoded body.
+     *
+     * @param in              the stream as it came off the wire.
+     * @param contentEncoding the Content-Encoding response header, may be null.
+     */
+    InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        contentEncoding = contentEncoding.trim();
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            mGzipInflater.reset();
+            mCrc.reset();
+            return new GzipStream(in, mGzipInflater, mCrc);
+        }
+        if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            mInflater.reset();
+            return new ReusedInflaterStream(in, mInflater);
+        }
+        return in;
+    }
+
+    /**
+     * Reads the decoded body into a String for the JSONObject decoder, for devices where we
+     * can't stream.  Bytes are copied in bulk through the reused buffer, with no per-line
+     * Strings along the way.
+     *
+     * @return the body, or an empty String if the stream was empty.
+     */
+    String readFully(InputStream in) throws IOException {
+        mBody.reset();
+        int read;
+        while ((read = in.read(mBuffer)) != -1) {
+            mBody.write(mBuffer, 0, read);
+        }
+        return mBody.toString("UTF-8");
+    }
+
+    /**
+     * Reads the rest of the decoded body and discards it, so everything beneath it on the wire
+     * has been read, down to a compressed body's trailer.
+     */
+    void drain(InputStream in) throws IOException {
+        while (in.read(mBuffer) != -1) {
+            // Discard.
+        }
+    }
+
+    /**
+     * Inflates through an Inflater that outlives it.  Older platform versions end the Inflater
+     * on close() even when it was passed in, which would leave the decoder with a dead one.
+     */
+    private static class ReusedInflaterStream extends InflaterInputStream {
+
+        ReusedInflaterStream(InputStream in, Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a single-member gzip body (RFC 1952): the header as it's opened, the deflate data
+     * through a raw Inflater, and the trailer once that ends, checked against what was inflated.
+     */
+    private static class GzipStream extends ReusedInflaterStream {
+
+        private static final int GZIP_MAGIC = 0x8b1f;
+        private static final int METHOD_DEFLATE = 8;
+        private static final int FLAG_HCRC = 2;
+        private static final int FLAG_EXTRA = 4;
+        private static final int FLAG_NAME = 8;
+        private static final int FLAG_COMMENT = 16;
+        private static final int TRAILER_SIZE = 8;
+
+        private final CRC32 mCrc;
+        private boolean mEnded;
+
+        GzipStream(InputStream in, Inflater inflater, CRC32 crc) throws IOException {
+            super(in, inflater);
+            mCrc = crc;
+            readHeader();
+        }
+
+        private void readHeader() throws IOException {
+            if (readShort() != GZIP_MAGIC) {
+                throw new ZipException("Not in GZIP format");
+            }
+            if (readByte() != METHOD_DEFLATE) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readByte();
+            // Modification time, extra flags and operating system.
+            skipBytes(6);
+            if ((flags & FLAG_EXTRA) != 0) {
+                skipBytes(readShort());
+            }
+            if ((flags & FLAG_NAME) != 0) {
+                skipString();
+            }
+            if ((flags & FLAG_COMMENT) != 0) {
+                skipString();
+            }
+            if ((flags & FLAG_HCRC) != 0) {
+                skipBytes(2);
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mEnded) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, count);
+            if (read == -1) {
+                mEnded = true;
+                readTrailer();
+            } else {
+                mCrc.update(buffer, offset, read);
+            }
+            return read;
+        }
+
+        // The Inflater stops at the end of the deflate data, so the start of the trailer may
+        // already be in the buffer it was reading from.
+        private void readTrailer() throws IOException {
+            byte[] trailer = new byte[TRAILER_SIZE];
+            int buffered = Math.min(inf.getRemaining(), TRAILER_SIZE);
+            System.arraycopy(buf, len - inf.getRemaining(), trailer, 0, buffered);
+            for (int i = buffered; i < TRAILER_SIZE; i++) {
+                trailer[i] = (byte) readByte();
+            }
+            if (littleEndianInt(trailer, 0) != (int) mCrc.getValue()
+                    || littleEndianInt(trailer, 4) != (int) inf.getBytesWritten()) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+        }
+
+        private static int littleEndianInt(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                    | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        private int readShort() throws IOException {
+            return readByte() | readByte() << 8;
+        }
+
+        private void skipBytes(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                readByte();
+            }
+        }
+
+        private void skipString() throws IOException {
+            while (readByte() != 0) {
+                // Skip.
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An append-only record of the forecast responses the sync downloaded, kept compressed in app
+ * storage so they can be decoded and stored again without the network: after a parser fix or
+ * a schema change, or as realistic input for load testing the ingestion path.  See
+ * {@link JournalReplay}.
+ * <p/>
+ * The journal is a run of numbered segments.  Each is a data file of records, every one the
+ * response body as it came off the wire (gzip or deflate when the server compressed it,
+ * gzipped here when it didn't) behind a small header, and an index file with the header and
+ * offset of each record.  Finding responses by location and fetch time only reads the
+ * indexes.  Once a segment passes {@link #MAX_SEGMENT_BYTES} the next record starts a new one,
+ * and the oldest are deleted to keep {@link #MAX_SEGMENTS}.
+ * <p/>
+ * A record is written before its index entry, so one cut short by a crash is never indexed,
+ * and an index cut short ends at its last whole entry.
+ * <p/>
+ * Thread safe: the multi-location sync appends from several fetch threads.
+ */
+class ResponseJournal {
+    private static final String LOG_TAG = ResponseJournal.class.getSimpleName();
+
+    static final int KIND_DAILY = 0;
+    static final int KIND_HOURLY = 1;
+
+    // A daily and an hourly response take 5-10KB between them compressed, so this keeps a few
+    // days of syncs for a handful of locations.
+    static final long MAX_SEGMENT_BYTES = 256 * 1024;
+    static final int MAX_SEGMENTS = 4;
+
+    private static final String DIRECTORY = "response_journal";
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String ENCODING_GZIP = "gzip";
+
+    private static ResponseJournal sInstance;
+
+    /**
+     * One journaled response, as its index entry describes it.
+     */
+    static class Entry {
+        int segment;
+        long offset;
+        int kind;
+        long fetchTime;
+        String locationSetting;
+        String contentEncoding;
+        int length;
+    }
+
+    private final File mDirectory;
+    private final long mMaxSegmentBytes;
+    private final int mMaxSegments;
+    // The segment being appended to, -1 until the directory has been read.
+    private int mSegment = -1;
+
+    /**
+     * @return the app's journal.
+     */
+    static synchronized ResponseJournal get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResponseJournal(
+                    new File(context.getApplicationContext().getFilesDir(), DIRECTORY),
+                    MAX_SEGMENT_BYTES, MAX_SEGMENTS);
+        }
+        return sInstance;
+    }
+
+    ResponseJournal(File directory, long maxSegmentBytes, int maxSegments) {
+        mDirectory = directory;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxSegments = maxSegments;
+    }
+
+    /**
+     * Records a response body.  A failure is logged rather than thrown: the journal is never
+     * worth failing a sync over.
+     *
+     * @param contentEncoding the Content-Encoding {@code body} is in, null if none.
+     */
+    synchronized void append(int kind, String locationSetting, long fetchTime,
+                             String contentEncoding, byte[] body) {
+        try {
+            if (contentEncoding == null || contentEncoding.trim().length() == 0
+                    || "identity".equalsIgnoreCase(contentEncoding.trim())) {
+                body = gzip(body);
+                contentEncoding = ENCODING_GZIP;
+            }
+            int segment = segmentFor(body.length);
+            File data = segmentFile(segment, DATA_SUFFIX);
+            long offset = data.length();
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(data, true)));
+            try {
+                writeHeader(out, kind, fetchTime, locationSetting, contentEncoding, body.length);
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(segmentFile(segment, INDEX_SUFFIX), true)));
+            try {
+                index.writeLong(offset);
+                writeHeader(index, kind, fetchTime, locationSetting, contentEncoding,
+                        body.length);
+            } finally {
+                index.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error journaling response for " + locationSetting, e);
+        }
+    }
+
+    /**
+     * @param locationSetting the location to find responses for, or null for every location.
+     * @return the responses fetched between {@code from} and {@code to} inclusive, oldest
+     * first.
+     */
+    synchronized List<Entry> find(String locationSetting, long from, long to) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int segment : listSegments()) {
+            readIndex(segment, locationSetting, from, to, entries);
+        }
+        // Fetch threads can append slightly out of order.
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.fetchTime < rhs.fetchTime ? -1
+                        : (lhs.fetchTime == rhs.fetchTime ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * @return the body of {@code entry}, in its {@link Entry#contentEncoding}.
+     * @throws IOException if it's been rotated out, or can't be read.
+     */
+    synchronized byte[] read(Entry entry) throws IOException {
+        RandomAccessFile data = new RandomAccessFile(segmentFile(entry.segment, DATA_SUFFIX), "r");
+        try {
+            data.seek(entry.offset);
+            data.readByte();
+            long fetchTime = data.readLong();
+            data.readUTF();
+            data.readUTF();
+            int length = data.readInt();
+            if (fetchTime != entry.fetchTime || length != entry.length) {
+                throw new IOException("Journal record at " + entry.offset + " of segment "
+                        + entry.segment + " doesn't match its index");
+            }
+            byte[] body = new byte[length];
+            data.readFully(body);
+            return body;
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * @return the bytes the journal takes on disk.
+     */
+    synchronized long size() {
+        long size = 0;
+        for (int segment : listSegments()) {
+            size += segmentFile(segment, DATA_SUFFIX).length()
+                    + segmentFile(segment, INDEX_SUFFIX).length();
+        }
+        return size;
+    }
+
+    /**
+     * Deletes every segment.
+     */
+    synchronized void clear() {
+        for (int segment : listSegments()) {
+            deleteSegment(segment);
+        }
+        mSegment = -1;
+    }
+
+    private static void writeHeader(DataOutputStream out, int kind, long fetchTime,
+                                    String locationSetting, String contentEncoding, int length)
+            throws IOException {
+        out.writeByte(kind);
+        out.writeLong(fetchTime);
+        out.writeUTF(locationSetting);
+        out.writeUTF(contentEncoding);
+        out.writeInt(length);
+    }
+
+    private void readIndex(int segment, String locationSetting, long from, long to,
+                           List<Entry> entries) {
+        File file = segmentFile(segment, INDEX_SUFFIX);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                Entry entry = new Entry();
+                entry.segment = segment;
+                entry.offset = in.readLong();
+                entry.kind = in.readByte();
+                entry.fetchTime = in.readLong();
+                entry.locationSetting = in.readUTF();
+                entry.contentEncoding = in.readUTF();
+                entry.length = in.readInt();
+                if ((locationSetting == null || locationSetting.equals(entry.locationSetting))
+                        && entry.fetchTime >= from && entry.fetchTime <= to) {
+                    entries.add(entry);
+                }
+            }
+        } catch (EOFException e) {
+            // The end of the index, or an entry cut short.
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading journal index " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing journal index", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the segment a record of {@code length} bytes goes in, starting a new one and
+     * deleting the oldest if the current one is full.
+     */
+    private int segmentFor(int length) throws IOException {
+        if (mSegment == -1) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Can't create " + mDirectory);
+            }
+            List<Integer> segments = listSegments();
+            mSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        }
+        long size = segmentFile(mSegment, DATA_SUFFIX).length();
+        if (size > 0 && size + length > mMaxSegmentBytes) {
+            mSegment++;
+            for (int segment : listSegments()) {
+                if (segment <= mSegment - mMaxSegments) {
+                    deleteSegment(segment);
+                }
+            }
+        }
+        return mSegment;
+    }
+
+    // Segment numbers, oldest first.
+    private List<Integer> listSegments() {
+        List<Integer> segments = new ArrayList<Integer>();
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (name.endsWith(DATA_SUFFIX)) {
+                try {
+                    segments.add(Integer.parseInt(
+                            name.substring(0, name.length() - DATA_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not ours.
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private void deleteSegment(int segment) {
+        // The index first, so a segment half deleted has nothing pointing into it.
+        segmentFile(segment, INDEX_SUFFIX).delete();
+        segmentFile(segment, DATA_SUFFIX).delete();
+    }
+
+    private File segmentFile(int segment, String suffix) {
+        return new File(mDirectory, segment + suffix);
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(body);
+        gzip.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.GenericLoaderFactory;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.stream.StreamModelLoader;
+import com.bumptech.glide.module.GlideModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Points every Glide load in the app (the forecast list, the detail screen, the widgets and the
+ * notification's large icon) at {@link SunshineHttp}, so weather art shares the sync adapter's
+ * connection pool and HTTP cache.  Declared in the manifest, where Glide picks it up.
+ */
+public class SunshineGlideModule implements GlideModule {
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        SunshineHttp.install(context);
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        glide.register(GlideUrl.class, InputStream.class, new Factory());
+    }
+
+    private static class Factory implements ModelLoaderFactory<GlideUrl, InputStream> {
+        @Override
+        public ModelLoader<GlideUrl, InputStream> build(Context context,
+                                                        GenericLoaderFactory factories) {
+            return new Loader();
+        }
+
+        @Override
+        public void teardown() {
+        }
+    }
+
+    private static class Loader implements StreamModelLoader<GlideUrl> {
+        @Override
+        public DataFetcher<InputStream> getResourceFetcher(GlideUrl model, int width, int height) {
+            return new Fetcher(model);
+        }
+    }
+
+    private static class Fetcher implements DataFetcher<InputStream> {
+        private final GlideUrl mUrl;
+        private HttpURLConnection mConnection;
+        private InputStream mStream;
+        private volatile boolean mCancelled;
+
+        Fetcher(GlideUrl url) {
+            mUrl = url;
+        }
+
+        @Override
+        public InputStream loadData(Priority priority) throws Exception {
+            mConnection = SunshineHttp.open(mUrl.toURL());
+            if (mCancelled) {
+                return null;
+            }
+            int responseCode = mConnection.getResponseCode();
+            if (responseCode / 100 != 2) {
+                throw new IOException("Request failed " + responseCode + ": "
+                        + mConnection.getResponseMessage());
+            }
+            mStream = mConnection.getInputStream();
+            return mStream;
+        }
+
+        @Override
+        public void cleanup() {
+            // Glide has decoded what it needs; drain the rest so the socket goes back to the pool.
+            SunshineHttp.release(mConnection, mStream);
+        }
+
+        @Override
+        public String getId() {
+            return mUrl.toString();
+        }
+
+        @Override
+        public void cancel() {
+            // Called off the loading thread, so all we can do is stop before the request goes out.
+            mCancelled = true;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.http.HttpResponseCache;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The one HTTP stack every network consumer in the app goes through: the sync adapter and,
+ * through {@code SunshineGlideModule}, all the weather art Glide loads.
+ * <p/>
+ * HttpURLConnection already keeps a process-wide pool of keep-alive connections, and a pooled
+ * connection skips the DNS lookup and the TCP handshake.  What it needs from us is to be
+ * configured once before anything connects, and to get its connections back: a response has
+ * to be read to the end and its stream closed, without {@code disconnect()}, or the socket is
+ * thrown away.  {@link #open} and {@link #release} take care of that for every caller.
+ * <p/>
+ * On ICS and up this also installs a process-wide HTTP disk cache, so art fetched for the
+ * notification during a sync is already on disk when the forecast list asks for it.
+ */
+public class SunshineHttp {
+    private static final String LOG_TAG = SunshineHttp.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // Idle connections kept per host.  The forecast API and the art host are all we talk to.
+    private static final String MAX_CONNECTIONS = "5";
+
+    private static final String CACHE_DIR = "http";
+    private static final long CACHE_SIZE = 10 * 1024 * 1024;
+
+    // A leftover body bigger than this costs more to read than a new connection does.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static boolean sInstalled;
+
+    /**
+     * Configures the shared stack.  Safe to call from anywhere, any number of times; only the
+     * first call does anything.
+     */
+    public static synchronized void install(Context context) {
+        if (sInstalled) {
+            return;
+        }
+        sInstalled = true;
+
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", MAX_CONNECTIONS);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            File cacheDir = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            try {
+                HttpResponseCache.install(cacheDir, CACHE_SIZE);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "HTTP response cache unavailable", e);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection with the shared timeouts.  The caller reads the response, then hands
+     * the connection to {@link #release}.
+     */
+    public static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    /**
+     * Finishes with a connection so its socket can go back to the pool: reads whatever is left of
+     * the body, then closes the stream.
+     *
+     * @param stream the stream the body was read from, or null if it was never opened, in which
+     *               case the error stream (if any) is drained instead.
+     */
+    public static void release(HttpURLConnection connection, InputStream stream) {
+        if (connection == null) {
+            return;
+        }
+        if (stream == null) {
+            stream = connection.getErrorStream();
+        }
+        if (stream == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            int read;
+            while (drained < MAX_DRAIN_BYTES && (read = stream.read(buffer)) != -1) {
+                drained += read;
+            }
+            if (drained >= MAX_DRAIN_BYTES) {
+                // Not worth finishing; let this connection go instead.
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            // The connection is broken anyway, so it won't be pooled.
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Runs the background sync scheduled by {@link SyncScheduler} on Lollipop and up.  The sync
+ * itself still goes through the sync adapter; this only asks for it, and the sync schedules the
+ * next job when it finishes.
+ * <p/>
+ * It asks for an ordinary sync, not a manual one, so the sync framework still applies the
+ * user's auto-sync settings and its own backoff.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SunshineJobService extends JobService {
+    private static final String LOG_TAG = SunshineJobService.class.getSimpleName();
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (SyncScheduler.isAutoSyncEnabled(this)) {
+            SunshineSyncAdapter.requestBackgroundSync(this);
+        } else {
+            // Not rescheduled either; turning auto-sync back on schedules the next one.
+            Log.d(LOG_TAG, "Auto-sync is off, skipping the background sync");
+        }
+        // Nothing left running here.
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
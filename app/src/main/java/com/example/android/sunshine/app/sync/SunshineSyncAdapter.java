@@ -3,15 +3,19 @@ package com.example.android.sunshine.app.sync;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,6 +26,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
@@ -32,10 +37,10 @@ import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.HourlyBatch;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.google.android.gms.common.ConnectionResult;
@@ -45,38 +50,45 @@ import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
     public final static String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
+    // Baseline interval at which to sync with the weather, in seconds.  SyncScheduler scales it
+    // up or down from there.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180 ;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL / 3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
+    // Today's forecast for Wear, kept until the API client is connected.  Written by the Wear
+    // fan-out consumer and read from onConnected, so guarded by mWearLock.
+    private final Object mWearLock = new Object();
     private String HIGH_TEMP, LOW_TEMP;
     private Asset iconAsset;
 
+    // How long each fan-out consumer may run before it's interrupted.  The notification may
+    // have to download its large icon.
+    private static final long WIDGETS_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long MUZEI_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long NOTIFICATION_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long WEAR_TIMEOUT_MILLIS = 15 * 1000;
+    // How much longer than the slowest consumer's timeout the sync waits for the fan-out.
+    private static final long FAN_OUT_GRACE_MILLIS = 1000;
+
     GoogleApiClient apiClient;
 
+    private final ForecastFetcher mForecastFetcher;
+
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[]{
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
@@ -102,8 +114,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Sync extra asking for every saved location to be refreshed, not just the preferred one.
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS = "sync_all_locations";
+    // Sync extra asking for the journaled responses to be stored again, with no fetch.
+    public static final String SYNC_EXTRAS_REPLAY_JOURNAL = "replay_journal";
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        SunshineHttp.install(context);
+        mForecastFetcher = new ForecastFetcher(ResponseJournal.get(context));
 
         //Moving construction of api client here, based on a post in community.
         apiClient = new GoogleApiClient.Builder(context)
@@ -117,288 +136,448 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-
-
-        // We no longer need just the location String, but also potentially the latitude and
-        // longitude, in case we are syncing based on a new Place Picker API result.
-        Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
-
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
-            }
-
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
-
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            performSync(extras);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                checkpointDatabase();
             }
+            enableIncrementalVacuum();
+            // However this sync went, pick the time of the next one from what it found.
+            SyncScheduler.scheduleNext(getContext());
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     * <p/>
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Folds this sync's writes from the write-ahead log back into the database, now, while
+     * nothing else is writing, rather than leaving it to an automatic checkpoint during the
+     * next sync.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void checkpointDatabase() {
+        try {
+            getContext().getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_CHECKPOINT, null, null);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error checkpointing the database", e);
+        }
+    }
 
+    /**
+     * Has the provider switch a database from before incremental auto-vacuum over to it.  That
+     * rewrites the whole file, so it's done here in the background rather than on whichever
+     * open comes first; until it succeeds, each sync tries again.
+     */
+    private void enableIncrementalVacuum() {
+        try {
+            getContext().getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_ENABLE_INCREMENTAL_VACUUM, null, null);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error enabling incremental vacuum", e);
+        }
+    }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+    private void performSync(Bundle extras) {
+        Context context = getContext();
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+        if (extras.getBoolean(SYNC_EXTRAS_REPLAY_JOURNAL, false)) {
+            JournalReplay.Result replay =
+                    new JournalReplay(context).replay(null, 0, Long.MAX_VALUE);
+            Log.d(LOG_TAG, "Journal replay: " + replay);
+            if (replay.daysChanged > 0) {
+                fanOut(Collections.<SyncMetrics>emptyList());
+            }
+            return;
+        }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        if (extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS, false)) {
+            MultiLocationSync multiLocationSync = new MultiLocationSync(context);
+            if (multiLocationSync.run()) {
+                fanOut(multiLocationSync.getMetrics());
+            } else {
+                recordMetrics(multiLocationSync.getMetrics());
+            }
+            return;
+        }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        // We no longer need just the location String, but also potentially the latitude and
+        // longitude, in case we are syncing based on a new Place Picker API result.
+        String locationQuery = Utility.getPreferredLocation(context);
+        String locationLatitude = null;
+        String locationLongitude = null;
+        if (Utility.isLocationLatLonAvailable(context)) {
+            locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
+            locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
+        }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        SyncMetrics metrics = new SyncMetrics(locationQuery);
+
+        // If the forecast we stored last time is still fresh, there's nothing to fetch.
+        ForecastCache cache = ForecastCache.load(context, locationQuery);
+        if (cache.isFresh(System.currentTimeMillis())) {
+            Log.d(LOG_TAG, "Forecast for " + locationQuery + " is fresh, skipping sync");
+            ForecastCache.recordHit(context, cache.contentLength);
+            setLocationStatus(context, LOCATION_STATUS_OK);
+            metrics.result = LOCATION_STATUS_OK;
+            metrics.record(context);
+            return;
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        // If the server has been failing, leave it alone until the backoff has passed.
+        SyncCircuitBreaker breaker = SyncCircuitBreaker.load(context);
+        if (!breaker.allowRequest(System.currentTimeMillis())) {
+            Log.d(LOG_TAG, "Circuit breaker open, skipping sync");
+            metrics.result = LOCATION_STATUS_SERVER_DOWN;
+            metrics.record(context);
+            return;
+        }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
+        // Fetch and decode.  The parser reads straight off the response stream, so these two
+        // stages overlap rather than running one after the other.
+        ForecastFetcher.Result result = mForecastFetcher.fetch(
+                locationQuery, locationLatitude, locationLongitude, cache, metrics);
+        metrics.result = result.status;
+        breaker.onResult(result.status, System.currentTimeMillis());
+        breaker.save(context);
+
+        boolean fannedOut = false;
+        long locationId = cache.locationId;
+        int status = result.status;
+
+        if (result.notModified) {
+            // What we have is still current, so skip the database write and everything that
+            // follows from it.
+            cache.changeHistory = SyncScheduler.appendChangeRate(cache.changeHistory, 0);
+            cache.save(context, cache.locationId, LOCATION_STATUS_OK);
+            ForecastCache.recordHit(context, cache.contentLength);
+        } else if (result.forecast != null) {
+            // Persist.
+            long dbStart = SyncMetrics.now();
+            // A location that isn't stored yet has no days to compare with, so they're all new.
+            ForecastDiff diff = ForecastDiff.compute(context.getContentResolver(),
+                    cache.locationId, buildWeatherValues(cache.locationId, result.forecast));
+            ContentProviderResult[] stored =
+                    storeWeatherData(result.forecast, cache, locationQuery, diff);
+            metrics.dbMillis = SyncMetrics.now() - dbStart;
+            if (stored == null) {
+                // Nothing was written, so this sync didn't get the forecast after all.
+                status = LOCATION_STATUS_UNKNOWN;
+                metrics.result = status;
+            } else {
+                ForecastCache.recordMiss(context);
+                if (locationId == -1) {
+                    // The location's upsert leads the batch, and its result carries the row id.
+                    locationId = ContentUris.parseId(stored[0].uri);
+                }
 
-            // do we have an error?
-            if (forecastJson.has(OWM_MESSAGE_CODE)) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+                // Fan out, without waiting for it.  The metrics are recorded once it's done.
+                if (!diff.isEmpty()) {
+                    fanOut(Collections.singletonList(metrics));
+                    fannedOut = true;
                 }
             }
+        } else if (cache.locationId != -1) {
+            cache.save(context, cache.locationId, result.status);
+        }
+        setLocationStatus(context, status);
+        if (!fannedOut) {
+            metrics.record(context);
+        }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+        if (status == LOCATION_STATUS_OK && locationId != -1) {
+            syncHourly(locationQuery, locationLatitude, locationLongitude, locationId);
+        }
+    }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+    /**
+     * The hourly stage: fetches the location's 5 day / 3 hour forecast and replaces the hours
+     * stored for it.  It runs once the daily forecast is in, so a slow or failed hourly fetch
+     * never holds up the forecast list, the widgets or the notification.
+     */
+    private void syncHourly(String locationQuery, String lat, String lon, long locationId) {
+        long start = SyncMetrics.now();
+        ParsedHourly hourly = mForecastFetcher.fetchHourly(locationQuery, lat, lon);
+        if (hourly == null) {
+            Log.d(LOG_TAG, "No hourly forecast for " + locationQuery);
+            return;
+        }
+        long dbStart = SyncMetrics.now();
+        HourlyBatch batch = new HourlyBatch(hourly.hours.size());
+        hourly.addTo(batch, locationId);
+        int stored = batch.replace(getContext().getContentResolver());
+        long end = SyncMetrics.now();
+        Log.d(LOG_TAG, "Hourly sync for " + locationQuery + ": " + stored + " hours, fetched in "
+                + (dbStart - start) + "ms, stored in " + (end - dbStart) + "ms");
+    }
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+    private void recordMetrics(List<SyncMetrics> runs) {
+        for (SyncMetrics run : runs) {
+            run.record(getContext());
+        }
+    }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    /**
+     * Collects the rows emitted by {@link ForecastJsonParser} until the whole payload has been
+     * read, at which point the location is known and the rows can be keyed to it.
+     */
+    static class ParsedForecast implements ForecastJsonParser.Callback {
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
+        final ArrayList<ForecastJsonParser.ForecastDay> days =
+                new ArrayList<ForecastJsonParser.ForecastDay>(16);
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.cityLatitude = lat;
+            this.cityLongitude = lon;
+        }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        @Override
+        public void onDay(ForecastJsonParser.ForecastDay day) {
+            days.add(day);
+        }
+    }
 
-            for (int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+    /**
+     * Collects the hours emitted by {@link ForecastJsonParser#parseHourly}.
+     */
+    static class ParsedHourly implements ForecastJsonParser.HourlyCallback {
+        // OWM sends five days of eight.
+        final ArrayList<ForecastJsonParser.ForecastHour> hours =
+                new ArrayList<ForecastJsonParser.ForecastHour>(40);
+
+        @Override
+        public void onHour(ForecastJsonParser.ForecastHour hour) {
+            hours.add(hour);
+        }
 
-                double high;
-                double low;
+        /**
+         * Adds the hours to {@code batch}, keyed to {@code locationId}.
+         */
+        void addTo(HourlyBatch batch, long locationId) {
+            for (ForecastJsonParser.ForecastHour hour : hours) {
+                batch.add(locationId, hour.time, hour.weatherId, hour.description,
+                        hour.temperature, hour.humidity, hour.pressure, hour.windSpeed,
+                        hour.windDirection);
+            }
+        }
+    }
 
-                String description;
-                int weatherId;
+    /**
+     * Take the decoded forecast and write it, with whatever it changed, to the database.  The
+     * location, its cache state and the days all go in as one batch, so one transaction and
+     * one round of change notifications.  If no days changed for a location that's already
+     * stored, there's no batch: only the cache state is written.
+     *
+     * @param forecast        The decoded city and days.
+     * @param cache           The location's cache state, with the new response's validators.
+     *                        Its locationId is -1 if the location isn't stored yet.
+     * @param locationSetting The location string used to request the forecast.
+     * @param diff            What the forecast changes, against the days stored now.
+     * @return the batch's results, the location's first, none if there was no batch, or null
+     * if it couldn't be stored.
+     */
+    private ContentProviderResult[] storeWeatherData(ParsedForecast forecast,
+            ForecastCache cache, String locationSetting, ForecastDiff diff) {
+        Log.d(LOG_TAG, "Sync for " + locationSetting + ": " + diff);
+        cache.changeHistory =
+                SyncScheduler.appendChangeRate(cache.changeHistory, diff.getChangeRate());
+
+        if (diff.isEmpty() && cache.locationId != -1) {
+            cache.save(getContext(), cache.locationId, LOCATION_STATUS_OK);
+            return new ContentProviderResult[0];
+        }
+        try {
+            return getContext().getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY,
+                    buildSyncOperations(locationSetting, forecast, cache, diff));
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Error storing forecast", e);
+            return null;
+        }
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * Builds everything one location's sync writes, as a single batch: the location first, then
+     * the days the diff calls for, then the retention delete if any days changed.  A location
+     * that isn't stored yet is upserted, and its days keyed to it by back reference.  One that
+     * is only has its cache state and status updated, which leaves the query cache alone.
+     */
+    static ArrayList<ContentProviderOperation> buildSyncOperations(String locationSetting,
+            ParsedForecast forecast, ForecastCache cache, ForecastDiff diff) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ContentValues locationValues = cache.toContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_SYNC_STATUS, LOCATION_STATUS_OK);
+        int locationOperation = -1;
+        if (cache.locationId == -1) {
+            operations.add(buildLocationUpsert(locationSetting, forecast, locationValues));
+            locationOperation = 0;
+        } else {
+            operations.add(ContentProviderOperation
+                    .newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.LocationEntry._ID + " = ?",
+                            new String[]{Long.toString(cache.locationId)})
+                    .withValues(locationValues)
+                    .build());
+        }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay + i);
+        diff.addOperations(operations, locationOperation);
+        if (!diff.isEmpty()) {
+            addRetentionDelete(operations);
+        }
+        return operations;
+    }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+    /**
+     * Builds the upsert that stores a location the first time its forecast comes in, with the
+     * city and coordinates the server resolved it to.
+     *
+     * @param values any other location columns to store with it; added to.
+     */
+    static ContentProviderOperation buildLocationUpsert(String locationSetting,
+            ParsedForecast forecast, ContentValues values) {
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, forecast.cityName);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, forecast.cityLatitude);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, forecast.cityLongitude);
+        return ContentProviderOperation.newInsert(WeatherContract.LocationEntry.UPSERT_URI)
+                .withValues(values)
+                .build();
+    }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    /**
+     * Appends a delete of past days to a batch, which keeps the weather table to the forecast.
+     * The provider moves them into the compact archive rather than losing them.
+     */
+    static void addRetentionDelete(ArrayList<ContentProviderOperation> operations) {
+        operations.add(ContentProviderOperation
+                .newDelete(WeatherContract.WeatherEntry.ARCHIVING_URI)
+                .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                        new String[]{Long.toString(getRetentionCutoff())})
+                .build());
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    /**
+     * Keys the decoded days to a location and a date, ready for the weather table.
+     */
+    static ContentValues[] buildWeatherValues(long locationId, ParsedForecast forecast) {
+        return buildWeatherValues(locationId, forecast, System.currentTimeMillis());
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    /**
+     * Keys the decoded days to a location and a date, as {@link #buildWeatherValues(long,
+     * ParsedForecast)} would have for a forecast fetched at {@code fetchTime}.
+     */
+    static ContentValues[] buildWeatherValues(long locationId, ParsedForecast forecast,
+                                              long fetchTime) {
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(fetchTime, dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        dayTime = new Time();
+
+        int dayCount = forecast.days.size();
+        ContentValues[] cvArray = new ContentValues[dayCount];
+        for (int i = 0; i < dayCount; i++) {
+            ForecastJsonParser.ForecastDay day = forecast.days.get(i);
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = dayTime.setJulianDay(julianStartDay + i);
+
+            ContentValues weatherValues = new ContentValues();
+
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+            cvArray[i] = weatherValues;
+        }
+        return cvArray;
+    }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+    /**
+     * @return the date at or before which weather rows are old enough to archive: yesterday,
+     * normalized the same way as the dates written by {@link #buildWeatherValues}.
+     */
+    static long getRetentionCutoff() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        return new Time().setJulianDay(julianStartDay - 1);
+    }
 
-                cVVector.add(weatherValues);
+    /**
+     * Lets everything that shows the weather know the stored forecast changed.  The consumers
+     * run in parallel off the sync thread, each with its own time limit, and the sync waits for
+     * them, so that none is cut off by the process going once the sync is over.
+     *
+     * @param runs metrics for the sync runs being fanned out, recorded with the fan-out's time
+     *             once every consumer is done.
+     */
+    private void fanOut(final List<SyncMetrics> runs) {
+        final long fanOutStart = SyncMetrics.now();
+        SyncFanOut.Batch batch = SyncFanOut.start(new Runnable() {
+            @Override
+            public void run() {
+                long fanOutMillis = SyncMetrics.now() - fanOutStart;
+                for (SyncMetrics run : runs) {
+                    run.fanOutMillis = fanOutMillis;
+                }
+                recordMetrics(runs);
             }
-            // add to database
-            if (cVVector.size() > 0) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[]{Long.toString(dayTime.setJulianDay(julianStartDay - 1))});
-
+        });
+        batch.submit("widgets", new Runnable() {
+            @Override
+            public void run() {
                 updateWidgets();
+            }
+        }, WIDGETS_TIMEOUT_MILLIS);
+        batch.submit("muzei", new Runnable() {
+            @Override
+            public void run() {
                 updateMuzei();
+            }
+        }, MUZEI_TIMEOUT_MILLIS);
+        batch.submit("notification", new Runnable() {
+            @Override
+            public void run() {
                 notifyWeather();
             }
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
-
-        } catch (JSONException e) {
-
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        }, NOTIFICATION_TIMEOUT_MILLIS);
+        batch.submit("wear", new Runnable() {
+            @Override
+            public void run() {
+                updateWear();
+            }
+        }, WEAR_TIMEOUT_MILLIS);
+        batch.close();
+        try {
+            if (!batch.awaitCompletion(FAN_OUT_GRACE_MILLIS)) {
+                Log.w(LOG_TAG, "Fan-out still running after its consumers' timeouts");
+            }
+        } catch (InterruptedException e) {
+            // The sync was cancelled; the consumers carry on, bounded by their timeouts.
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -482,22 +661,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     }
                     String title = context.getString(R.string.app_name);
 
-                    HIGH_TEMP = Utility.formatTemperature(context, high);
-                    LOW_TEMP= Utility.formatTemperature(context, low);
-
-                    //Creating the asset to transfer to Wear
-                    Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), iconId);
-                    iconAsset = createAssetFromBitmap(bitmap);
-                    if(iconAsset != null)
-                        Log.i(LOG_TAG, "notifyWeather: icon asset is not null");
-
                     // Define the text of the forecast.
                     String contentText = String.format(context.getString(R.string.format_notification),
                             desc,
-                            HIGH_TEMP,
-                            LOW_TEMP);
-
-                    onConnected(null);
+                            Utility.formatTemperature(context, high),
+                            Utility.formatTemperature(context, low));
 
                     // NotificationCompatBuilder is a very convenient way to build backward-compatible
                     // notifications.  Just throw in some data.
@@ -543,11 +711,56 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
 
 
+    /**
+     * Sends today's forecast to Wear.  If the API client isn't connected yet, it's sent from
+     * {@link #onConnected} instead.
+     */
+    private void updateWear() {
+        Context context = getContext();
+        String locationQuery = Utility.getPreferredLocation(context);
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                locationQuery, System.currentTimeMillis());
+        Cursor cursor = context.getContentResolver().query(
+                weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            String high = Utility.formatTemperature(context, cursor.getDouble(INDEX_MAX_TEMP));
+            String low = Utility.formatTemperature(context, cursor.getDouble(INDEX_MIN_TEMP));
+            int iconId = Utility.getIconResourceForWeatherCondition(cursor.getInt(INDEX_WEATHER_ID));
+
+            //Creating the asset to transfer to Wear
+            Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), iconId);
+            Asset asset = createAssetFromBitmap(bitmap);
+            synchronized (mWearLock) {
+                HIGH_TEMP = high;
+                LOW_TEMP = low;
+                iconAsset = asset;
+            }
+        } finally {
+            cursor.close();
+        }
+        sendWearDataIfConnected();
+    }
+
     @Override
     public void onConnected(@Nullable Bundle bundle) {
         Log.i(LOG_TAG, "onConnected: ");
-        if(HIGH_TEMP != null && LOW_TEMP != null && iconAsset != null)
-            sendDataToWear(HIGH_TEMP, LOW_TEMP, iconAsset);
+        sendWearDataIfConnected();
+    }
+
+    /**
+     * Sends the forecast kept for Wear, if there is one and the API client is connected.
+     */
+    private void sendWearDataIfConnected() {
+        synchronized (mWearLock) {
+            if (HIGH_TEMP != null && LOW_TEMP != null && iconAsset != null && apiClient.isConnected())
+                sendDataToWear(HIGH_TEMP, LOW_TEMP, iconAsset);
+        }
     }
 
     @Override
@@ -587,56 +800,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         Wearable.DataApi.putDataItem(apiClient, mapRequest.asPutDataRequest());
     }
 
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName        A human-readable city name, e.g "Mountain View"
-     * @param lat             the latitude of the city
-     * @param lon             the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
-    }
-
     /**
      * Helper method to schedule the sync adapter periodic execution
      */
@@ -669,6 +832,47 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Helper method to ask for a background sync.  Unlike {@link #syncImmediately} it isn't
+     * manual or expedited, so it waits on the user's auto-sync settings and any backoff.
+     *
+     * @param context The context used to access the account service
+     */
+    public static void requestBackgroundSync(Context context) {
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), new Bundle());
+    }
+
+    /**
+     * Helper method to have the sync adapter refresh every saved location right away.  Nothing
+     * in the app asks for it yet; it's there for a "refresh all" action to call.
+     *
+     * @param context The context used to access the account service
+     */
+    public static void syncAllLocationsImmediately(Context context) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(SYNC_EXTRAS_ALL_LOCATIONS, true);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
+    /**
+     * Helper method to have the sync adapter store the journaled responses again, as after a
+     * fix to how they're decoded or stored
+     *
+     * @param context The context used to access the account service
+     */
+    public static void replayJournalImmediately(Context context) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(SYNC_EXTRAS_REPLAY_JOURNAL, true);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -710,14 +914,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     private static void onAccountCreated(Account newAccount, Context context) {
         /*
-         * Since we've created an account
+         * Without calling setSyncAutomatically, our periodic sync will not be enabled.
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        ContentResolver.setSyncAutomatically(newAccount, context.getString(R.string.content_authority), true);
 
         /*
-         * Without calling setSyncAutomatically, our periodic sync will not be enabled.
+         * Since we've created an account, schedule its background syncs.  With no history yet
+         * this starts out at SYNC_INTERVAL, adjusted for the device's current state.
          */
-        ContentResolver.setSyncAutomatically(newAccount, context.getString(R.string.content_authority), true);
+        SyncScheduler.scheduleNext(context);
 
         /*
          * Finally, let's do a sync to get things started
@@ -727,6 +932,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     public static void initializeSyncAdapter(Context context) {
         getSyncAccount(context);
+        // Background syncs stop scheduling themselves while auto-sync is off; pick them back
+        // up if it's been turned on since.
+        SyncScheduler.ensureScheduled(context);
     }
 
     /**
@@ -736,7 +944,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
      * @param c              Context to get the PreferenceManager from.
      * @param locationStatus The IntDef value to set
      */
-    static private void setLocationStatus(Context c, @LocationStatus int locationStatus) {
+    static void setLocationStatus(Context c, @LocationStatus int locationStatus) {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
         spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
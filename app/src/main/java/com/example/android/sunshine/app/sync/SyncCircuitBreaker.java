@@ -0,0 +1,146 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.support.annotation.IntDef;
+
+import com.example.android.sunshine.app.R;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Random;
+
+/**
+ * Stops syncs from hammering OpenWeatherMap while it's down or sending garbage.
+ * <p/>
+ * Closed, every sync goes to the network.  After {@link #FAILURE_THRESHOLD} failed syncs in a
+ * row the breaker opens, and syncs return without opening a socket until a jittered,
+ * exponentially growing backoff has passed.  The first sync after that is a half-open trial: if
+ * it succeeds the breaker closes again, if it fails the breaker reopens with a longer backoff.
+ * <p/>
+ * The state lives in SharedPreferences, so it survives the sync process being killed, and the
+ * forecast list can read it to explain why there's no data.
+ */
+public class SyncCircuitBreaker {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    public @interface State {
+    }
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = 60 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 6 * 60 * 60 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    @State
+    int state = STATE_CLOSED;
+    int consecutiveFailures;
+    // While open, the time before which no request goes out.
+    long retryAt;
+
+    static SyncCircuitBreaker load(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SyncCircuitBreaker breaker = new SyncCircuitBreaker();
+        //noinspection ResourceType
+        breaker.state = sp.getInt(context.getString(R.string.pref_sync_breaker_state_key),
+                STATE_CLOSED);
+        breaker.consecutiveFailures = sp.getInt(
+                context.getString(R.string.pref_sync_breaker_failures_key), 0);
+        breaker.retryAt = sp.getLong(context.getString(R.string.pref_sync_breaker_retry_at_key), 0);
+        return breaker;
+    }
+
+    void save(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putInt(context.getString(R.string.pref_sync_breaker_state_key), state)
+                .putInt(context.getString(R.string.pref_sync_breaker_failures_key),
+                        consecutiveFailures)
+                .putLong(context.getString(R.string.pref_sync_breaker_retry_at_key), retryAt)
+                .apply();
+    }
+
+    /**
+     * @return true if a sync may go to the network now.  An open breaker whose backoff has passed
+     * moves to half-open and lets this one request through.
+     */
+    boolean allowRequest(long now) {
+        if (state == STATE_OPEN) {
+            if (now < retryAt) {
+                return false;
+            }
+            state = STATE_HALF_OPEN;
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a sync that went to the network.
+     *
+     * @param status the {@link SunshineSyncAdapter.LocationStatus} the sync ended with.
+     */
+    void onResult(@SunshineSyncAdapter.LocationStatus int status, long now) {
+        if (isUpstreamFailure(status)) {
+            onFailure(now, sRandom.nextDouble());
+        } else {
+            onSuccess();
+        }
+    }
+
+    void onSuccess() {
+        state = STATE_CLOSED;
+        consecutiveFailures = 0;
+        retryAt = 0;
+    }
+
+    /**
+     * @param jitter a random value in [0, 1) that spreads the backoff out.
+     */
+    void onFailure(long now, double jitter) {
+        consecutiveFailures++;
+        if (state == STATE_HALF_OPEN || consecutiveFailures >= FAILURE_THRESHOLD) {
+            state = STATE_OPEN;
+            retryAt = now + computeBackoff(consecutiveFailures, jitter);
+        }
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": somewhere between half and all of
+     * BASE_BACKOFF_MILLIS * 2^(failures - threshold), capped at MAX_BACKOFF_MILLIS.
+     */
+    static long computeBackoff(int consecutiveFailures, double jitter) {
+        int exponent = Math.max(0, Math.min(consecutiveFailures - FAILURE_THRESHOLD, 20));
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << exponent);
+        return backoff / 2 + (long) (backoff / 2 * jitter);
+    }
+
+    /**
+     * @return true if the status means the server, rather than the user's location setting,
+     * is the problem.
+     */
+    static boolean isUpstreamFailure(@SunshineSyncAdapter.LocationStatus int status) {
+        return status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                || status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID;
+    }
+
+    @State
+    public static int getState(Context context) {
+        //noinspection ResourceType
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(context.getString(R.string.pref_sync_breaker_state_key), STATE_CLOSED);
+    }
+
+    /**
+     * @return when an open breaker will next let a sync through, in milliseconds since the epoch.
+     */
+    public static long getRetryAt(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(context.getString(R.string.pref_sync_breaker_retry_at_key), 0);
+    }
+}
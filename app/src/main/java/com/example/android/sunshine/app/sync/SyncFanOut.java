@@ -0,0 +1,159 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The last stage of a sync: tells everything that shows the weather (widgets, Muzei, the
+ * notification, Wear) that the stored forecast changed.
+ * <p/>
+ * Consumers run in parallel on background threads, so the sync waits as long as the slowest
+ * of them rather than all of them in turn.  It does wait, with {@link Batch#awaitCompletion}:
+ * the running sync is what keeps the process alive, and a consumer still running once it's
+ * over may be lost with the process.  Each consumer gets a timeout; one that overruns it is
+ * interrupted, so a hung download can't hold up the sync or pile up behind the next one.
+ */
+class SyncFanOut {
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    // There are four consumers; one thread each lets them all run at once.
+    private static final int MAX_THREADS = 4;
+
+    private static final ExecutorService sConsumerPool =
+            Executors.newFixedThreadPool(MAX_THREADS, new BackgroundThreadFactory("SyncFanOut"));
+    private static final ScheduledExecutorService sWatchdog =
+            Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory("SyncWatchdog"));
+
+    /**
+     * Starts a fan-out.  Submit its consumers to the returned batch, then close it.
+     *
+     * @param onComplete run once every consumer has finished or timed out, on whichever thread
+     *                   got there last.  May be null.
+     */
+    static Batch start(Runnable onComplete) {
+        return new Batch(onComplete);
+    }
+
+    /**
+     * The consumers of one fan-out, tracked so we know when they're all done.
+     */
+    static class Batch {
+        // Starts at one for the batch itself, released by close(), so that consumers finishing
+        // before the rest are submitted can't complete the batch early.
+        private final AtomicInteger mPending = new AtomicInteger(1);
+        private final CountDownLatch mCompleted = new CountDownLatch(1);
+        private final Runnable mOnComplete;
+        // The longest timeout submitted, which bounds how long the batch can take.
+        private long mLongestTimeoutMillis;
+
+        private Batch(Runnable onComplete) {
+            mOnComplete = onComplete;
+        }
+
+        /**
+         * Starts a consumer and returns straight away.
+         *
+         * @param name          used in logs.
+         * @param consumer      the work to do.
+         * @param timeoutMillis how long the consumer may run before it's interrupted.
+         */
+        Future<?> submit(final String name, final Runnable consumer, long timeoutMillis) {
+            mPending.incrementAndGet();
+            mLongestTimeoutMillis = Math.max(mLongestTimeoutMillis, timeoutMillis);
+            // Set by whichever comes first: the consumer finishing or its timeout.
+            final AtomicBoolean done = new AtomicBoolean();
+            final Future<?> future = sConsumerPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        consumer.run();
+                    } catch (RuntimeException e) {
+                        // One consumer failing shouldn't take the others, or the pool thread,
+                        // down.
+                        Log.e(LOG_TAG, "Fan-out consumer " + name + " failed", e);
+                    } finally {
+                        if (done.compareAndSet(false, true)) release();
+                    }
+                }
+            });
+            sWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.cancel(true)) {
+                        Log.w(LOG_TAG, "Fan-out consumer " + name + " timed out");
+                    }
+                    // Count it as done now even if it ignores the interrupt, so one stuck
+                    // consumer can't hold up the batch.
+                    if (done.compareAndSet(false, true)) release();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        /**
+         * Marks the batch as fully submitted.
+         */
+        void close() {
+            release();
+        }
+
+        /**
+         * Waits for the consumers of a closed batch to finish or time out, and for onComplete.
+         * Call it from the thread that submitted them.
+         *
+         * @param graceMillis how long to wait past the longest timeout, for a watchdog that's
+         *                    late to run.
+         * @return true if the batch completed in time.
+         */
+        boolean awaitCompletion(long graceMillis) throws InterruptedException {
+            return mCompleted.await(mLongestTimeoutMillis + graceMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void release() {
+            if (mPending.decrementAndGet() == 0) {
+                try {
+                    if (mOnComplete != null) {
+                        mOnComplete.run();
+                    }
+                } finally {
+                    mCompleted.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Names the threads and keeps them at background priority so they don't compete with the UI.
+     */
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        BackgroundThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + " #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
+
+/**
+ * Timings for one sync run, written to the metrics table once the run is over.
+ * <p/>
+ * Stages are timed with {@link SystemClock#elapsedRealtime()}, and the run costs one insert at
+ * the end, so this stays on in release builds.  Stages the run never reached are left at -1 and
+ * stored as NULL, so they don't drag the percentiles down.
+ */
+class SyncMetrics {
+    private static final String LOG_TAG = SyncMetrics.class.getSimpleName();
+
+    final long startTime = System.currentTimeMillis();
+    String locationSetting;
+
+    long connectMillis = -1;
+    long firstByteMillis = -1;
+    long decodeMillis = -1;
+    long dbMillis = -1;
+    long fanOutMillis = -1;
+
+    long bytes;
+    // HTTP status code, -1 if no request was made.
+    int httpStatus = -1;
+    @SunshineSyncAdapter.LocationStatus
+    int result = SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN;
+
+    SyncMetrics(String locationSetting) {
+        this.locationSetting = locationSetting;
+    }
+
+    /**
+     * @return now, on the clock stages are timed with.
+     */
+    static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(MetricsEntry.COLUMN_START_TIME, startTime);
+        values.put(MetricsEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        putStage(values, MetricsEntry.COLUMN_CONNECT_TIME, connectMillis);
+        putStage(values, MetricsEntry.COLUMN_FIRST_BYTE_TIME, firstByteMillis);
+        putStage(values, MetricsEntry.COLUMN_DECODE_TIME, decodeMillis);
+        putStage(values, MetricsEntry.COLUMN_DB_TIME, dbMillis);
+        putStage(values, MetricsEntry.COLUMN_FAN_OUT_TIME, fanOutMillis);
+        values.put(MetricsEntry.COLUMN_BYTES, bytes);
+        putStage(values, MetricsEntry.COLUMN_HTTP_STATUS, httpStatus);
+        values.put(MetricsEntry.COLUMN_RESULT, result);
+        return values;
+    }
+
+    private static void putStage(ContentValues values, String column, long value) {
+        if (value < 0) {
+            values.putNull(column);
+        } else {
+            values.put(column, value);
+        }
+    }
+
+    /**
+     * Writes the run to the metrics table.  A failure here is logged and otherwise ignored; it
+     * mustn't fail the sync.
+     */
+    void record(Context context) {
+        try {
+            context.getContentResolver().insert(MetricsEntry.CONTENT_URI, toContentValues());
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error recording sync metrics", e);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.android.sunshine.app.sync;
+
+import android.accounts.Account;
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.Calendar;
+
+/**
+ * Decides when the next background sync should run, instead of always waiting
+ * {@link SunshineSyncAdapter#SYNC_INTERVAL}.
+ * <p/>
+ * The interval starts from how much the last few syncs of the preferred location actually changed
+ * its forecast: a forecast that keeps coming back the same is polled less often, one that keeps
+ * moving is polled more often.  It is then stretched on a metered network, on low battery and
+ * overnight, and shortened while charging.
+ * <p/>
+ * On Lollipop and up the next sync is a one-off JobScheduler job with a network constraint,
+ * rescheduled at the end of every sync.  Older devices keep the sync framework's periodic sync,
+ * with its period updated the same way.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final int JOB_ID_SYNC = 1;
+
+    // How many syncs' worth of change rates each location keeps.
+    static final int HISTORY_SIZE = 8;
+
+    // Bounds on the interval, in seconds, whatever the inputs say.
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int MAX_INTERVAL = 60 * 60 * 12;
+
+    // Change rates at or below this are "stable": the days just roll over.  At or above
+    // VOLATILE_RATE, half the forecast is being rewritten every sync.
+    private static final double STABLE_RATE = 0.1;
+    private static final double VOLATILE_RATE = 0.5;
+
+    private static final double STABLE_FACTOR = 2.0;
+    private static final double VOLATILE_FACTOR = 0.5;
+    private static final double METERED_FACTOR = 1.5;
+    private static final double LOW_BATTERY_FACTOR = 2.0;
+    private static final double CHARGING_FACTOR = 0.75;
+    private static final double NIGHT_FACTOR = 2.0;
+
+    private static final int LOW_BATTERY_PERCENT = 15;
+    private static final int NIGHT_START_HOUR = 23;
+    private static final int NIGHT_END_HOUR = 6;
+
+    /**
+     * Snapshot of the device conditions that affect how eagerly we sync.
+     */
+    static class DeviceState {
+        boolean metered;
+        boolean charging;
+        boolean lowBattery;
+        int hourOfDay;
+    }
+
+    /**
+     * Adds the change rate of the latest sync to a location's history, dropping the oldest entry
+     * once there are {@link #HISTORY_SIZE} of them.
+     *
+     * @param history the stored history, may be null.
+     * @param rate    the fraction of the forecast the sync changed, 0 to 1.
+     * @return the new history, to be stored back with the location.
+     */
+    static String appendChangeRate(String history, double rate) {
+        String entry = Integer.toString((int) Math.round(Math.max(0, Math.min(1, rate)) * 1000));
+        if (TextUtils.isEmpty(history)) {
+            return entry;
+        }
+        String[] entries = history.split(",");
+        StringBuilder sb = new StringBuilder();
+        for (int i = Math.max(0, entries.length - HISTORY_SIZE + 1); i < entries.length; i++) {
+            sb.append(entries[i]).append(',');
+        }
+        return sb.append(entry).toString();
+    }
+
+    /**
+     * @return the mean change rate in a history, from 0 to 1, or -1 if there's no usable history.
+     */
+    static double getVolatility(String history) {
+        if (TextUtils.isEmpty(history)) {
+            return -1;
+        }
+        int sum = 0;
+        int count = 0;
+        for (String entry : history.split(",")) {
+            try {
+                sum += Integer.parseInt(entry.trim());
+                count++;
+            } catch (NumberFormatException e) {
+                // Skip it, the rest of the history is still good.
+            }
+        }
+        return count == 0 ? -1 : sum / (count * 1000.0);
+    }
+
+    /**
+     * Works out the sync interval for a given forecast volatility and device state.
+     *
+     * @param volatility mean change rate as returned by {@link #getVolatility}, -1 if unknown.
+     * @return the interval in seconds.
+     */
+    static int computeInterval(double volatility, DeviceState state) {
+        double factor = 1.0;
+        if (volatility >= 0) {
+            if (volatility <= STABLE_RATE) {
+                factor = STABLE_FACTOR;
+            } else if (volatility >= VOLATILE_RATE) {
+                factor = VOLATILE_FACTOR;
+            } else {
+                // Slide linearly from the stable factor to the volatile one.
+                double t = (volatility - STABLE_RATE) / (VOLATILE_RATE - STABLE_RATE);
+                factor = STABLE_FACTOR + t * (VOLATILE_FACTOR - STABLE_FACTOR);
+            }
+        }
+
+        if (state.metered) factor *= METERED_FACTOR;
+        if (state.charging) {
+            factor *= CHARGING_FACTOR;
+        } else if (state.lowBattery) {
+            factor *= LOW_BATTERY_FACTOR;
+        }
+        if (state.hourOfDay >= NIGHT_START_HOUR || state.hourOfDay < NIGHT_END_HOUR) {
+            factor *= NIGHT_FACTOR;
+        }
+
+        int interval = (int) (SunshineSyncAdapter.SYNC_INTERVAL * factor);
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    static DeviceState getDeviceState(Context context) {
+        DeviceState state = new DeviceState();
+
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            state.metered = cm.isActiveNetworkMetered();
+        } else {
+            NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+            state.metered = activeNetwork != null
+                    && activeNetwork.getType() == ConnectivityManager.TYPE_MOBILE;
+        }
+
+        // A sticky broadcast, so this returns the last battery status without registering.
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            state.charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            state.lowBattery = level >= 0 && scale > 0
+                    && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        }
+
+        state.hourOfDay = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        return state;
+    }
+
+    /**
+     * @return true if the user lets this app sync in the background: both the device's master
+     * auto-sync setting and the sync account's own are on.
+     */
+    static boolean isAutoSyncEnabled(Context context) {
+        Account account = SunshineSyncAdapter.getSyncAccount(context);
+        return account != null && ContentResolver.getMasterSyncAutomatically()
+                && ContentResolver.getSyncAutomatically(account,
+                        context.getString(R.string.content_authority));
+    }
+
+    /**
+     * Restarts background syncs if the user has turned auto-sync back on since the last sync
+     * ran, when the job stopped being rescheduled.  The sync it asks for schedules the next one
+     * when it finishes, so nothing is read from the database here.  Older devices keep their
+     * periodic sync throughout; the framework only holds it while auto-sync is off.
+     */
+    public static void ensureScheduled(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !isJobPending(context)
+                && isAutoSyncEnabled(context)) {
+            SunshineSyncAdapter.requestBackgroundSync(context);
+        }
+    }
+
+    /**
+     * Schedules the next background sync from the preferred location's change history and the
+     * current device state.  Called once when the sync account is created and again at the end
+     * of every sync.  Does nothing while auto-sync is off, so a sync the user asked for doesn't
+     * start background syncs they've turned off.
+     */
+    public static void scheduleNext(Context context) {
+        if (!isAutoSyncEnabled(context)) {
+            Log.d(LOG_TAG, "Auto-sync is off, not scheduling the next sync");
+            return;
+        }
+        ForecastCache cache = ForecastCache.load(context, Utility.getPreferredLocation(context));
+        double volatility = getVolatility(cache.changeHistory);
+        int interval = computeInterval(volatility, getDeviceState(context));
+        if (SyncCircuitBreaker.getState(context) == SyncCircuitBreaker.STATE_OPEN) {
+            // No point waking up before the breaker will let the sync through.
+            long untilRetry = (SyncCircuitBreaker.getRetryAt(context) - System.currentTimeMillis())
+                    / 1000;
+            interval = (int) Math.min(MAX_INTERVAL, Math.max(interval, untilRetry));
+        }
+        int flexTime = interval / 3;
+        Log.d(LOG_TAG, "Next sync in " + interval + "s (volatility " + volatility + ")");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJob(context, interval, flexTime);
+        } else {
+            SunshineSyncAdapter.configurePeriodicSync(context, interval, flexTime);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isJobPending(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID_SYNC) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context, int interval, int flexTime) {
+        // The job replaces the framework's periodic sync, so don't leave both running.
+        Account account = SunshineSyncAdapter.getSyncAccount(context);
+        if (account != null) {
+            ContentResolver.removePeriodicSync(account,
+                    context.getString(R.string.content_authority), new Bundle());
+        }
+
+        JobInfo job = new JobInfo.Builder(JOB_ID_SYNC,
+                new ComponentName(context, SunshineJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency((interval - flexTime) * 1000L)
+                .setOverrideDeadline(interval * 1000L)
+                .setPersisted(true)
+                .build();
+        // Scheduling with the same ID replaces the pending job.
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(job);
+    }
+}